@@ -10,7 +10,6 @@ import org.matsim.core.utils.misc.Counter;
 import org.opengis.feature.simple.SimpleFeature;
 
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -34,6 +33,10 @@ public final class BeelineDistanceMatrix {
         FloatMatrix<T> matrix = new FloatMatrix<>(zones.keySet(), 0.0f);
 
         int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
+        Coord[][] coordsPerZoneIndex = new Coord[matrix.getZoneCount()][];
+        for (int i = 0; i < coordsPerZoneIndex.length; i++) {
+            coordsPerZoneIndex[i] = coordsPerZone.get(matrix.getZone(i));
+        }
 
         // do calculation
         ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
@@ -41,7 +44,7 @@ public final class BeelineDistanceMatrix {
         Counter counter = new Counter("BeelineDistanceMatrix zone ", " / " + zones.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            BeelineDistanceMatrix.RowWorker<T> worker = new BeelineDistanceMatrix.RowWorker<>(originZones, zones.keySet(), coordsPerZone, matrix, counter);
+            BeelineDistanceMatrix.RowWorker<T> worker = new BeelineDistanceMatrix.RowWorker<>(originZones, coordsPerZoneIndex, matrix, counter);
             threads[i] = new Thread(worker, "BeelineDistanceMatrix-" + i);
             threads[i].start();
         }
@@ -61,15 +64,13 @@ public final class BeelineDistanceMatrix {
 
     private static class RowWorker<T> implements Runnable {
         private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
-        private final Map<T, Coord[]> coordsPerZone;
+        private final Coord[][] coordsPerZoneIndex;
         private final FloatMatrix<T> matrix;
         private final Counter counter;
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, FloatMatrix<T> matrix, Counter counter) {
+        RowWorker(ConcurrentLinkedQueue<T> originZones, Coord[][] coordsPerZoneIndex, FloatMatrix<T> matrix, Counter counter) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
-            this.coordsPerZone = coordsPerZone;
+            this.coordsPerZoneIndex = coordsPerZoneIndex;
             this.matrix = matrix;
             this.counter = counter;
         }
@@ -82,28 +83,28 @@ public final class BeelineDistanceMatrix {
                 }
 
                 this.counter.incCounter();
-                Coord[] fromCoords = this.coordsPerZone.get(fromZoneId);
+                int fromIndex = this.matrix.getIndex(fromZoneId);
+                FloatMatrix.Row row = this.matrix.getRow(fromIndex);
+                Coord[] fromCoords = this.coordsPerZoneIndex[fromIndex];
                 if (fromCoords != null) {
                     for (Coord fromCoord : fromCoords) {
 
-                        for (T toZoneId : this.destinationZones) {
-                            Coord[] toCoords = this.coordsPerZone.get(toZoneId);
+                        for (int toIndex = 0; toIndex < this.coordsPerZoneIndex.length; toIndex++) {
+                            Coord[] toCoords = this.coordsPerZoneIndex[toIndex];
                             if (toCoords != null) {
                                 for (Coord toCoord : toCoords) {
                                     double dist = CoordUtils.calcEuclideanDistance(fromCoord, toCoord);
-                                    this.matrix.add(fromZoneId, toZoneId, (float) dist);
+                                    row.add(toIndex, (float) dist);
                                 }
                             } else {
                                 // this might happen if a zone has no geometry, for whatever reason...
-                                this.matrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
+                                row.set(toIndex, Float.POSITIVE_INFINITY);
                             }
                         }
                     }
                 } else {
                     // this might happen if a zone has no geometry, for whatever reason...
-                    for (T toZoneId : this.destinationZones) {
-                        this.matrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    }
+                    row.fill(Float.POSITIVE_INFINITY);
                 }
             }
         }
@@ -5,6 +5,9 @@
 package ch.sbb.matsim.analysis.skims;
 
 import ch.sbb.matsim.analysis.skims.NetworkSkimMatrices.NetworkIndicators;
+import ch.sbb.matsim.routing.graph.CustomizableContractionHierarchy;
+import ch.sbb.matsim.routing.graph.Graph;
+import ch.sbb.matsim.routing.graph.TravelCostSnapshot;
 import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
 import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
 import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
@@ -64,6 +67,10 @@ import java.util.function.ToDoubleFunction;
  * All calculated matrices are written to files with fixed names (see constants in this class)
  * in an output directory.
  *
+ * Matrices with more than about 46'340 zones are stored off-heap (see {@link FloatMatrix}), which requires
+ * the JVM option <code>-XX:MaxDirectMemorySize</code> to be set large enough for all matrices in addition to
+ * <code>-Xmx</code>, e.g. 10 GB for each matrix with 50'000 zones.
+ *
  * @author mrieser / SBB
  */
 public class CalculateSkimMatrices {
@@ -84,6 +91,9 @@ public class CalculateSkimMatrices {
     public static final String BEELINE_DISTANCE_FILENAME = "beeline_distances.csv.gz";
     public static final String ZONE_LOCATIONS_FILENAME = "zone_coordinates.csv";
 
+    private static final String CSV_EXTENSION = ".csv.gz";
+    private static final String BINARY_EXTENSION = ".bin";
+
     private final static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
 
     private final Collection<SimpleFeature> zones;
@@ -93,6 +103,11 @@ public class CalculateSkimMatrices {
     private final String outputDirectory;
     private final int numberOfThreads;
     private Map<String, Coord[]> coordsPerZone = null;
+    private boolean useCustomizableContractionHierarchy = false;
+    private boolean useTravelCostSnapshots = false;
+    private double travelCostSnapshotHorizon = Double.POSITIVE_INFINITY;
+    private boolean useContractionHierarchy = false;
+    private final Map<String, ValueEncoding> binaryOutputEncodings = new HashMap<>();
 
     public CalculateSkimMatrices(String zonesShapeFilename, String zonesIdAttributeName, String outputDirectory, int numberOfThreads) {
         this.outputDirectory = outputDirectory;
@@ -124,6 +139,69 @@ public class CalculateSkimMatrices {
         }
     }
 
+    /**
+     * If enabled, the car matrices for multiple time slices are calculated with a customizable contraction
+     * hierarchy: the network is preprocessed only once, and for each time slice the hierarchy is only customized
+     * with the travel times at that time. This is much faster than calculating least-cost-path trees, but the
+     * travel times at the time slice are used for the whole trip instead of the time when a link is entered.
+     * Disabled by default.
+     */
+    public final void setUseCustomizableContractionHierarchy(boolean useCustomizableContractionHierarchy) {
+        this.useCustomizableContractionHierarchy = useCustomizableContractionHierarchy;
+    }
+
+    /**
+     * If enabled, the link travel times and disutilities of congested car networks are evaluated once per
+     * time bin (using the bin size of the travel time calculator) and stored in primitive arrays, which the
+     * routing then reads instead of calling the travel time and disutility for each link. By default, the
+     * snapshot covers the time from each departure time up to the max time of the travel time calculator,
+     * after which the travel time calculator itself uses the values of its last time bin, so the results
+     * are the same as without snapshots. See {@link #setTravelCostSnapshotHorizon(double)} to limit the memory.
+     * Disabled by default.
+     */
+    public final void setUseTravelCostSnapshots(boolean useTravelCostSnapshots) {
+        this.useTravelCostSnapshots = useTravelCostSnapshots;
+    }
+
+    /**
+     * Limits the travel cost snapshots to the given number of seconds after each departure time. Each time bin
+     * requires 8 bytes per link, so a shorter horizon saves memory for large networks, but trips still
+     * running after the horizon use the travel times of the last time bin in the snapshot.
+     * By default, the snapshots are not limited and cover the full time span of the travel time calculator.
+     */
+    public final void setTravelCostSnapshotHorizon(double travelCostSnapshotHorizon) {
+        if (travelCostSnapshotHorizon < 0) {
+            throw new IllegalArgumentException("travelCostSnapshotHorizon must not be negative, but is " + travelCostSnapshotHorizon);
+        }
+        this.travelCostSnapshotHorizon = travelCostSnapshotHorizon;
+    }
+
+    /**
+     * If enabled and no events are given, the car matrices based on free speed travel times are calculated with
+     * a contraction hierarchy instead of least-cost-path trees. This requires some preprocessing of the network,
+     * but is much faster for many zones. The travel times are the same, the distances might differ if there are
+     * multiple paths with the same cost. Disabled by default.
+     */
+    public final void setUseContractionHierarchy(boolean useContractionHierarchy) {
+        this.useContractionHierarchy = useContractionHierarchy;
+    }
+
+    /**
+     * Additionally writes the matrix with the given file name (one of the <code>*_FILENAME</code> constants of this class)
+     * in the binary format of {@link FloatMatrixIO}, storing the values with the given encoding. With a 16-bit encoding,
+     * e.g. {@link ValueEncoding#scaledUInt16(float, float)} with a scale of 1 for travel times in seconds, the file and
+     * the matrix loaded from it with {@link FloatMatrixIO#readAsBinary(String, FloatMatrixIO.IdConverter)} only need
+     * half the size. The binary file has the same name, but with the extension <code>.bin</code> instead of
+     * <code>.csv.gz</code>. The values are only encoded when the file is written, after they are averaged, so the
+     * calculation itself always uses 32-bit floats. Not set by default.
+     */
+    public final void setBinaryOutputEncoding(String matrixFilename, ValueEncoding encoding) {
+        if (!matrixFilename.endsWith(CSV_EXTENSION)) {
+            throw new IllegalArgumentException("Not a matrix file name: " + matrixFilename);
+        }
+        this.binaryOutputEncodings.put(matrixFilename, encoding);
+    }
+
     public final void calculateSamplingPointsPerZoneFromFacilities(String facilitiesFilename, int numberOfPointsPerZone, Random r, ToDoubleFunction<ActivityFacility> weightFunction) throws IOException {
         // load facilities
         log.info("loading facilities from " + facilitiesFilename);
@@ -256,7 +334,7 @@ public class CalculateSkimMatrices {
         FloatMatrix<String> beelineMatrix = BeelineDistanceMatrix.calculateBeelineDistanceMatrix(zonesById, coordsPerZone, numberOfThreads);
 
         log.info("write beeline distance matrix to " + outputDirectory);
-        FloatMatrixIO.writeAsCSV(beelineMatrix, outputDirectory + "/" + BEELINE_DISTANCE_FILENAME);
+        writeMatrix(beelineMatrix, "", BEELINE_DISTANCE_FILENAME);
     }
 
     public final void calculateNetworkMatrices(String networkFilename, String eventsFilename, double[] times, Config config, String outputPrefix, Predicate<Link> xy2linksPredicate) throws IOException {
@@ -287,17 +365,31 @@ public class CalculateSkimMatrices {
         log.info("filter car-only network for assigning links to locations");
         final Network xy2linksNetwork = extractXy2LinksNetwork(carNetwork, xy2linksPredicate);
 
+        CustomizableContractionHierarchy cch = null;
+        if (this.useCustomizableContractionHierarchy && !(tt instanceof FreeSpeedTravelTime)) {
+            log.info("prepare customizable contraction hierarchy for car-only network");
+            cch = CustomizableContractionHierarchy.create(new Graph(carNetwork, Graph.NodeOrdering.HILBERT));
+        }
+        Graph snapshotGraph = null;
+        double snapshotBinSize = config.travelTimeCalculator().getTraveltimeBinSize();
+        double snapshotMaxTime = config.travelTimeCalculator().getMaxTime();
+        if (cch == null && this.useTravelCostSnapshots && !(tt instanceof FreeSpeedTravelTime)) {
+            snapshotGraph = new Graph(carNetwork, Graph.NodeOrdering.HILBERT);
+        }
+
         log.info("calc CAR matrix for " + Time.writeTime(times[0]));
-        NetworkIndicators<String> netIndicators = NetworkSkimMatrices.calculateSkimMatrices(
-                xy2linksNetwork, carNetwork, zonesById, coordsPerZone, times[0], tt, td, this.numberOfThreads);
+        // free speed travel times do not depend on the time of day, so contraction hierarchies can be used
+        NetworkSkimMatrices.RoutingAlgorithm routingAlgorithm = this.useContractionHierarchy && tt instanceof FreeSpeedTravelTime
+                ? NetworkSkimMatrices.RoutingAlgorithm.CONTRACTION_HIERARCHY
+                : NetworkSkimMatrices.RoutingAlgorithm.DIJKSTRA;
+        NetworkIndicators<String> netIndicators = calculateCarMatrices(xy2linksNetwork, carNetwork, cch, snapshotGraph, snapshotBinSize, snapshotMaxTime, times[0], tt, td, routingAlgorithm);
 
         if (tt instanceof FreeSpeedTravelTime) {
             log.info("Do not calculate CAR matrices for other times as only freespeed is being used");
         } else {
             for (int i = 1; i < times.length; i++) {
                 log.info("calc CAR matrices for " + Time.writeTime(times[i]));
-                NetworkIndicators<String> indicators2 = NetworkSkimMatrices.calculateSkimMatrices(
-                        xy2linksNetwork, carNetwork, zonesById, coordsPerZone, times[i], tt, td, this.numberOfThreads);
+                NetworkIndicators<String> indicators2 = calculateCarMatrices(xy2linksNetwork, carNetwork, cch, snapshotGraph, snapshotBinSize, snapshotMaxTime, times[i], tt, td, routingAlgorithm);
                 log.info("merge CAR matrices for " + Time.writeTime(times[i]));
                 combineMatrices(netIndicators.travelTimeMatrix, indicators2.travelTimeMatrix);
                 combineMatrices(netIndicators.distanceMatrix, indicators2.distanceMatrix);
@@ -308,8 +400,27 @@ public class CalculateSkimMatrices {
         }
 
         log.info("write CAR matrices to " + outputDirectory + (prefix.isEmpty() ? "" : (" with prefix " + prefix)));
-        FloatMatrixIO.writeAsCSV(netIndicators.travelTimeMatrix, outputDirectory + "/" + prefix + CAR_TRAVELTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(netIndicators.distanceMatrix, outputDirectory + "/" + prefix + CAR_DISTANCES_FILENAME);
+        writeMatrix(netIndicators.travelTimeMatrix, prefix, CAR_TRAVELTIMES_FILENAME);
+        writeMatrix(netIndicators.distanceMatrix, prefix, CAR_DISTANCES_FILENAME);
+    }
+
+    private NetworkIndicators<String> calculateCarMatrices(Network xy2linksNetwork, Network carNetwork, CustomizableContractionHierarchy cch, Graph snapshotGraph, double snapshotBinSize, double snapshotMaxTime, double time, TravelTime tt, TravelDisutility td, NetworkSkimMatrices.RoutingAlgorithm routingAlgorithm) {
+        if (cch != null) {
+            return NetworkSkimMatrices.calculateSkimMatrices(
+                    xy2linksNetwork, carNetwork, cch, zonesById, coordsPerZone, time, tt, td, this.numberOfThreads,
+                    NetworkSkimMatrices.PointAggregation.AVERAGE);
+        }
+        if (snapshotGraph != null) {
+            // the travel time calculator uses its last time bin for all times after its max time
+            double snapshotEndTime = Math.max(time, Math.min(time + this.travelCostSnapshotHorizon, snapshotMaxTime));
+            TravelCostSnapshot snapshot = NetworkSkimMatrices.createTravelCostSnapshot(snapshotGraph, tt, td, time, snapshotEndTime, snapshotBinSize);
+            return NetworkSkimMatrices.calculateSkimMatrices(
+                    xy2linksNetwork, carNetwork, snapshot, zonesById, coordsPerZone, time, this.numberOfThreads,
+                    NetworkSkimMatrices.PointAggregation.AVERAGE);
+        }
+        return NetworkSkimMatrices.calculateSkimMatrices(
+                xy2linksNetwork, carNetwork, zonesById, coordsPerZone, time, tt, td, this.numberOfThreads,
+                NetworkSkimMatrices.PointAggregation.AVERAGE, routingAlgorithm);
     }
 
     private Network extractXy2LinksNetwork(Network network, Predicate<Link> xy2linksPredicate) {
@@ -360,15 +471,24 @@ public class CalculateSkimMatrices {
                 raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, this.numberOfThreads, trainDetector);
 
         log.info("write PT matrices to " + outputDirectory + (prefix.isEmpty() ? "" : (" with prefix " + prefix)));
-        FloatMatrixIO.writeAsCSV(matrices.adaptionTimeMatrix, outputDirectory + "/" + prefix + PT_ADAPTIONTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.frequencyMatrix, outputDirectory + "/" + prefix + PT_FREQUENCIES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.distanceMatrix, outputDirectory + "/" + prefix + PT_DISTANCES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.travelTimeMatrix, outputDirectory + "/" + prefix + PT_TRAVELTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.accessTimeMatrix, outputDirectory + "/" + prefix + PT_ACCESSTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.egressTimeMatrix, outputDirectory + "/" + prefix + PT_EGRESSTIMES_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.transferCountMatrix, outputDirectory + "/" + prefix + PT_TRANSFERCOUNTS_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.trainTravelTimeShareMatrix, outputDirectory + "/" + prefix + PT_TRAINSHARE_BYTIME_FILENAME);
-        FloatMatrixIO.writeAsCSV(matrices.trainDistanceShareMatrix, outputDirectory + "/" + prefix + PT_TRAINSHARE_BYDISTANCE_FILENAME);
+        writeMatrix(matrices.adaptionTimeMatrix, prefix, PT_ADAPTIONTIMES_FILENAME);
+        writeMatrix(matrices.frequencyMatrix, prefix, PT_FREQUENCIES_FILENAME);
+        writeMatrix(matrices.distanceMatrix, prefix, PT_DISTANCES_FILENAME);
+        writeMatrix(matrices.travelTimeMatrix, prefix, PT_TRAVELTIMES_FILENAME);
+        writeMatrix(matrices.accessTimeMatrix, prefix, PT_ACCESSTIMES_FILENAME);
+        writeMatrix(matrices.egressTimeMatrix, prefix, PT_EGRESSTIMES_FILENAME);
+        writeMatrix(matrices.transferCountMatrix, prefix, PT_TRANSFERCOUNTS_FILENAME);
+        writeMatrix(matrices.trainTravelTimeShareMatrix, prefix, PT_TRAINSHARE_BYTIME_FILENAME);
+        writeMatrix(matrices.trainDistanceShareMatrix, prefix, PT_TRAINSHARE_BYDISTANCE_FILENAME);
+    }
+
+    private void writeMatrix(FloatMatrix<String> matrix, String prefix, String filename) throws IOException {
+        FloatMatrixIO.writeAsCSV(matrix, this.outputDirectory + "/" + prefix + filename, this.numberOfThreads);
+        ValueEncoding encoding = this.binaryOutputEncodings.get(filename);
+        if (encoding != null) {
+            String binaryFilename = filename.substring(0, filename.length() - CSV_EXTENSION.length()) + BINARY_EXTENSION;
+            FloatMatrixIO.writeAsBinary(matrix, this.outputDirectory + "/" + prefix + binaryFilename, encoding);
+        }
     }
 
     private static <T> void combineMatrices(FloatMatrix<T> matrix1, FloatMatrix<T> matrix2) {
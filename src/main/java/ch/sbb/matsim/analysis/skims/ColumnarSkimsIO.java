@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.matsim.api.core.v01.Coord;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads the combined data of multiple matrices in a columnar binary format, as an alternative to
+ * the huge csv file written by {@link MatricesToXY}. Each zone id and coordinate is only stored once, and every
+ * indicator is stored as a separate column of raw floats, so single indicators can be read without reading
+ * (or even parsing) the rest of the file.
+ *
+ * All numbers are stored in little-endian byte order:
+ * <ul>
+ *     <li>magic number <code>XYCL</code> (4 bytes)</li>
+ *     <li>format version (int)</li>
+ *     <li>number of zones n (int)</li>
+ *     <li>number of columns k (int)</li>
+ *     <li>length of the zone and column tables in bytes (int)</li>
+ *     <li>zone table: for each zone, the length of the zone id (int) followed by the UTF-8 encoded zone id</li>
+ *     <li>column table: for each column, the length of the name (int) followed by the UTF-8 encoded name</li>
+ *     <li>padding with zero bytes to the next multiple of 8 bytes</li>
+ *     <li>n x-coordinates (double), in the order of the zone table</li>
+ *     <li>n y-coordinates (double), in the order of the zone table</li>
+ *     <li>k columns with n * n values (float) each. The value for the relation from zone <code>i</code> to zone
+ *     <code>j</code> (indices in the zone table) is stored at position <code>i * n + j</code> of the column.</li>
+ * </ul>
+ * The zone ids are thus dictionary-encoded: the from- and to-zone of a value are given implicitly by its position.
+ *
+ * @author mrieser / SBB
+ */
+public final class ColumnarSkimsIO {
+
+    private final static int MAGIC = 0x4c435958; // "XYCL" in little-endian byte order
+    private final static int VERSION = 1;
+    private final static int BUFFER_SIZE = 1 << 20;
+
+    private ColumnarSkimsIO() {
+    }
+
+    /**
+     * Writes the layers of the cube as columns. Only the zones with a coordinate are written.
+     *
+     * @param columnNames the name of each layer of the cube
+     */
+    public static <T> void write(SkimCube<T> cube, String[] columnNames, Map<T, Coord> coords, String filename) throws IOException {
+        if (columnNames.length != cube.getLayerCount()) {
+            throw new IllegalArgumentException("Expected " + cube.getLayerCount() + " column names, got " + columnNames.length);
+        }
+        FloatMatrix<T> firstLayer = cube.getLayer(0);
+        List<T> zones = new ArrayList<>();
+        int[] zoneIndices = new int[firstLayer.getZoneCount()];
+        for (int index = 0; index < firstLayer.getZoneCount(); index++) {
+            T zoneId = firstLayer.getZone(index);
+            if (coords.containsKey(zoneId)) {
+                zoneIndices[zones.size()] = index;
+                zones.add(zoneId);
+            }
+        }
+        int zoneCount = zones.size();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, createHeader(zones, columnNames));
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int axis = 0; axis < 2; axis++) {
+                for (T zoneId : zones) {
+                    if (buffer.remaining() < Double.BYTES) {
+                        flush(channel, buffer);
+                    }
+                    Coord coord = coords.get(zoneId);
+                    buffer.putDouble(axis == 0 ? coord.getX() : coord.getY());
+                }
+            }
+
+            float[] rowValues = new float[firstLayer.getZoneCount()];
+            for (int layer = 0; layer < columnNames.length; layer++) {
+                FloatMatrix<T> matrix = cube.getLayer(layer);
+                for (int from = 0; from < zoneCount; from++) {
+                    matrix.getRow(zoneIndices[from]).copyTo(rowValues);
+                    for (int to = 0; to < zoneCount; to++) {
+                        if (buffer.remaining() < Float.BYTES) {
+                            flush(channel, buffer);
+                        }
+                        buffer.putFloat(rowValues[zoneIndices[to]]);
+                    }
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Opens a file in the columnar format. The zone ids and coordinates are read immediately,
+     * the columns are only mapped into memory when they are requested.
+     */
+    public static <T> Columns<T> open(String filename, FloatMatrixIO.IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(5 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, start);
+            int magic = start.getInt(0);
+            if (magic != MAGIC) {
+                throw new IOException("Not a columnar skims file, unexpected magic number " + Integer.toHexString(magic));
+            }
+            int version = start.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar skims version " + version);
+            }
+            int zoneCount = start.getInt(8);
+            int columnCount = start.getInt(12);
+            int tableLength = start.getInt(16);
+
+            ByteBuffer table = ByteBuffer.allocate(getHeaderLength(tableLength) - start.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, table);
+            table.flip();
+            List<T> zones = new ArrayList<>(zoneCount);
+            for (int i = 0; i < zoneCount; i++) {
+                zones.add(idConverter.parse(readString(table)));
+            }
+            List<String> columnNames = new ArrayList<>(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                columnNames.add(readString(table));
+            }
+
+            ByteBuffer coordBuffer = ByteBuffer.allocate(2 * zoneCount * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, coordBuffer);
+            coordBuffer.flip();
+            Coord[] coords = new Coord[zoneCount];
+            for (int i = 0; i < zoneCount; i++) {
+                coords[i] = new Coord(coordBuffer.getDouble(i * Double.BYTES), coordBuffer.getDouble((zoneCount + i) * Double.BYTES));
+            }
+
+            long dataStart = channel.position();
+            long columnLength = (long) zoneCount * zoneCount * Float.BYTES;
+            long expectedSize = dataStart + columnCount * columnLength;
+            if (channel.size() != expectedSize) {
+                throw new IOException("Unexpected size of " + filename + ": " + channel.size() + " bytes, expected " + expectedSize);
+            }
+            return new Columns<>(filename, zones, coords, columnNames, dataStart);
+        }
+    }
+
+    /**
+     * The content of a columnar skims file. Zone indices refer to the order of the zones in the file.
+     */
+    public static final class Columns<T> {
+        private final String filename;
+        private final Map<T, Integer> id2index;
+        private final List<T> index2id;
+        private final Coord[] coords;
+        private final List<String> columnNames;
+        private final long dataStart;
+
+        private Columns(String filename, List<T> zones, Coord[] coords, List<String> columnNames, long dataStart) throws IOException {
+            this.filename = filename;
+            this.id2index = FloatMatrix.createIndex(zones);
+            if (this.id2index.size() != zones.size()) {
+                throw new IOException("The zone ids in " + filename + " are not unique.");
+            }
+            this.index2id = Collections.unmodifiableList(zones);
+            this.coords = coords;
+            this.columnNames = Collections.unmodifiableList(columnNames);
+            this.dataStart = dataStart;
+        }
+
+        public List<T> getZones() {
+            return this.index2id;
+        }
+
+        public Coord getCoord(int zoneIndex) {
+            return this.coords[zoneIndex];
+        }
+
+        public Coord getCoord(T zoneId) {
+            Integer index = this.id2index.get(zoneId);
+            return index == null ? null : this.coords[index];
+        }
+
+        public List<String> getColumnNames() {
+            return this.columnNames;
+        }
+
+        /**
+         * Maps the column with the given name into memory and returns it as a read-only matrix. The values are
+         * only loaded by the operating system when they are accessed.
+         */
+        public FloatMatrix<T> getColumn(String columnName) throws IOException {
+            int column = this.columnNames.indexOf(columnName);
+            if (column < 0) {
+                throw new IllegalArgumentException("Unknown column " + columnName + " in " + this.filename);
+            }
+            long cellCount = (long) this.index2id.size() * this.index2id.size();
+            try (FileChannel channel = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ)) {
+                FloatStorage storage = FloatStorage.Segmented.map(channel, FileChannel.MapMode.READ_ONLY, this.dataStart + column * cellCount * Float.BYTES, cellCount);
+                return new FloatMatrix<>(this.id2index, this.index2id, storage);
+            }
+        }
+    }
+
+    private static <T> ByteBuffer createHeader(List<T> zones, String[] columnNames) {
+        List<byte[]> encoded = new ArrayList<>(zones.size() + columnNames.length);
+        for (T zoneId : zones) {
+            encoded.add(zoneId.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (String columnName : columnNames) {
+            encoded.add(columnName.getBytes(StandardCharsets.UTF_8));
+        }
+        int tableLength = 0;
+        for (byte[] bytes : encoded) {
+            tableLength += Integer.BYTES + bytes.length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(getHeaderLength(tableLength)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(zones.size());
+        header.putInt(columnNames.length);
+        header.putInt(tableLength);
+        for (byte[] bytes : encoded) {
+            header.putInt(bytes.length);
+            header.put(bytes);
+        }
+        header.clear(); // the padding is already zero-filled
+        return header;
+    }
+
+    private static int getHeaderLength(int tableLength) {
+        int length = 5 * Integer.BYTES + tableLength;
+        return (length + 7) & ~7;
+    }
+
+    private static String readString(ByteBuffer table) {
+        int length = table.getInt();
+        String value = new String(table.array(), table.position(), length, StandardCharsets.UTF_8);
+        table.position(table.position() + length);
+        return value;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of columnar skims file.");
+            }
+        }
+    }
+}
@@ -4,8 +4,10 @@
 
 package ch.sbb.matsim.analysis.skims;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -36,42 +38,134 @@ import java.util.Set;
  *
  * For larger matrices the absolute volumes become even more impressive. For an 8000x8000 matrix,
  * the float array will use 250MB, while the alternatives will use 4.5 or 6.5 GB respectively.
+ *
+ * A Java array can hold at most 2^31 elements, which limits the matrix to about 46'340 zones. Larger
+ * matrices store their values off-heap in multiple buffers (see {@link FloatStorage}), which can also
+ * be requested explicitly for smaller matrices with {@link StorageType#OFF_HEAP}. Off-heap matrices
+ * do not count towards the maximum heap size of the JVM, but towards its maximum direct memory size,
+ * which defaults to about the maximum heap size. Large off-heap matrices thus usually require
+ * the JVM option <code>-XX:MaxDirectMemorySize</code> (e.g. <code>-XX:MaxDirectMemorySize=20g</code>),
+ * otherwise the allocation fails with <code>OutOfMemoryError: Direct buffer memory</code>.
+ * Their memory is only released once the matrix is garbage collected.
+ *
+ * If a lower precision is sufficient, the values can be stored with 16 bits each, see {@link ValueEncoding}.
+ * Such matrices are not suitable to accumulate values, e.g. sums over many points before they are averaged:
+ * each intermediate sum is rounded, and may exceed the range of the encoding (FLOAT16 sums above 65504 become
+ * infinity, scaled sums are clamped). Accumulate in a 32-bit matrix instead and apply the encoding afterwards,
+ * e.g. with {@link FloatMatrixIO#writeAsBinary(FloatMatrix, String, ValueEncoding)}.
+ *
+ * Each access by zone identifiers requires two look-ups of the zone indices. Code accessing many cells,
+ * e.g. when calculating a full matrix, should resolve the zones to indices once using {@link #getIndex(Object)}
+ * and then access the cells by index, either using the <code>*ByIndex</code> methods or a {@link Row}.
+ *
+ * If only a small part of each row contains values different from a common default value, e.g. for skims
+ * limited to a short distance around each zone, {@link SparseFloatMatrix} needs much less memory.
  */
-public class FloatMatrix<T> {
+public class FloatMatrix<T> implements ZoneMatrix<T> {
+
+    public enum StorageType { HEAP, OFF_HEAP }
+
+    private static final long MAX_HEAP_SIZE = Integer.MAX_VALUE - 8; // some VMs cannot allocate arrays up to Integer.MAX_VALUE
 
     final Map<T, Integer> id2index;
-    private final int size;
-    private final float[] data;
+    private final List<T> index2id;
+    final int size;
+    final FloatStorage storage;
 
+    /**
+     * Creates a matrix stored on the heap if possible, or off-heap if it contains too many cells for a Java array.
+     */
     public FloatMatrix(Set<T> zones, float defaultValue) {
-        this.size = zones.size();
-        this.id2index = new HashMap<>((int) (this.size * 1.5));
-        this.data = new float[this.size * this.size];
-        Arrays.fill(this.data, defaultValue);
+        this(zones, defaultValue, getDefaultStorageType((long) zones.size() * zones.size()));
+    }
+
+    public FloatMatrix(Set<T> zones, float defaultValue, StorageType storageType) {
+        this(zones, defaultValue, storageType, ValueEncoding.FLOAT32);
+    }
+
+    /**
+     * Creates a matrix storing its values with the given encoding, e.g. with 16 bits per value to save memory.
+     */
+    public FloatMatrix(Set<T> zones, float defaultValue, ValueEncoding encoding) {
+        this(zones, defaultValue, getDefaultStorageType((long) zones.size() * zones.size()), encoding);
+    }
+
+    public FloatMatrix(Set<T> zones, float defaultValue, StorageType storageType, ValueEncoding encoding) {
+        this(zones, createStorage((long) zones.size() * zones.size(), storageType, encoding));
+        if (defaultValue != 0.0f || encoding.getType() != ValueEncoding.Type.FLOAT32) { // float storages are initialized with 0
+            this.storage.fill(defaultValue);
+        }
+    }
+
+    FloatMatrix(Set<T> zones, FloatStorage storage) {
+        this(createIndex(zones), new ArrayList<>(zones), storage);
+    }
+
+    /**
+     * Creates a matrix using an existing zone index, e.g. to share it between multiple matrices.
+     */
+    FloatMatrix(Map<T, Integer> id2index, List<T> index2id, FloatStorage storage) {
+        this.size = index2id.size();
+        this.id2index = id2index;
+        this.index2id = index2id;
+        this.storage = storage;
+    }
+
+    static <T> Map<T, Integer> createIndex(Collection<T> zones) {
+        Map<T, Integer> id2index = new HashMap<>((int) (zones.size() * 1.5));
         int index = 0;
         for (T t : zones) {
-            this.id2index.put(t, index);
+            id2index.put(t, index);
             index++;
         }
+        return id2index;
+    }
+
+    static StorageType getDefaultStorageType(long size) {
+        return size > MAX_HEAP_SIZE ? StorageType.OFF_HEAP : StorageType.HEAP;
+    }
+
+    static FloatStorage createStorage(long size, StorageType storageType) {
+        return createStorage(size, storageType, ValueEncoding.FLOAT32);
+    }
+
+    static FloatStorage createStorage(long size, StorageType storageType, ValueEncoding encoding) {
+        if (encoding.getType() != ValueEncoding.Type.FLOAT32) {
+            // the 16-bit storage uses multiple arrays also on the heap, so it has no size limit
+            return FloatStorage.Encoded16.allocate(size, encoding, storageType == StorageType.OFF_HEAP);
+        }
+        if (storageType == StorageType.HEAP) {
+            if (size > MAX_HEAP_SIZE) {
+                throw new IllegalArgumentException("The matrix has too many cells to be stored on the heap: " + size);
+            }
+            return new FloatStorage.Heap(size);
+        }
+        return FloatStorage.Segmented.allocateDirect(size);
     }
 
     public float set(T from, T to, float value) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
-        this.data[index] = value;
+        long index = getIndex(from, to);
+        float oldValue = this.storage.get(index);
+        this.storage.set(index, value);
         return oldValue;
     }
 
+    @Override
     public float get(T from, T to) {
-        int index = getIndex(from, to);
-        return this.data[index];
+        long index = getIndex(from, to);
+        return this.storage.get(index);
     }
 
+    /**
+     * Adds the value to the cell. With a 16-bit encoding, the sum is rounded and limited to the range of the encoding.
+     *
+     * @return the new value
+     */
     public float add(T from, T to, float value) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
+        long index = getIndex(from, to);
+        float oldValue = this.storage.get(index);
         float newValue = oldValue + value;
-        this.data[index] = newValue;
+        this.storage.set(index, newValue);
         return newValue;
     }
 
@@ -82,10 +176,10 @@ public class FloatMatrix<T> {
      * @return the new value
      */
     public float multiply(T from, T to, float factor) {
-        int index = getIndex(from, to);
-        float oldValue = this.data[index];
+        long index = getIndex(from, to);
+        float oldValue = this.storage.get(index);
         float newValue = oldValue * factor;
-        this.data[index] = newValue;
+        this.storage.set(index, newValue);
         return newValue;
     }
 
@@ -95,14 +189,151 @@ public class FloatMatrix<T> {
      * @param factor the multiplication factor
      */
     public void multiply(float factor) {
-        for (int i = 0; i < this.data.length; i++) {
-            this.data[i] *= factor;
-        }
+        this.storage.multiply(factor);
+    }
+
+    /**
+     * @return the encoding used to store the values. Values set in the matrix are rounded to the precision of the encoding.
+     */
+    public ValueEncoding getEncoding() {
+        return this.storage.getEncoding();
+    }
+
+    /**
+     * @return the number of zones, i.e. the number of rows and columns of the matrix.
+     */
+    @Override
+    public int getZoneCount() {
+        return this.size;
+    }
+
+    /**
+     * @return the index of the zone's row and column, or -1 if the zone is not part of this matrix.
+     */
+    @Override
+    public int getIndex(T zone) {
+        Integer index = this.id2index.get(zone);
+        return index == null ? -1 : index;
+    }
+
+    @Override
+    public T getZone(int index) {
+        return this.index2id.get(index);
+    }
+
+    @Override
+    public float getByIndex(int fromIndex, int toIndex) {
+        return this.storage.get(getIndex(fromIndex, toIndex));
+    }
+
+    public float setByIndex(int fromIndex, int toIndex, float value) {
+        long index = getIndex(fromIndex, toIndex);
+        float oldValue = this.storage.get(index);
+        this.storage.set(index, value);
+        return oldValue;
+    }
+
+    public float addByIndex(int fromIndex, int toIndex, float value) {
+        long index = getIndex(fromIndex, toIndex);
+        float newValue = this.storage.get(index) + value;
+        this.storage.set(index, newValue);
+        return newValue;
+    }
+
+    public float multiplyByIndex(int fromIndex, int toIndex, float factor) {
+        long index = getIndex(fromIndex, toIndex);
+        float newValue = this.storage.get(index) * factor;
+        this.storage.set(index, newValue);
+        return newValue;
+    }
+
+    /**
+     * @return a view on the row of the given zone index. Changes to the row are directly applied to the matrix.
+     */
+    public Row getRow(int fromIndex) {
+        return new Row(this.storage, (long) fromIndex * this.size, this.size);
     }
 
-    private int getIndex(T from, T to) {
+    private long getIndex(T from, T to) {
         int fromIndex = this.id2index.get(from);
         int toIndex = this.id2index.get(to);
-        return fromIndex * this.size + toIndex;
+        return (long) fromIndex * this.size + toIndex;
+    }
+
+    private long getIndex(int fromIndex, int toIndex) {
+        return (long) fromIndex * this.size + toIndex;
+    }
+
+    /**
+     * A single row of a matrix, accessed by the index of the destination zone.
+     *
+     * If the matrix is stored in a heap array (also as a layer of a {@link SkimCube}), the row accesses the
+     * cells directly in that array, using only int arithmetic. This makes it the fastest way to process
+     * all cells of a row, e.g. in the inner loops of the skim calculations.
+     */
+    public static final class Row {
+        private final FloatStorage storage;
+        private final long offset;
+        private final int size;
+        private final float[] array; // null if the values are not stored in a heap array
+        private final int arrayOffset;
+        private final int arrayStride;
+
+        Row(FloatStorage storage, long offset, int size) {
+            this.storage = storage;
+            this.offset = offset;
+            this.size = size;
+            this.array = storage.array();
+            this.arrayOffset = this.array == null ? 0 : (int) storage.arrayIndex(offset);
+            this.arrayStride = this.array == null ? 0 : storage.arrayStride();
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public float get(int toIndex) {
+            if (this.array != null) {
+                return this.array[this.arrayOffset + toIndex * this.arrayStride];
+            }
+            return this.storage.get(this.offset + toIndex);
+        }
+
+        public void set(int toIndex, float value) {
+            if (this.array != null) {
+                this.array[this.arrayOffset + toIndex * this.arrayStride] = value;
+            } else {
+                this.storage.set(this.offset + toIndex, value);
+            }
+        }
+
+        public float add(int toIndex, float value) {
+            if (this.array != null) {
+                int index = this.arrayOffset + toIndex * this.arrayStride;
+                float newValue = this.array[index] + value;
+                this.array[index] = newValue;
+                return newValue;
+            }
+            long index = this.offset + toIndex;
+            float newValue = this.storage.get(index) + value;
+            this.storage.set(index, newValue);
+            return newValue;
+        }
+
+        /**
+         * Sets all cells of the row to the given value.
+         */
+        public void fill(float value) {
+            for (int i = 0; i < this.size; i++) {
+                set(i, value);
+            }
+        }
+
+        /**
+         * Copies the values of the row into the given array, which must have at least the size of the row.
+         */
+        public void copyTo(float[] values) {
+            this.storage.get(this.offset, values, 0, this.size);
+        }
     }
 }
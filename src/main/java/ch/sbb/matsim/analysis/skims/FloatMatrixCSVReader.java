@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads matrices in the CSV format written by {@link FloatMatrixIO} using multiple threads.
+ *
+ * The calling thread reads the (already decompressed) input in large chunks, each ending at a line break,
+ * and hands them to worker threads which parse the lines and store the values in the matrix. The workers
+ * parse the bytes directly without creating Strings: each worker caches the zone ids it has seen together
+ * with their matrix index, and the values are parsed directly from the bytes for all typical numbers
+ * (see {@link #parseFloat(byte[], int, int)}). As each line describes a different cell, the order in which
+ * the lines are processed does not matter.
+ *
+ * @author mrieser / SBB
+ */
+final class FloatMatrixCSVReader<T> {
+
+    private final static int CHUNK_SIZE = 1 << 20;
+    private final static byte SEP = ';';
+    private final static byte NL = '\n';
+    private final static Chunk END = new Chunk(0);
+
+    private final FloatMatrix<T> matrix;
+    private final FloatMatrixIO.IdConverter<T> idConverter;
+    private final int numberOfThreads;
+
+    private final BlockingQueue<Chunk> freeChunks;
+    private final BlockingQueue<Chunk> filledChunks;
+    private volatile Throwable exception = null;
+
+    FloatMatrixCSVReader(FloatMatrix<T> matrix, FloatMatrixIO.IdConverter<T> idConverter, int numberOfThreads) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("numberOfThreads must be at least 1, but is " + numberOfThreads);
+        }
+        this.matrix = matrix;
+        this.idConverter = idConverter;
+        this.numberOfThreads = numberOfThreads;
+        int chunkCount = 2 * numberOfThreads;
+        this.freeChunks = new ArrayBlockingQueue<>(chunkCount);
+        this.filledChunks = new ArrayBlockingQueue<>(chunkCount + numberOfThreads);
+        for (int i = 0; i < chunkCount; i++) {
+            this.freeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Reads the header line and all values from the stream.
+     */
+    void read(InputStream stream, String expectedHeader) throws IOException {
+        readHeader(stream, expectedHeader);
+
+        Thread[] threads = new Thread[this.numberOfThreads];
+        for (int i = 0; i < this.numberOfThreads; i++) {
+            threads[i] = new Thread(new ParseWorker(), "FloatMatrixCSVReader-" + i);
+            threads[i].start();
+        }
+
+        try {
+            readChunks(stream);
+        } finally {
+            for (int i = 0; i < this.numberOfThreads; i++) {
+                putUninterruptibly(this.filledChunks, END);
+            }
+            // wait until all threads have finished
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (this.exception != null) {
+            if (this.exception instanceof IOException) {
+                throw (IOException) this.exception;
+            }
+            throw new IOException("Failed to parse matrix.", this.exception);
+        }
+    }
+
+    private void readHeader(InputStream stream, String expectedHeader) throws IOException {
+        byte[] line = new byte[256];
+        int length = 0;
+        int b;
+        while ((b = stream.read()) >= 0 && b != NL) {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = (byte) b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        String header = b < 0 && length == 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+        if (!expectedHeader.equals(header)) {
+            throw new IOException("Expected header '" + expectedHeader + "' but found '" + header + "'.");
+        }
+    }
+
+    private void readChunks(InputStream stream) throws IOException {
+        byte[] remainder = new byte[0];
+        int remainderLength = 0;
+        boolean eof = false;
+        while (!eof && this.exception == null) {
+            Chunk chunk = takeUninterruptibly(this.freeChunks);
+            if (chunk.data.length <= remainderLength) {
+                // a line longer than the chunk, enlarge it
+                chunk.data = new byte[remainderLength * 2];
+            }
+            System.arraycopy(remainder, 0, chunk.data, 0, remainderLength);
+            int length = remainderLength;
+            while (length < chunk.data.length) {
+                int count = stream.read(chunk.data, length, chunk.data.length - length);
+                if (count < 0) {
+                    eof = true;
+                    break;
+                }
+                length += count;
+            }
+
+            // the chunk must only contain complete lines, keep the rest for the next chunk
+            int end = length;
+            if (!eof) {
+                while (end > 0 && chunk.data[end - 1] != NL) {
+                    end--;
+                }
+                if (end == 0) {
+                    // not even one complete line, retry with a larger chunk
+                    remainder = Arrays.copyOf(chunk.data, length);
+                    remainderLength = length;
+                    putUninterruptibly(this.freeChunks, chunk);
+                    continue;
+                }
+            }
+            remainderLength = length - end;
+            if (remainder.length < remainderLength) {
+                remainder = new byte[Math.max(remainderLength, CHUNK_SIZE)];
+            }
+            System.arraycopy(chunk.data, end, remainder, 0, remainderLength);
+            chunk.length = end;
+            putUninterruptibly(this.filledChunks, chunk);
+        }
+    }
+
+    private class ParseWorker implements Runnable {
+        private final ZoneIdCache zoneIds = new ZoneIdCache(FloatMatrixCSVReader.this.matrix.size);
+
+        public void run() {
+            while (true) {
+                Chunk chunk = takeUninterruptibly(FloatMatrixCSVReader.this.filledChunks);
+                if (chunk == END) {
+                    return;
+                }
+                try {
+                    if (FloatMatrixCSVReader.this.exception == null) {
+                        parseChunk(chunk);
+                    }
+                } catch (Throwable t) {
+                    // also catch errors (e.g. OutOfMemoryError), so the worker keeps returning chunks until the end
+                    FloatMatrixCSVReader.this.exception = t;
+                } finally {
+                    putUninterruptibly(FloatMatrixCSVReader.this.freeChunks, chunk);
+                }
+            }
+        }
+
+        private void parseChunk(Chunk chunk) throws IOException {
+            byte[] data = chunk.data;
+            int pos = 0;
+            while (pos < chunk.length) {
+                int lineEnd = pos;
+                while (lineEnd < chunk.length && data[lineEnd] != NL) {
+                    lineEnd++;
+                }
+                int end = lineEnd;
+                if (end > pos && data[end - 1] == '\r') {
+                    end--;
+                }
+                if (end > pos) {
+                    parseLine(data, pos, end);
+                }
+                pos = lineEnd + 1;
+            }
+        }
+
+        private void parseLine(byte[] data, int start, int end) throws IOException {
+            int sep1 = indexOf(data, start, end, SEP);
+            int sep2 = sep1 < 0 ? -1 : indexOf(data, sep1 + 1, end, SEP);
+            if (sep2 < 0) {
+                throw new IOException("Invalid line: " + new String(data, start, end - start, StandardCharsets.UTF_8));
+            }
+            int fromIndex = getZoneIndex(data, start, sep1);
+            int toIndex = getZoneIndex(data, sep1 + 1, sep2);
+            int valueEnd = indexOf(data, sep2 + 1, end, SEP); // ignore additional columns, like String.split() in the single-threaded reader
+            float value = parseFloat(data, sep2 + 1, valueEnd < 0 ? end : valueEnd);
+            FloatMatrix<T> matrix = FloatMatrixCSVReader.this.matrix;
+            matrix.storage.set((long) fromIndex * matrix.size + toIndex, value);
+        }
+
+        private int getZoneIndex(byte[] data, int start, int end) throws IOException {
+            int index = this.zoneIds.get(data, start, end);
+            if (index < 0) {
+                String id = new String(data, start, end - start, StandardCharsets.UTF_8);
+                T zoneId = FloatMatrixCSVReader.this.idConverter.parse(id);
+                index = FloatMatrixCSVReader.this.matrix.getIndex(zoneId);
+                if (index < 0) {
+                    throw new IOException("Zone " + zoneId + " is not part of the matrix.");
+                }
+                this.zoneIds.put(data, start, end, index);
+            }
+            return index;
+        }
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final static long MAX_EXACT_DIGITS = 1 << 24;
+    private final static double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10 };
+
+    /**
+     * Parses a float value without creating a String for the common cases, i.e. numbers with less than
+     * 2^24 as significant digits and a decimal exponent of at most 10, as written by {@link Float#toString(float)}
+     * for most values. In this case, the digits and the power of ten are both exactly representable as float,
+     * and a single multiplication or division in double precision followed by rounding to float gives the correctly
+     * rounded result, the same as {@link Float#parseFloat(String)}. All other numbers, including "Infinity" and "NaN",
+     * are parsed using {@link Float#parseFloat(String)}.
+     */
+    static float parseFloat(byte[] data, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (data[pos] == '-' || data[pos] == '+')) {
+            negative = data[pos] == '-';
+            pos++;
+        }
+        long digits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean inFraction = false;
+        for (; pos < end; pos++) {
+            byte b = data[pos];
+            if (b >= '0' && b <= '9') {
+                hasDigits = true;
+                digits = digits * 10 + (b - '0');
+                if (inFraction) {
+                    exponent--;
+                }
+                if (digits >= MAX_EXACT_DIGITS) {
+                    return parseFloatSlow(data, start, end);
+                }
+            } else if (b == '.' && !inFraction) {
+                inFraction = true;
+            } else {
+                break;
+            }
+        }
+        if (pos < end && (data[pos] == 'E' || data[pos] == 'e') && hasDigits) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (data[pos] == '-' || data[pos] == '+')) {
+                negativeExponent = data[pos] == '-';
+                pos++;
+            }
+            int exp = 0;
+            int expStart = pos;
+            for (; pos < end && data[pos] >= '0' && data[pos] <= '9' && exp < 1000; pos++) {
+                exp = exp * 10 + (data[pos] - '0');
+            }
+            if (pos == expStart) {
+                return parseFloatSlow(data, start, end);
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+        if (pos != end || !hasDigits) {
+            return parseFloatSlow(data, start, end);
+        }
+        double value;
+        if (digits == 0) {
+            value = 0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = digits * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = digits / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseFloatSlow(data, start, end);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private static float parseFloatSlow(byte[] data, int start, int end) {
+        return Float.parseFloat(new String(data, start, end - start, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Maps the bytes of a zone id to the matrix index, using open addressing with linear probing.
+     */
+    private static final class ZoneIdCache {
+        private final byte[][] keys;
+        private final int[] values;
+        private final int mask;
+
+        ZoneIdCache(int zoneCount) {
+            int capacity = Integer.highestOneBit(Math.max(16, zoneCount * 2) - 1) << 1;
+            this.keys = new byte[capacity][];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+        }
+
+        int get(byte[] data, int start, int end) {
+            int slot = hash(data, start, end) & this.mask;
+            while (true) {
+                byte[] key = this.keys[slot];
+                if (key == null) {
+                    return -1;
+                }
+                if (equals(key, data, start, end)) {
+                    return this.values[slot];
+                }
+                slot = (slot + 1) & this.mask;
+            }
+        }
+
+        void put(byte[] data, int start, int end, int value) {
+            int slot = hash(data, start, end) & this.mask;
+            while (this.keys[slot] != null) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.keys[slot] = Arrays.copyOfRange(data, start, end);
+            this.values[slot] = value;
+        }
+
+        private static int hash(byte[] data, int start, int end) {
+            int h = 1;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + data[i];
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean equals(byte[] key, byte[] data, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != data[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Chunk {
+        byte[] data;
+        int length;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private static <E> E takeUninterruptibly(BlockingQueue<E> queue) {
+        while (true) {
+            try {
+                return queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private static <E> void putUninterruptibly(BlockingQueue<E> queue, E element) {
+        while (true) {
+            try {
+                queue.put(element);
+                return;
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
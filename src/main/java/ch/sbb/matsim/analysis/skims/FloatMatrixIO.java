@@ -7,10 +7,49 @@ package ch.sbb.matsim.analysis.skims;
 import org.matsim.core.utils.io.IOUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
- * Helper methods to write and read matrices as CSV files (well, actually semi-colon separated files).
+ * Helper methods to write and read matrices as CSV files (well, actually semi-colon separated files)
+ * or in a binary format.
+ *
+ * The binary format stores all values as raw floats or 16-bit codes (see {@link ValueEncoding}), so no
+ * formatting or parsing of numbers is required. All numbers are stored in little-endian byte order:
+ * <ul>
+ *     <li>magic number <code>FMTX</code> (4 bytes)</li>
+ *     <li>format version (int), currently 2</li>
+ *     <li>number of zones n (int)</li>
+ *     <li>length of the zone table in bytes (int)</li>
+ *     <li>value encoding (int): 0 = float, 1 = half-precision float, 2 = scaled unsigned short</li>
+ *     <li>offset of the scaled encoding (float)</li>
+ *     <li>scale of the scaled encoding (float)</li>
+ *     <li>reserved (int, 0)</li>
+ *     <li>zone table: for each zone, the length of the zone id (int) followed by the UTF-8 encoded zone id</li>
+ *     <li>padding with zero bytes to the next multiple of 8 bytes</li>
+ *     <li>n * n values (float or short, depending on the encoding), row by row in the order of the zone table</li>
+ *     <li>CRC32 checksum of all preceding bytes (int)</li>
+ * </ul>
+ * Files of version 1 have no encoding fields and always store floats, they can still be read.
+ * The values are read using memory-mapped buffers, so large matrices can be loaded without copying
+ * them through intermediate buffers. With {@link #openAsBinary(String, IdConverter)}, the mapped file
+ * is directly used as storage of the matrix.
+ *
+ * A {@link SparseFloatMatrix} can be written as CSV like any other matrix, or in a similar binary format
+ * storing only its non-default cells (see {@link #writeAsBinary(SparseFloatMatrix, String)}).
  *
  * @author mrieser / SBB
  */
@@ -20,34 +59,101 @@ public final class FloatMatrixIO {
     private final static String HEADER = "FROM" + SEP + "TO" + SEP + "VALUE";
     private final static String NL = "\n";
 
-    public static <T> void writeAsCSV(FloatMatrix<T> matrix, String filename) throws IOException {
+    private final static int CSV_CELLS_PER_BLOCK = 1 << 16;
+
+    private final static int BINARY_MAGIC = 0x58544d46; // "FMTX" in little-endian byte order
+    private final static int SPARSE_BINARY_MAGIC = 0x4d505346; // "FSPM" in little-endian byte order
+    private final static int BINARY_VERSION = 2;
+    private final static int BINARY_BUFFER_SIZE = 1 << 20;
+    private final static long MAX_MAPPED_SEGMENT_SIZE = 1 << 30;
+
+    public static <T> void writeAsCSV(ZoneMatrix<T> matrix, String filename) throws IOException {
         try (BufferedWriter writer = IOUtils.getBufferedWriter(filename)) {
             writeCSV(matrix, writer);
         }
     }
 
-    public static <T> void writeAsCSV(FloatMatrix<T> matrix, OutputStream stream) throws IOException {
+    /**
+     * Writes the matrix as CSV using multiple threads. Blocks of rows are formatted in parallel and written in order.
+     * If the filename ends with <code>.gz</code>, each block is compressed in parallel as a separate gzip member, the
+     * resulting file can be read like any other gzip-compressed file. Other compressions supported by IOUtils are applied
+     * while writing the blocks. The content of the file is the same as when writing it with a single thread.
+     */
+    public static <T> void writeAsCSV(FloatMatrix<T> matrix, String filename, int numberOfThreads) throws IOException {
+        try (OutputStream stream = OrderedBlockWriter.openOutputStream(filename)) {
+            writeCSV(matrix, stream, OrderedBlockWriter.isCompressedByBlocks(filename), numberOfThreads);
+        }
+    }
+
+    public static <T> void writeAsCSV(ZoneMatrix<T> matrix, OutputStream stream) throws IOException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(stream));
         writeCSV(matrix, writer);
     }
 
-    private static <T> void writeCSV(FloatMatrix<T> matrix, BufferedWriter writer) throws IOException {
+    private static <T> void writeCSV(ZoneMatrix<T> matrix, BufferedWriter writer) throws IOException {
         writer.write(HEADER);
         writer.write(NL);
-        T[] zoneIds = getSortedIds(matrix);
-        for (T fromZoneId : zoneIds) {
-            for (T toZoneId : zoneIds) {
-                writer.write(fromZoneId.toString());
+        int zoneCount = matrix.getZoneCount();
+        for (int fromIndex = 0; fromIndex < zoneCount; fromIndex++) {
+            String fromZoneId = matrix.getZone(fromIndex).toString();
+            for (int toIndex = 0; toIndex < zoneCount; toIndex++) {
+                writer.write(fromZoneId);
                 writer.append(SEP);
-                writer.write(toZoneId.toString());
+                writer.write(matrix.getZone(toIndex).toString());
                 writer.append(SEP);
-                writer.write(Float.toString(matrix.get(fromZoneId, toZoneId)));
+                writer.write(Float.toString(matrix.getByIndex(fromIndex, toIndex)));
                 writer.append(NL);
             }
         }
         writer.flush();
     }
 
+    private static <T> void writeCSV(FloatMatrix<T> matrix, OutputStream stream, boolean compress, int numberOfThreads) throws IOException {
+        // pre-encode the zone ids, including the separator
+        byte[][] zoneIds = new byte[matrix.size][];
+        for (int i = 0; i < matrix.size; i++) {
+            zoneIds[i] = (matrix.getZone(i).toString() + SEP).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] header = (HEADER + NL).getBytes(StandardCharsets.UTF_8);
+        int rowsPerBlock = Math.max(1, CSV_CELLS_PER_BLOCK / Math.max(1, matrix.size));
+        int blockCount = (matrix.size + rowsPerBlock - 1) / rowsPerBlock;
+
+        OrderedBlockWriter.write(stream, Math.max(1, blockCount), compress, numberOfThreads, (block, out) -> {
+            byte[] buffer = new byte[1 << 16];
+            int length = 0;
+            if (block == 0) {
+                out.write(header);
+            }
+            int fromRow = block * rowsPerBlock;
+            int toRow = Math.min(matrix.size, fromRow + rowsPerBlock);
+            for (int fromIndex = fromRow; fromIndex < toRow; fromIndex++) {
+                byte[] fromZoneId = zoneIds[fromIndex];
+                FloatMatrix.Row row = matrix.getRow(fromIndex);
+                for (int toIndex = 0; toIndex < matrix.size; toIndex++) {
+                    byte[] toZoneId = zoneIds[toIndex];
+                    String value = Float.toString(row.get(toIndex));
+                    int lineLength = fromZoneId.length + toZoneId.length + value.length() + 1;
+                    if (length + lineLength > buffer.length) {
+                        out.write(buffer, 0, length);
+                        length = 0;
+                        if (lineLength > buffer.length) {
+                            buffer = new byte[lineLength];
+                        }
+                    }
+                    System.arraycopy(fromZoneId, 0, buffer, length, fromZoneId.length);
+                    length += fromZoneId.length;
+                    System.arraycopy(toZoneId, 0, buffer, length, toZoneId.length);
+                    length += toZoneId.length;
+                    for (int i = 0; i < value.length(); i++) {
+                        buffer[length++] = (byte) value.charAt(i); // the formatted float only contains ASCII characters
+                    }
+                    buffer[length++] = '\n';
+                }
+            }
+            out.write(buffer, 0, length);
+        });
+    }
+
     public static <T> void readAsCSV(FloatMatrix<T> matrix, String filename, IdConverter<T> idConverter) throws IOException {
         try (BufferedReader reader = IOUtils.getBufferedReader(filename)) {
             readCSV(matrix, reader, idConverter);
@@ -59,6 +165,45 @@ public final class FloatMatrixIO {
         readCSV(matrix, reader, idConverter);
     }
 
+    /**
+     * Reads the matrix from a CSV file using multiple threads. The file is (if necessary) decompressed by the calling
+     * thread and split into chunks of complete lines, which are parsed in parallel directly from the bytes.
+     * All zones in the file must be part of the matrix.
+     */
+    public static <T> void readAsCSV(FloatMatrix<T> matrix, String filename, IdConverter<T> idConverter, int numberOfThreads) throws IOException {
+        try (InputStream stream = IOUtils.getInputStream(IOUtils.getFileUrl(filename))) {
+            readAsCSV(matrix, stream, idConverter, numberOfThreads);
+        }
+    }
+
+    public static <T> void readAsCSV(FloatMatrix<T> matrix, InputStream stream, IdConverter<T> idConverter, int numberOfThreads) throws IOException {
+        new FloatMatrixCSVReader<>(matrix, idConverter, numberOfThreads).read(stream, HEADER);
+    }
+
+    /**
+     * Reads a matrix from a CSV file as sparse matrix. Only the cells with a value different from the
+     * default value are stored.
+     */
+    public static <T> SparseFloatMatrix<T> readAsSparseCSV(Set<T> zones, float defaultValue, String filename, IdConverter<T> idConverter) throws IOException {
+        SparseFloatMatrix.Builder<T> builder = new SparseFloatMatrix.Builder<>(zones, defaultValue);
+        int defaultBits = Float.floatToIntBits(defaultValue);
+        try (BufferedReader reader = IOUtils.getBufferedReader(filename)) {
+            String header = reader.readLine();
+            if (!HEADER.equals(header)) {
+                throw new IOException("Expected header '" + HEADER + "' but found '" + header + "'.");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(";");
+                float value = Float.parseFloat(parts[2]);
+                if (Float.floatToIntBits(value) != defaultBits) {
+                    builder.set(idConverter.parse(parts[0]), idConverter.parse(parts[1]), value);
+                }
+            }
+        }
+        return builder.build();
+    }
+
     private static <T> void readCSV(FloatMatrix<T> matrix, BufferedReader reader, IdConverter<T> idConverter) throws IOException {
         String header = reader.readLine();
         if (!HEADER.equals(header)) {
@@ -74,6 +219,420 @@ public final class FloatMatrixIO {
         }
     }
 
+    /**
+     * Writes the matrix in the binary format, using the same encoding as the matrix.
+     */
+    public static <T> void writeAsBinary(FloatMatrix<T> matrix, String filename) throws IOException {
+        writeAsBinary(matrix, filename, matrix.getEncoding());
+    }
+
+    /**
+     * Writes the matrix in the binary format, using the given encoding for the values. This allows to store
+     * a matrix with a lower precision than used in memory.
+     */
+    public static <T> void writeAsBinary(FloatMatrix<T> matrix, String filename, ValueEncoding encoding) throws IOException {
+        T[] zoneIds = getSortedIds(matrix);
+        ByteBuffer header = createBinaryHeader(BINARY_MAGIC, zoneIds, encoding);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, header, crc);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BINARY_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            float[] values = new float[BINARY_BUFFER_SIZE / Float.BYTES];
+            short[] codes = new short[values.length];
+            boolean copyCodes = matrix.storage instanceof FloatStorage.Encoded16 && isSameEncoding(matrix.getEncoding(), encoding);
+            long cellCount = (long) matrix.size * matrix.size;
+            for (long offset = 0; offset < cellCount; offset += values.length) {
+                int count = (int) Math.min(values.length, cellCount - offset);
+                buffer.clear();
+                if (encoding.getType() == ValueEncoding.Type.FLOAT32) {
+                    matrix.storage.get(offset, values, 0, count);
+                    buffer.asFloatBuffer().put(values, 0, count);
+                } else {
+                    if (copyCodes) {
+                        ((FloatStorage.Encoded16) matrix.storage).getCodes(offset, codes, 0, count);
+                    } else {
+                        matrix.storage.get(offset, values, 0, count);
+                        for (int i = 0; i < count; i++) {
+                            codes[i] = encoding.encode(values[i]);
+                        }
+                    }
+                    buffer.asShortBuffer().put(codes, 0, count);
+                }
+                buffer.limit(count * encoding.getBytesPerValue());
+                writeFully(channel, buffer, crc);
+            }
+
+            buffer.clear();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            writeFully(channel, buffer, null);
+        }
+    }
+
+    /**
+     * Reads a matrix stored in the binary format. The zones of the returned matrix are in the same order as in the file,
+     * and its values are stored with the same encoding as in the file.
+     */
+    public static <T> FloatMatrix<T> readAsBinary(String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            BinaryHeader header = readBinaryHeader(channel, BINARY_MAGIC, crc);
+            Set<T> zones = parseZoneIds(header.zoneIds, filename, idConverter);
+            FloatMatrix<T> matrix = new FloatMatrix<>(zones, 0.0f, header.encoding);
+            readBinaryData(channel, filename, matrix, null, header.encoding, crc);
+            return matrix;
+        }
+    }
+
+    /**
+     * Reads a matrix stored in the binary format into an existing matrix. The matrix must contain all the zones
+     * stored in the file, but the zones may be in a different order.
+     */
+    public static <T> void readAsBinary(FloatMatrix<T> matrix, String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            BinaryHeader header = readBinaryHeader(channel, BINARY_MAGIC, crc);
+            String[] zoneIds = header.zoneIds;
+            int[] indices = new int[zoneIds.length];
+            boolean sameOrder = zoneIds.length == matrix.size;
+            for (int i = 0; i < zoneIds.length; i++) {
+                T zoneId = idConverter.parse(zoneIds[i]);
+                Integer index = matrix.id2index.get(zoneId);
+                if (index == null) {
+                    throw new IOException("Zone " + zoneId + " from " + filename + " is not part of the matrix.");
+                }
+                indices[i] = index;
+                sameOrder = sameOrder && index == i;
+            }
+            readBinaryData(channel, filename, matrix, sameOrder ? null : indices, header.encoding, crc);
+        }
+    }
+
+    /**
+     * Opens a matrix stored in the binary format without loading its values. The returned matrix uses the memory-mapped
+     * file as storage, so the values are only loaded by the operating system when they are accessed, and the matrix
+     * does not use any heap memory for its values. The matrix is read-only, any attempt to change it results in a
+     * {@link java.nio.ReadOnlyBufferException}.
+     *
+     * As this would require reading all values, the checksum is <em>not</em> verified when opening a matrix.
+     */
+    public static <T> FloatMatrix<T> openAsBinary(String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            BinaryHeader header = readBinaryHeader(channel, BINARY_MAGIC, new CRC32());
+            Set<T> zones = parseZoneIds(header.zoneIds, filename, idConverter);
+            long dataStart = channel.position();
+            long cellCount = (long) header.zoneIds.length * header.zoneIds.length;
+            checkBinaryFileSize(channel, filename, dataStart, cellCount * header.encoding.getBytesPerValue());
+            FloatStorage storage = header.encoding.getType() == ValueEncoding.Type.FLOAT32
+                    ? FloatStorage.Segmented.map(channel, FileChannel.MapMode.READ_ONLY, dataStart, cellCount)
+                    : FloatStorage.Encoded16.map(channel, FileChannel.MapMode.READ_ONLY, dataStart, cellCount, header.encoding);
+            return new FloatMatrix<>(zones, storage);
+        }
+    }
+
+    /**
+     * Writes a sparse matrix in the binary format for sparse matrices. It uses the same header as dense matrices,
+     * but with the magic number <code>FSPM</code>, followed by:
+     * <ul>
+     *     <li>default value (float)</li>
+     *     <li>number of stored cells c (int)</li>
+     *     <li>n + 1 row starts (int), the position of each row's first cell in the following arrays</li>
+     *     <li>c column indices (int), sorted by row and column</li>
+     *     <li>c values (float)</li>
+     *     <li>CRC32 checksum of all preceding bytes (int)</li>
+     * </ul>
+     */
+    public static <T> void writeAsBinary(SparseFloatMatrix<T> matrix, String filename) throws IOException {
+        @SuppressWarnings("unchecked")
+        T[] zoneIds = (T[]) new Object[matrix.size];
+        for (int i = 0; i < matrix.size; i++) {
+            zoneIds[i] = matrix.getZone(i);
+        }
+        ByteBuffer header = createBinaryHeader(SPARSE_BINARY_MAGIC, zoneIds, ValueEncoding.FLOAT32);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, header, crc);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BINARY_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putFloat(matrix.defaultValue);
+            buffer.putInt(matrix.values.length);
+            buffer.flip();
+            writeFully(channel, buffer, crc);
+            writeInts(channel, buffer, matrix.rowStarts, crc);
+            writeInts(channel, buffer, matrix.columns, crc);
+            for (int offset = 0; offset < matrix.values.length; offset += BINARY_BUFFER_SIZE / Float.BYTES) {
+                int count = Math.min(BINARY_BUFFER_SIZE / Float.BYTES, matrix.values.length - offset);
+                buffer.clear();
+                buffer.asFloatBuffer().put(matrix.values, offset, count);
+                buffer.limit(count * Float.BYTES);
+                writeFully(channel, buffer, crc);
+            }
+
+            buffer.clear();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            writeFully(channel, buffer, null);
+        }
+    }
+
+    /**
+     * Reads a sparse matrix written by {@link #writeAsBinary(SparseFloatMatrix, String)}.
+     * The zones of the returned matrix are in the same order as in the file.
+     */
+    public static <T> SparseFloatMatrix<T> readAsSparseBinary(String filename, IdConverter<T> idConverter) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            BinaryHeader header = readBinaryHeader(channel, SPARSE_BINARY_MAGIC, crc);
+            if (header.encoding.getType() != ValueEncoding.Type.FLOAT32) {
+                throw new IOException("Unsupported value encoding for sparse matrices: " + header.encoding);
+            }
+            String[] zoneIds = header.zoneIds;
+            Set<T> zones = parseZoneIds(zoneIds, filename, idConverter);
+
+            ByteBuffer start = ByteBuffer.allocate(Float.BYTES + Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, start);
+            crc.update(start.array());
+            float defaultValue = start.getFloat(0);
+            int cellCount = start.getInt(4);
+            if (cellCount < 0) {
+                throw new IOException("Invalid number of cells in " + filename + ": " + cellCount);
+            }
+            long dataLength = ((long) zoneIds.length + 1 + 2L * cellCount) * Integer.BYTES;
+            checkBinaryFileSize(channel, filename, channel.position(), dataLength);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BINARY_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            int[] rowStarts = new int[zoneIds.length + 1];
+            int[] columns = new int[cellCount];
+            float[] values = new float[cellCount];
+            readInts(channel, buffer, rowStarts, crc);
+            readInts(channel, buffer, columns, crc);
+            for (int offset = 0; offset < cellCount; offset += BINARY_BUFFER_SIZE / Float.BYTES) {
+                int count = Math.min(BINARY_BUFFER_SIZE / Float.BYTES, cellCount - offset);
+                buffer.clear();
+                buffer.limit(count * Float.BYTES);
+                readFully(channel, buffer);
+                buffer.flip();
+                crc.update(buffer);
+                buffer.flip();
+                buffer.asFloatBuffer().get(values, offset, count);
+            }
+
+            ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, checksum);
+            if (checksum.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch in " + filename + ", the file is probably corrupt.");
+            }
+            if (rowStarts[0] != 0 || rowStarts[zoneIds.length] != cellCount) {
+                throw new IOException("Invalid row starts in " + filename);
+            }
+            List<T> index2id = new ArrayList<>(zones);
+            return new SparseFloatMatrix<>(FloatMatrix.createIndex(index2id), index2id, defaultValue, rowStarts, columns, values);
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer, int[] values, CRC32 crc) throws IOException {
+        for (int offset = 0; offset < values.length; offset += BINARY_BUFFER_SIZE / Integer.BYTES) {
+            int count = Math.min(BINARY_BUFFER_SIZE / Integer.BYTES, values.length - offset);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, offset, count);
+            buffer.limit(count * Integer.BYTES);
+            writeFully(channel, buffer, crc);
+        }
+    }
+
+    private static void readInts(FileChannel channel, ByteBuffer buffer, int[] values, CRC32 crc) throws IOException {
+        for (int offset = 0; offset < values.length; offset += BINARY_BUFFER_SIZE / Integer.BYTES) {
+            int count = Math.min(BINARY_BUFFER_SIZE / Integer.BYTES, values.length - offset);
+            buffer.clear();
+            buffer.limit(count * Integer.BYTES);
+            readFully(channel, buffer);
+            buffer.flip();
+            crc.update(buffer);
+            buffer.flip();
+            buffer.asIntBuffer().get(values, offset, count);
+        }
+    }
+
+    private static <T> Set<T> parseZoneIds(String[] zoneIds, String filename, IdConverter<T> idConverter) throws IOException {
+        Set<T> zones = new LinkedHashSet<>();
+        for (String zoneId : zoneIds) {
+            zones.add(idConverter.parse(zoneId));
+        }
+        if (zones.size() != zoneIds.length) {
+            throw new IOException("The zone ids in " + filename + " are not unique.");
+        }
+        return zones;
+    }
+
+    private static <T> ByteBuffer createBinaryHeader(int magic, T[] zoneIds, ValueEncoding encoding) {
+        byte[][] encodedIds = new byte[zoneIds.length][];
+        int tableLength = 0;
+        for (int i = 0; i < zoneIds.length; i++) {
+            encodedIds[i] = zoneIds[i].toString().getBytes(StandardCharsets.UTF_8);
+            tableLength += Integer.BYTES + encodedIds[i].length;
+        }
+        int headerLength = getBinaryHeaderLength(BINARY_VERSION, tableLength);
+        ByteBuffer header = ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic);
+        header.putInt(BINARY_VERSION);
+        header.putInt(zoneIds.length);
+        header.putInt(tableLength);
+        header.putInt(encoding.getType().code);
+        header.putFloat(encoding.getOffset());
+        header.putFloat(encoding.getScale());
+        header.putInt(0);
+        for (byte[] encodedId : encodedIds) {
+            header.putInt(encodedId.length);
+            header.put(encodedId);
+        }
+        header.clear(); // the padding is already zero-filled
+        return header;
+    }
+
+    private static int getBinaryHeaderLength(int version, int tableLength) {
+        int length = getFixedHeaderLength(version) + tableLength;
+        return (length + 7) & ~7;
+    }
+
+    private static int getFixedHeaderLength(int version) {
+        return (version == 1 ? 4 : 8) * Integer.BYTES;
+    }
+
+    private static final class BinaryHeader {
+        final String[] zoneIds;
+        final ValueEncoding encoding;
+
+        BinaryHeader(String[] zoneIds, ValueEncoding encoding) {
+            this.zoneIds = zoneIds;
+            this.encoding = encoding;
+        }
+    }
+
+    private static BinaryHeader readBinaryHeader(FileChannel channel, int expectedMagic, CRC32 crc) throws IOException {
+        ByteBuffer start = ByteBuffer.allocate(4 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, start);
+        int magic = start.getInt(0);
+        if (magic != expectedMagic) {
+            throw new IOException("Not a binary matrix file, unexpected magic number " + Integer.toHexString(magic));
+        }
+        int version = start.getInt(4);
+        if (version != 1 && version != BINARY_VERSION) {
+            throw new IOException("Unsupported binary matrix version " + version);
+        }
+        int zoneCount = start.getInt(8);
+        int tableLength = start.getInt(12);
+        start.clear();
+        crc.update(start);
+
+        ValueEncoding encoding = ValueEncoding.FLOAT32;
+        if (version >= 2) {
+            ByteBuffer encodingFields = ByteBuffer.allocate(4 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, encodingFields);
+            crc.update(encodingFields.array());
+            try {
+                encoding = ValueEncoding.fromCode(encodingFields.getInt(0), encodingFields.getFloat(4), encodingFields.getFloat(8));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid value encoding in binary matrix file.", e);
+            }
+        }
+
+        ByteBuffer table = ByteBuffer.allocate(getBinaryHeaderLength(version, tableLength) - getFixedHeaderLength(version)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, table);
+        table.flip();
+        crc.update(table.array());
+        String[] zoneIds = new String[zoneCount];
+        for (int i = 0; i < zoneCount; i++) {
+            int length = table.getInt();
+            zoneIds[i] = new String(table.array(), table.position(), length, StandardCharsets.UTF_8);
+            table.position(table.position() + length);
+        }
+        return new BinaryHeader(zoneIds, encoding);
+    }
+
+    /**
+     * Reads the values from the channel's current position using memory-mapped segments. If <code>indices</code>
+     * are given, the values of each row are stored in the rows and columns given by the indices, otherwise the file
+     * must contain the same zones as the matrix in the same order.
+     */
+    private static void readBinaryData(FileChannel channel, String filename, FloatMatrix<?> matrix, int[] indices, ValueEncoding encoding, CRC32 crc) throws IOException {
+        int zoneCount = indices == null ? matrix.size : indices.length;
+        int bytesPerValue = encoding.getBytesPerValue();
+        long dataStart = channel.position();
+        long dataLength = (long) zoneCount * zoneCount * bytesPerValue;
+        checkBinaryFileSize(channel, filename, dataStart, dataLength);
+        // the segments contain complete rows, so rows never span multiple segments
+        long rowLength = (long) zoneCount * bytesPerValue;
+        long segmentLength = rowLength == 0 ? MAX_MAPPED_SEGMENT_SIZE : Math.max(1, MAX_MAPPED_SEGMENT_SIZE / rowLength) * rowLength;
+        float[] row = new float[zoneCount];
+        short[] codes = encoding.getType() == ValueEncoding.Type.FLOAT32 ? null : new short[zoneCount];
+        int rowIndex = 0;
+        for (long offset = 0; offset < dataLength; offset += segmentLength) {
+            long length = Math.min(segmentLength, dataLength - offset);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + offset, length);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            crc.update(segment);
+            segment.clear();
+            FloatBuffer floats = codes == null ? segment.asFloatBuffer() : null;
+            ShortBuffer shorts = codes == null ? null : segment.asShortBuffer();
+            while (codes == null ? floats.hasRemaining() : shorts.hasRemaining()) {
+                if (codes == null) {
+                    floats.get(row);
+                } else {
+                    shorts.get(codes);
+                    for (int i = 0; i < zoneCount; i++) {
+                        row[i] = encoding.decode(codes[i]);
+                    }
+                }
+                if (indices == null) {
+                    matrix.storage.set((long) rowIndex * matrix.size, row, 0, zoneCount);
+                } else {
+                    long rowOffset = (long) indices[rowIndex] * matrix.size;
+                    for (int i = 0; i < zoneCount; i++) {
+                        matrix.storage.set(rowOffset + indices[i], row[i]);
+                    }
+                }
+                rowIndex++;
+            }
+        }
+
+        ByteBuffer checksum = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(dataStart + dataLength);
+        readFully(channel, checksum);
+        int expectedCrc = checksum.getInt(0);
+        if (expectedCrc != (int) crc.getValue()) {
+            throw new IOException("Checksum mismatch in " + filename + ", the file is probably corrupt.");
+        }
+    }
+
+    private static void checkBinaryFileSize(FileChannel channel, String filename, long dataStart, long dataLength) throws IOException {
+        if (channel.size() != dataStart + dataLength + Integer.BYTES) {
+            throw new IOException("Unexpected size of " + filename + ": " + channel.size() + " bytes, expected " + (dataStart + dataLength + Integer.BYTES));
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        if (crc != null) {
+            crc.update(buffer);
+            buffer.flip();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Unexpected end of binary matrix file.");
+            }
+        }
+    }
+
+    private static boolean isSameEncoding(ValueEncoding a, ValueEncoding b) {
+        return a.getType() == b.getType() && a.getOffset() == b.getOffset() && a.getScale() == b.getScale();
+    }
+
     private static <T> T[] getSortedIds(FloatMatrix<T> matrix) {
         // the array-creation is only safe as long as the generated array is only within this class!
         @SuppressWarnings("unchecked")
@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Long-indexed storage of float values, used as backend for {@link FloatMatrix}.
+ *
+ * A single Java array can hold at most 2^31 elements, which limits a quadratic matrix to about
+ * 46'340 zones. {@link Heap} stores the values in a float array and is used for all matrices
+ * fitting into one, {@link Segmented} stores the values in multiple off-heap buffers, either
+ * allocated directly or mapped from a file, and supports an arbitrary number of values.
+ * {@link View} provides access to a part of another storage, e.g. a single layer of a {@link SkimCube}.
+ * {@link Encoded16} stores the values with 16 bits each, using a {@link ValueEncoding}.
+ *
+ * @author mrieser / SBB
+ */
+abstract class FloatStorage {
+
+    abstract long size();
+
+    abstract float get(long index);
+
+    abstract void set(long index, float value);
+
+    /**
+     * Copies <code>count</code> values starting at <code>index</code> into the given array.
+     */
+    abstract void get(long index, float[] dst, int dstOffset, int count);
+
+    /**
+     * Copies <code>count</code> values from the given array into the storage, starting at <code>index</code>.
+     */
+    abstract void set(long index, float[] src, int srcOffset, int count);
+
+    abstract void fill(float value);
+
+    abstract void multiply(float factor);
+
+    ValueEncoding getEncoding() {
+        return ValueEncoding.FLOAT32;
+    }
+
+    /**
+     * @return the heap array containing the values, or <code>null</code> if the values are not stored in a single heap array.
+     * The value at <code>index</code> is stored in the array at <code>arrayIndex(index)</code>, the next one
+     * <code>arrayStride()</code> elements later.
+     */
+    float[] array() {
+        return null;
+    }
+
+    long arrayIndex(long index) {
+        return index;
+    }
+
+    int arrayStride() {
+        return 1;
+    }
+
+    static int getSegmentCount(long size, int segmentShift) {
+        return (int) ((size + (1L << segmentShift) - 1) >>> segmentShift);
+    }
+
+    static int getSegmentSize(long size, int segmentShift, int segment) {
+        return (int) Math.min(1L << segmentShift, size - ((long) segment << segmentShift));
+    }
+
+    /**
+     * Allocates a direct buffer in native byte order. If the direct memory of the JVM is exhausted, the
+     * error states the total number of bytes required, so <code>-XX:MaxDirectMemorySize</code> can be set accordingly.
+     */
+    static ByteBuffer allocateDirectBuffer(long bytes, long totalBytes) {
+        try {
+            return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        } catch (OutOfMemoryError e) {
+            OutOfMemoryError error = new OutOfMemoryError("Could not allocate off-heap storage of " + totalBytes
+                    + " bytes. Increase the maximum direct memory with the JVM option -XX:MaxDirectMemorySize. " + e.getMessage());
+            error.initCause(e);
+            throw error;
+        }
+    }
+
+    /**
+     * Stores the values in a single float array on the heap.
+     */
+    static final class Heap extends FloatStorage {
+        final float[] data;
+
+        Heap(long size) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many values for heap storage: " + size);
+            }
+            this.data = new float[(int) size];
+        }
+
+        @Override
+        long size() {
+            return this.data.length;
+        }
+
+        @Override
+        float[] array() {
+            return this.data;
+        }
+
+        @Override
+        float get(long index) {
+            return this.data[(int) index];
+        }
+
+        @Override
+        void set(long index, float value) {
+            this.data[(int) index] = value;
+        }
+
+        @Override
+        void get(long index, float[] dst, int dstOffset, int count) {
+            System.arraycopy(this.data, (int) index, dst, dstOffset, count);
+        }
+
+        @Override
+        void set(long index, float[] src, int srcOffset, int count) {
+            System.arraycopy(src, srcOffset, this.data, (int) index, count);
+        }
+
+        @Override
+        void fill(float value) {
+            Arrays.fill(this.data, value);
+        }
+
+        @Override
+        void multiply(float factor) {
+            for (int i = 0; i < this.data.length; i++) {
+                this.data[i] *= factor;
+            }
+        }
+    }
+
+    /**
+     * Stores the values in multiple float buffers of 2^segmentShift values each (the last one may be smaller),
+     * so the segment and the position within the segment can be calculated with bit operations.
+     * The buffers are not part of the Java heap, and their memory is released once the storage is garbage collected.
+     */
+    static final class Segmented extends FloatStorage {
+        static final int DEFAULT_SEGMENT_SHIFT = 27; // 512 MB per segment
+
+        private final long size;
+        private final int segmentShift;
+        private final long segmentMask;
+        private final FloatBuffer[] segments;
+
+        private Segmented(long size, int segmentShift, FloatBuffer[] segments) {
+            this.size = size;
+            this.segmentShift = segmentShift;
+            this.segmentMask = (1L << segmentShift) - 1;
+            this.segments = segments;
+        }
+
+        /**
+         * Allocates direct (off-heap) buffers. The values are initialized with 0.
+         * The buffers are limited by the JVM option <code>-XX:MaxDirectMemorySize</code>, not by the maximum heap size.
+         */
+        static Segmented allocateDirect(long size) {
+            return allocateDirect(size, DEFAULT_SEGMENT_SHIFT);
+        }
+
+        static Segmented allocateDirect(long size, int segmentShift) {
+            FloatBuffer[] segments = new FloatBuffer[getSegmentCount(size, segmentShift)];
+            for (int s = 0; s < segments.length; s++) {
+                int segmentSize = getSegmentSize(size, segmentShift, s);
+                segments[s] = allocateDirectBuffer((long) segmentSize * Float.BYTES, size * Float.BYTES).asFloatBuffer();
+            }
+            return new Segmented(size, segmentShift, segments);
+        }
+
+        /**
+         * Maps the values from a file, starting at the given position. The values are stored in little-endian byte order.
+         * With {@link FileChannel.MapMode#READ_WRITE}, changes are written back to the file, the file is extended if required.
+         * With {@link FileChannel.MapMode#READ_ONLY}, any attempt to change values results in a {@link java.nio.ReadOnlyBufferException}.
+         * The mapping stays valid after the channel is closed.
+         */
+        static Segmented map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+            return map(channel, mode, position, size, DEFAULT_SEGMENT_SHIFT);
+        }
+
+        static Segmented map(FileChannel channel, FileChannel.MapMode mode, long position, long size, int segmentShift) throws IOException {
+            FloatBuffer[] segments = new FloatBuffer[getSegmentCount(size, segmentShift)];
+            for (int s = 0; s < segments.length; s++) {
+                int segmentSize = getSegmentSize(size, segmentShift, s);
+                long segmentPosition = position + ((long) s << segmentShift) * Float.BYTES;
+                segments[s] = channel.map(mode, segmentPosition, (long) segmentSize * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            return new Segmented(size, segmentShift, segments);
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        float get(long index) {
+            return this.segments[(int) (index >>> this.segmentShift)].get((int) (index & this.segmentMask));
+        }
+
+        @Override
+        void set(long index, float value) {
+            this.segments[(int) (index >>> this.segmentShift)].put((int) (index & this.segmentMask), value);
+        }
+
+        @Override
+        void get(long index, float[] dst, int dstOffset, int count) {
+            while (count > 0) {
+                FloatBuffer segment = this.segments[(int) (index >>> this.segmentShift)].duplicate();
+                int position = (int) (index & this.segmentMask);
+                int length = Math.min(count, segment.capacity() - position);
+                segment.position(position);
+                segment.get(dst, dstOffset, length);
+                index += length;
+                dstOffset += length;
+                count -= length;
+            }
+        }
+
+        @Override
+        void set(long index, float[] src, int srcOffset, int count) {
+            while (count > 0) {
+                FloatBuffer segment = this.segments[(int) (index >>> this.segmentShift)].duplicate();
+                int position = (int) (index & this.segmentMask);
+                int length = Math.min(count, segment.capacity() - position);
+                segment.position(position);
+                segment.put(src, srcOffset, length);
+                index += length;
+                srcOffset += length;
+                count -= length;
+            }
+        }
+
+        @Override
+        void fill(float value) {
+            for (FloatBuffer segment : this.segments) {
+                for (int i = 0, n = segment.capacity(); i < n; i++) {
+                    segment.put(i, value);
+                }
+            }
+        }
+
+        @Override
+        void multiply(float factor) {
+            for (FloatBuffer segment : this.segments) {
+                for (int i = 0, n = segment.capacity(); i < n; i++) {
+                    segment.put(i, segment.get(i) * factor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the values as 16-bit codes in multiple short buffers of 2^segmentShift values each, similar to
+     * {@link Segmented}. The buffers are either on the heap, off-heap or mapped from a file. Each value is
+     * encoded when it is set and decoded when it is read, so setting a value may lose precision.
+     */
+    static final class Encoded16 extends FloatStorage {
+        static final int DEFAULT_SEGMENT_SHIFT = 28; // 512 MB per segment
+
+        private final long size;
+        private final int segmentShift;
+        private final long segmentMask;
+        private final ShortBuffer[] segments;
+        private final ValueEncoding encoding;
+
+        private Encoded16(long size, int segmentShift, ShortBuffer[] segments, ValueEncoding encoding) {
+            this.size = size;
+            this.segmentShift = segmentShift;
+            this.segmentMask = (1L << segmentShift) - 1;
+            this.segments = segments;
+            this.encoding = encoding;
+        }
+
+        /**
+         * Allocates the buffers on the heap or off-heap. All values are initialized with the code 0.
+         */
+        static Encoded16 allocate(long size, ValueEncoding encoding, boolean direct) {
+            return allocate(size, encoding, direct, DEFAULT_SEGMENT_SHIFT);
+        }
+
+        static Encoded16 allocate(long size, ValueEncoding encoding, boolean direct, int segmentShift) {
+            ShortBuffer[] segments = new ShortBuffer[getSegmentCount(size, segmentShift)];
+            for (int s = 0; s < segments.length; s++) {
+                int segmentSize = getSegmentSize(size, segmentShift, s);
+                segments[s] = direct
+                        ? allocateDirectBuffer((long) segmentSize * Short.BYTES, size * Short.BYTES).asShortBuffer()
+                        : ShortBuffer.allocate(segmentSize);
+            }
+            return new Encoded16(size, segmentShift, segments, encoding);
+        }
+
+        /**
+         * Maps the codes from a file, starting at the given position, see {@link Segmented#map(FileChannel, FileChannel.MapMode, long, long)}.
+         */
+        static Encoded16 map(FileChannel channel, FileChannel.MapMode mode, long position, long size, ValueEncoding encoding) throws IOException {
+            int segmentShift = DEFAULT_SEGMENT_SHIFT;
+            ShortBuffer[] segments = new ShortBuffer[getSegmentCount(size, segmentShift)];
+            for (int s = 0; s < segments.length; s++) {
+                int segmentSize = getSegmentSize(size, segmentShift, s);
+                long segmentPosition = position + ((long) s << segmentShift) * Short.BYTES;
+                segments[s] = channel.map(mode, segmentPosition, (long) segmentSize * Short.BYTES).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            }
+            return new Encoded16(size, segmentShift, segments, encoding);
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        ValueEncoding getEncoding() {
+            return this.encoding;
+        }
+
+        @Override
+        float get(long index) {
+            return this.encoding.decode(this.segments[(int) (index >>> this.segmentShift)].get((int) (index & this.segmentMask)));
+        }
+
+        @Override
+        void set(long index, float value) {
+            this.segments[(int) (index >>> this.segmentShift)].put((int) (index & this.segmentMask), this.encoding.encode(value));
+        }
+
+        @Override
+        void get(long index, float[] dst, int dstOffset, int count) {
+            for (int i = 0; i < count; i++) {
+                dst[dstOffset + i] = get(index + i);
+            }
+        }
+
+        @Override
+        void set(long index, float[] src, int srcOffset, int count) {
+            for (int i = 0; i < count; i++) {
+                set(index + i, src[srcOffset + i]);
+            }
+        }
+
+        @Override
+        void fill(float value) {
+            short code = this.encoding.encode(value);
+            for (ShortBuffer segment : this.segments) {
+                for (int i = 0, n = segment.capacity(); i < n; i++) {
+                    segment.put(i, code);
+                }
+            }
+        }
+
+        @Override
+        void multiply(float factor) {
+            for (ShortBuffer segment : this.segments) {
+                for (int i = 0, n = segment.capacity(); i < n; i++) {
+                    segment.put(i, this.encoding.encode(this.encoding.decode(segment.get(i)) * factor));
+                }
+            }
+        }
+
+        /**
+         * Copies <code>count</code> codes starting at <code>index</code> into the given array, without decoding them.
+         */
+        void getCodes(long index, short[] dst, int dstOffset, int count) {
+            while (count > 0) {
+                ShortBuffer segment = this.segments[(int) (index >>> this.segmentShift)].duplicate();
+                int position = (int) (index & this.segmentMask);
+                int length = Math.min(count, segment.capacity() - position);
+                segment.position(position);
+                segment.get(dst, dstOffset, length);
+                index += length;
+                dstOffset += length;
+                count -= length;
+            }
+        }
+    }
+
+    /**
+     * A view on a part of another storage, containing every <code>stride</code>-th value starting at
+     * <code>offset</code>. Changes to the view are directly applied to the underlying storage.
+     */
+    static final class View extends FloatStorage {
+        private final FloatStorage base;
+        private final long offset;
+        private final int stride;
+        private final long size;
+
+        View(FloatStorage base, long offset, int stride, long size) {
+            this.base = base;
+            this.offset = offset;
+            this.stride = stride;
+            this.size = size;
+        }
+
+        @Override
+        long size() {
+            return this.size;
+        }
+
+        @Override
+        ValueEncoding getEncoding() {
+            return this.base.getEncoding();
+        }
+
+        @Override
+        float[] array() {
+            return this.base.array();
+        }
+
+        @Override
+        long arrayIndex(long index) {
+            return this.base.arrayIndex(this.offset + index * this.stride);
+        }
+
+        @Override
+        int arrayStride() {
+            return this.stride * this.base.arrayStride();
+        }
+
+        @Override
+        float get(long index) {
+            return this.base.get(this.offset + index * this.stride);
+        }
+
+        @Override
+        void set(long index, float value) {
+            this.base.set(this.offset + index * this.stride, value);
+        }
+
+        @Override
+        void get(long index, float[] dst, int dstOffset, int count) {
+            if (this.stride == 1) {
+                this.base.get(this.offset + index, dst, dstOffset, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    dst[dstOffset + i] = get(index + i);
+                }
+            }
+        }
+
+        @Override
+        void set(long index, float[] src, int srcOffset, int count) {
+            if (this.stride == 1) {
+                this.base.set(this.offset + index, src, srcOffset, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    set(index + i, src[srcOffset + i]);
+                }
+            }
+        }
+
+        @Override
+        void fill(float value) {
+            for (long i = 0; i < this.size; i++) {
+                set(i, value);
+            }
+        }
+
+        @Override
+        void multiply(float factor) {
+            for (long i = 0; i < this.size; i++) {
+                set(i, get(i) * factor);
+            }
+        }
+    }
+}
@@ -7,16 +7,22 @@ package ch.sbb.matsim.analysis.skims;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
 import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.core.utils.gis.ShapeFileReader;
-import org.matsim.core.utils.io.IOUtils;
 import org.opengis.feature.simple.SimpleFeature;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Creates a huge csv file with the data of all the matrices combined. Zones are
@@ -26,6 +32,13 @@ import java.util.Map;
  *
  * Please note that this process might require substantial memory, as all the
  * data first needs to be loaded into memory before it is written out again.
+ * The matrices are stored as layers of one {@link SkimCube}, so the zones are
+ * only indexed once. Multiple matrices are loaded concurrently, and the rows
+ * of the output are formatted in parallel blocks which are written in order.
+ *
+ * If the output filename ends with <code>.bin</code>, the data is written in
+ * the columnar binary format of {@link ColumnarSkimsIO} instead, which stores
+ * every zone and coordinate only once and is much smaller than the csv file.
  *
  * @author mrieser
  */
@@ -37,7 +50,11 @@ public class MatricesToXY {
         String zonesShapeFilename = args[0]; // path to a shape-file, e.g. /path/to/my-zones.shp
         String zonesIdAttributeName = args[1]; // name of the zone attribute to be used as identifier, e.g. "ZONE_ID"
         String matricesDirectory = args[2]; // path to the directory containing all the skim-matrices, e.g. /path/to/skims/
-        String xyCsvOutputFilename = args[3]; // path to the csv-file to be written, e.g. /path/to/skim-data.csv
+        String xyCsvOutputFilename = args[3]; // path to the csv-file to be written, e.g. /path/to/skim-data.csv, or /path/to/skim-data.bin for the columnar format
+        int numberOfThreads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors(); // optional, e.g. 8
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("numberOfThreads must be at least 1, but is " + numberOfThreads);
+        }
 
         log.info("loading zones from " + zonesShapeFilename);
         Collection<SimpleFeature> zones = new ShapeFileReader().readFileAndInitialize(zonesShapeFilename);
@@ -66,100 +83,200 @@ public class MatricesToXY {
             }
         }
 
-        log.info("loading car travel times");
-        FloatMatrix<String> carTravelTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(carTravelTimes, new File(matricesDirectory, CalculateSkimMatrices.CAR_TRAVELTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading car distances");
-        FloatMatrix<String> carDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(carDistances, new File(matricesDirectory, CalculateSkimMatrices.CAR_DISTANCES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt adaption times");
-        FloatMatrix<String> ptAdaptionTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptAdaptionTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_ADAPTIONTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt frequencies");
-        FloatMatrix<String> ptFrequencies = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptFrequencies, new File(matricesDirectory, CalculateSkimMatrices.PT_FREQUENCIES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt distances");
-        FloatMatrix<String> ptDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptDistances, new File(matricesDirectory, CalculateSkimMatrices.PT_DISTANCES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt travel times");
-        FloatMatrix<String> ptTravelTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptTravelTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt access times");
-        FloatMatrix<String> ptAccessTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptAccessTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_ACCESSTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt egress times");
-        FloatMatrix<String> ptEgressTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptEgressTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_EGRESSTIMES_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading pt transfer counts");
-        FloatMatrix<String> ptTransferCounts = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptTransferCounts, new File(matricesDirectory, CalculateSkimMatrices.PT_TRANSFERCOUNTS_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading rail shares by distance");
-        FloatMatrix<String> ptRailShareDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptRailShareDistances, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAINSHARE_BYDISTANCE_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading rail shares by time");
-        FloatMatrix<String> ptRailShareTimes = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(ptRailShareTimes, new File(matricesDirectory, CalculateSkimMatrices.PT_TRAINSHARE_BYTIME_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("loading beeline distances");
-        FloatMatrix<String> beelineDistances = new FloatMatrix<>(zonesById.keySet(), Float.NaN);
-        FloatMatrixIO.readAsCSV(beelineDistances, new File(matricesDirectory, CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME).getAbsolutePath(), id -> id);
-
-        log.info("Start writing xy csv to " + xyCsvOutputFilename);
-        try (BufferedWriter writer = IOUtils.getBufferedWriter(xyCsvOutputFilename)) {
-            writer.write("FROM,FROM_X,FROM_Y,TO,TO_X,TO_Y,CAR_TRAVELTIME,CAR_DISTANCE,PT_ADAPTIONTIME,PT_FREQUENCY,PT_DISTANCE,PT_TRAVELTIME,PT_ACCESSTIME,PT_EGRESSTIME,PT_TRANSFERCOUNT,PT_TRAINSHARE_DIST,PT_TRAINSHARE_TIME,BEELINE_DISTANCE\n");
-
-            for (Map.Entry<String, Point> fromE : coords.entrySet()) {
-                String fromId = fromE.getKey();
-                Point fromPoint = fromE.getValue();
-                for (Map.Entry<String, Point> toE : coords.entrySet()) {
-                    String toId = toE.getKey();
-                    Point toPoint = toE.getValue();
-
-                    float carTravelTime = carTravelTimes.get(fromId, toId);
-                    float carDistance = carDistances.get(fromId, toId);
-                    float ptAdaptionTime = ptAdaptionTimes.get(fromId, toId);
-                    float ptFrequency = ptFrequencies.get(fromId, toId);
-                    float ptDistance = ptDistances.get(fromId, toId);
-                    float ptTravelTime = ptTravelTimes.get(fromId, toId);
-                    float ptAccessTime = ptAccessTimes.get(fromId, toId);
-                    float ptEgressTime = ptEgressTimes.get(fromId, toId);
-                    float ptTransferCount = ptTransferCounts.get(fromId, toId);
-                    float ptRailShareDist = ptRailShareDistances.get(fromId, toId);
-                    float ptRailShareTime = ptRailShareTimes.get(fromId, toId);
-                    float beelineDistance = beelineDistances.get(fromId, toId);
-
-                    writer.write(fromId); writer.append(',');
-                    writer.write(Integer.toString((int) fromPoint.getX())); writer.append(',');
-                    writer.write(Integer.toString((int) fromPoint.getY())); writer.append(',');
-                    writer.write(toId); writer.append(',');
-                    writer.write(Integer.toString((int) toPoint.getX())); writer.append(',');
-                    writer.write(Integer.toString((int) toPoint.getY())); writer.append(',');
-                    writer.write(Float.toString(carTravelTime)); writer.append(',');
-                    writer.write(Float.toString(carDistance)); writer.append(',');
-                    writer.write(Float.toString(ptAdaptionTime)); writer.append(',');
-                    writer.write(Float.toString(ptFrequency)); writer.append(',');
-                    writer.write(Float.toString(ptDistance)); writer.append(',');
-                    writer.write(Float.toString(ptTravelTime)); writer.append(',');
-                    writer.write(Float.toString(ptAccessTime)); writer.append(',');
-                    writer.write(Float.toString(ptEgressTime)); writer.append(',');
-                    writer.write(Float.toString(ptTransferCount)); writer.append(',');
-                    writer.write(Float.toString(ptRailShareDist)); writer.append(',');
-                    writer.write(Float.toString(ptRailShareTime)); writer.append(',');
-                    writer.write(Float.toString(beelineDistance)); writer.append('\n');
-                }
+        log.info("loading matrices from " + matricesDirectory);
+        SkimCube<String> matrices = loadMatrices(zonesById.keySet(), matricesDirectory, numberOfThreads);
+
+        if (xyCsvOutputFilename.endsWith(COLUMNAR_SUFFIX)) {
+            log.info("Start writing columnar data to " + xyCsvOutputFilename);
+            Map<String, Coord> xy = new HashMap<>();
+            for (Map.Entry<String, Point> e : coords.entrySet()) {
+                xy.put(e.getKey(), new Coord(e.getValue().getX(), e.getValue().getY()));
+            }
+            String[] columnNames = new String[INDICATORS.length];
+            for (int i = 0; i < INDICATORS.length; i++) {
+                columnNames[i] = INDICATORS[i][0];
             }
+            ColumnarSkimsIO.write(matrices, columnNames, xy, xyCsvOutputFilename);
+        } else {
+            log.info("Start writing xy csv to " + xyCsvOutputFilename);
+            writeXY(matrices, coords, xyCsvOutputFilename, numberOfThreads);
         }
         log.info("done.");
     }
 
+    private static final String[][] INDICATORS = {
+            { "CAR_TRAVELTIME", CalculateSkimMatrices.CAR_TRAVELTIMES_FILENAME },
+            { "CAR_DISTANCE", CalculateSkimMatrices.CAR_DISTANCES_FILENAME },
+            { "PT_ADAPTIONTIME", CalculateSkimMatrices.PT_ADAPTIONTIMES_FILENAME },
+            { "PT_FREQUENCY", CalculateSkimMatrices.PT_FREQUENCIES_FILENAME },
+            { "PT_DISTANCE", CalculateSkimMatrices.PT_DISTANCES_FILENAME },
+            { "PT_TRAVELTIME", CalculateSkimMatrices.PT_TRAVELTIMES_FILENAME },
+            { "PT_ACCESSTIME", CalculateSkimMatrices.PT_ACCESSTIMES_FILENAME },
+            { "PT_EGRESSTIME", CalculateSkimMatrices.PT_EGRESSTIMES_FILENAME },
+            { "PT_TRANSFERCOUNT", CalculateSkimMatrices.PT_TRANSFERCOUNTS_FILENAME },
+            { "PT_TRAINSHARE_DIST", CalculateSkimMatrices.PT_TRAINSHARE_BYDISTANCE_FILENAME },
+            { "PT_TRAINSHARE_TIME", CalculateSkimMatrices.PT_TRAINSHARE_BYTIME_FILENAME },
+            { "BEELINE_DISTANCE", CalculateSkimMatrices.BEELINE_DISTANCE_FILENAME },
+    };
+
+    private final static String COLUMNAR_SUFFIX = ".bin";
+    private final static int ROWS_PER_BLOCK = 16;
+    private final static int MAX_FLOAT_LENGTH = 16; // e.g. -1.17549435E-38 plus separator
+
+    /**
+     * Loads all the matrices as layers of one cube, in the order of {@link #INDICATORS}.
+     * Cells not contained in a matrix file have the value NaN.
+     */
+    static SkimCube<String> loadMatrices(Set<String> zoneIds, String matricesDirectory, int numberOfThreads) throws IOException {
+        SkimCube<String> cube = new SkimCube<>(zoneIds, INDICATORS.length, SkimCube.Layout.LAYER_MAJOR);
+        int loaderCount = Math.min(INDICATORS.length, numberOfThreads);
+        int threadsPerLoader = Math.max(1, numberOfThreads / loaderCount);
+
+        ConcurrentLinkedQueue<Integer> layerQueue = new ConcurrentLinkedQueue<>();
+        for (int layer = 0; layer < INDICATORS.length; layer++) {
+            layerQueue.add(layer);
+        }
+        List<IOException> exceptions = Collections.synchronizedList(new ArrayList<>());
+
+        Thread[] threads = new Thread[loaderCount];
+        for (int i = 0; i < loaderCount; i++) {
+            MatrixLoader loader = new MatrixLoader(cube, matricesDirectory, threadsPerLoader, layerQueue, exceptions);
+            threads[i] = new Thread(loader, "MatrixLoader-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (!exceptions.isEmpty()) {
+            throw exceptions.get(0);
+        }
+        return cube;
+    }
+
+    /**
+     * Writes the values of all layers for all pairs of zones with a coordinate. Blocks of rows are formatted
+     * in parallel and written in order. If the filename ends with <code>.gz</code>, the blocks are compressed
+     * in parallel as well, other compressions supported by IOUtils are applied while writing the blocks.
+     */
+    static void writeXY(SkimCube<String> matrices, Map<String, Point> coords, String filename, int numberOfThreads) throws IOException {
+        FloatMatrix<String> firstLayer = matrices.getLayer(0);
+        int zoneCount = firstLayer.getZoneCount();
+        List<FloatMatrix<String>> layers = new ArrayList<>();
+        for (int layer = 0; layer < INDICATORS.length; layer++) {
+            layers.add(matrices.getLayer(layer));
+        }
+
+        // pre-encode the zone id and coordinate of every zone, including the separator
+        int[] zoneIndices = new int[zoneCount];
+        byte[][] zoneColumns = new byte[zoneCount][];
+        int xyZoneCount = 0;
+        for (int index = 0; index < zoneCount; index++) {
+            String zoneId = firstLayer.getZone(index);
+            Point point = coords.get(zoneId);
+            if (point != null) {
+                zoneIndices[xyZoneCount] = index;
+                zoneColumns[xyZoneCount] = (zoneId + ',' + (int) point.getX() + ',' + (int) point.getY() + ',').getBytes(StandardCharsets.UTF_8);
+                xyZoneCount++;
+            }
+        }
+        int rowCount = xyZoneCount;
+
+        StringBuilder header = new StringBuilder("FROM,FROM_X,FROM_Y,TO,TO_X,TO_Y");
+        for (String[] indicator : INDICATORS) {
+            header.append(',').append(indicator[0]);
+        }
+        header.append('\n');
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+
+        int blockCount = Math.max(1, (rowCount + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK);
+        try (OutputStream stream = OrderedBlockWriter.openOutputStream(filename)) {
+            OrderedBlockWriter.write(stream, blockCount, OrderedBlockWriter.isCompressedByBlocks(filename), numberOfThreads, (block, out) -> {
+                if (block == 0) {
+                    out.write(headerBytes);
+                }
+                byte[] buffer = new byte[1 << 16];
+                int length = 0;
+                FloatMatrix.Row[] rows = new FloatMatrix.Row[layers.size()];
+                int fromRow = block * ROWS_PER_BLOCK;
+                int toRow = Math.min(rowCount, fromRow + ROWS_PER_BLOCK);
+                for (int r = fromRow; r < toRow; r++) {
+                    for (int layer = 0; layer < rows.length; layer++) {
+                        rows[layer] = layers.get(layer).getRow(zoneIndices[r]);
+                    }
+                    byte[] fromColumns = zoneColumns[r];
+                    for (int c = 0; c < rowCount; c++) {
+                        byte[] toColumns = zoneColumns[c];
+                        int maxLineLength = fromColumns.length + toColumns.length + rows.length * MAX_FLOAT_LENGTH;
+                        if (length + maxLineLength > buffer.length) {
+                            out.write(buffer, 0, length);
+                            length = 0;
+                            if (maxLineLength > buffer.length) {
+                                buffer = new byte[maxLineLength];
+                            }
+                        }
+                        System.arraycopy(fromColumns, 0, buffer, length, fromColumns.length);
+                        length += fromColumns.length;
+                        System.arraycopy(toColumns, 0, buffer, length, toColumns.length);
+                        length += toColumns.length;
+                        int toIndex = zoneIndices[c];
+                        for (int layer = 0; layer < rows.length; layer++) {
+                            String value = Float.toString(rows[layer].get(toIndex));
+                            for (int i = 0; i < value.length(); i++) {
+                                buffer[length++] = (byte) value.charAt(i); // the formatted float only contains ASCII characters
+                            }
+                            buffer[length++] = (layer == rows.length - 1) ? (byte) '\n' : (byte) ',';
+                        }
+                    }
+                }
+                out.write(buffer, 0, length);
+            });
+        }
+    }
+
+    private static class MatrixLoader implements Runnable {
+        private final SkimCube<String> cube;
+        private final String matricesDirectory;
+        private final int numberOfThreads;
+        private final ConcurrentLinkedQueue<Integer> layerQueue;
+        private final List<IOException> exceptions;
+
+        MatrixLoader(SkimCube<String> cube, String matricesDirectory, int numberOfThreads, ConcurrentLinkedQueue<Integer> layerQueue, List<IOException> exceptions) {
+            this.cube = cube;
+            this.matricesDirectory = matricesDirectory;
+            this.numberOfThreads = numberOfThreads;
+            this.layerQueue = layerQueue;
+            this.exceptions = exceptions;
+        }
+
+        public void run() {
+            while (true) {
+                Integer layer = this.layerQueue.poll();
+                if (layer == null) {
+                    return;
+                }
+                String filename = new File(this.matricesDirectory, INDICATORS[layer][1]).getAbsolutePath();
+                log.info("loading " + filename);
+                FloatMatrix<String> matrix = this.cube.getLayer(layer);
+                for (int index = 0; index < matrix.getZoneCount(); index++) {
+                    matrix.getRow(index).fill(Float.NaN);
+                }
+                try {
+                    FloatMatrixIO.readAsCSV(matrix, filename, id -> id, this.numberOfThreads);
+                } catch (IOException e) {
+                    this.exceptions.add(e);
+                    return;
+                } catch (Throwable t) {
+                    // otherwise the layer would silently stay NaN
+                    this.exceptions.add(new IOException("Failed to load " + filename, t));
+                    return;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import ch.sbb.matsim.routing.graph.Graph;
+import ch.sbb.matsim.routing.graph.LeastCostPathTree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.utils.misc.Counter;
+import org.matsim.core.utils.misc.Time;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Calculates which zones can be reached from each zone within a number of travel time thresholds
+ * on a network, e.g. for accessibility indicators or isochrones on zone level.
+ *
+ * Like in {@link NetworkSkimMatrices}, each zone is represented by a number of points, which are
+ * assigned to the nearest network node. For each origin zone, a single least-cost-path tree is
+ * calculated, starting at all points of the zone at the same time. The search stops once the
+ * largest threshold is exceeded, so only the part of the network around the origin zone is visited.
+ * A destination zone is reachable within a threshold if at least one of its points can be reached
+ * within that travel time.
+ *
+ * The thresholds are applied to the travel time of the least-cost paths, and the search stops
+ * based on the travel time as well. The results are thus only exact if the costs increase with
+ * the travel time, e.g. with {@link org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility}.
+ *
+ * The calculation runs in parallel in the given number of threads, each processing one origin zone after the other.
+ *
+ * @author mrieser / SBB
+ */
+public final class NetworkReachability {
+
+    private NetworkReachability() {
+    }
+
+    /**
+     * @param thresholds the travel time thresholds in seconds, in ascending order.
+     */
+    public static <T> Reachability<T> calculateReachability(Network xy2lNetwork, Network routingNetwork, Map<T, Coord[]> coordsPerZone, double[] thresholds, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads) {
+        for (int i = 1; i < thresholds.length; i++) {
+            if (thresholds[i] < thresholds[i - 1]) {
+                throw new IllegalArgumentException("thresholds must be in ascending order.");
+            }
+        }
+        Graph routingGraph = new Graph(routingNetwork, Graph.NodeOrdering.HILBERT);
+        Map<T, Node[]> nodesPerZone = NetworkSkimMatrices.findNodesPerZone(xy2lNetwork, routingNetwork, coordsPerZone);
+
+        // index the zones and the node indices of their points
+        List<T> zones = new ArrayList<>(coordsPerZone.keySet());
+        int[][] nodeIndicesPerZone = new int[zones.size()][];
+        for (int z = 0; z < zones.size(); z++) {
+            Node[] nodes = nodesPerZone.get(zones.get(z));
+            int[] nodeIndices = new int[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                nodeIndices[i] = routingGraph.getNodeIndex(nodes[i]);
+            }
+            nodeIndicesPerZone[z] = nodeIndices;
+        }
+
+        Reachability<T> reachability = new Reachability<>(zones, thresholds.clone());
+
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>();
+        for (int z = 0; z < zones.size(); z++) {
+            originZones.add(z);
+        }
+
+        Counter counter = new Counter("CAR-Reachability-" + Time.writeTime(departureTime) + " zone ", " / " + zones.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            RowWorker<T> worker = new RowWorker<>(originZones, routingGraph, nodeIndicesPerZone, reachability, departureTime, travelTime, travelDisutility, counter);
+            threads[i] = new Thread(worker, "CAR-Reachability-" + Time.writeTime(departureTime) + "-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return reachability;
+    }
+
+    private static class RowWorker<T> implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final Graph graph;
+        private final int[][] nodeIndicesPerZone;
+        private final Reachability<T> reachability;
+        private final double departureTime;
+        private final TravelTime travelTime;
+        private final TravelDisutility travelDisutility;
+        private final Counter counter;
+
+        RowWorker(ConcurrentLinkedQueue<Integer> originZones, Graph graph, int[][] nodeIndicesPerZone, Reachability<T> reachability, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, Counter counter) {
+            this.originZones = originZones;
+            this.graph = graph;
+            this.nodeIndicesPerZone = nodeIndicesPerZone;
+            this.reachability = reachability;
+            this.departureTime = departureTime;
+            this.travelTime = travelTime;
+            this.travelDisutility = travelDisutility;
+            this.counter = counter;
+        }
+
+        public void run() {
+            LeastCostPathTree lcpTree = new LeastCostPathTree(this.graph, this.travelTime, this.travelDisutility);
+            double[] thresholds = this.reachability.thresholds;
+            double maxThreshold = thresholds.length == 0 ? 0 : thresholds[thresholds.length - 1];
+            LeastCostPathTree.StopCriterion stopCriterion = new LeastCostPathTree.TravelTimeStopCriterion(maxThreshold);
+            int zoneCount = this.nodeIndicesPerZone.length;
+            while (true) {
+                Integer fromZone = this.originZones.poll();
+                if (fromZone == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                BitSet[] reachableZones = new BitSet[thresholds.length];
+                for (int t = 0; t < thresholds.length; t++) {
+                    reachableZones[t] = new BitSet(zoneCount);
+                }
+
+                int[] fromNodes = this.nodeIndicesPerZone[fromZone];
+                if (fromNodes.length > 0) {
+                    lcpTree.calculate(fromNodes, null, this.departureTime, NetworkSkimMatrices.PERSON, NetworkSkimMatrices.VEHICLE, stopCriterion);
+
+                    for (int toZone = 0; toZone < zoneCount; toZone++) {
+                        double minTravelTime = Double.POSITIVE_INFINITY;
+                        for (int toNode : this.nodeIndicesPerZone[toZone]) {
+                            double arrivalTime = lcpTree.getTime(toNode);
+                            if (!Time.isUndefinedTime(arrivalTime)) {
+                                minTravelTime = Math.min(minTravelTime, arrivalTime - this.departureTime);
+                            }
+                        }
+                        // the thresholds are sorted, so the zone is reachable within all thresholds starting at the first one that is large enough
+                        for (int t = 0; t < thresholds.length; t++) {
+                            if (minTravelTime <= thresholds[t]) {
+                                for (int t2 = t; t2 < thresholds.length; t2++) {
+                                    reachableZones[t2].set(toZone);
+                                }
+                                break;
+                            }
+                        }
+                    }
+                }
+                this.reachability.reachableZones[fromZone] = reachableZones;
+            }
+        }
+    }
+
+    /**
+     * The zones reachable from each origin zone, for each threshold.
+     */
+    public static final class Reachability<T> {
+        private final List<T> zones;
+        private final Map<T, Integer> zoneIndices;
+        final double[] thresholds;
+        final BitSet[][] reachableZones; // [origin zone][threshold]
+
+        Reachability(List<T> zones, double[] thresholds) {
+            this.zones = zones;
+            this.zoneIndices = new HashMap<>();
+            for (int i = 0; i < zones.size(); i++) {
+                this.zoneIndices.put(zones.get(i), i);
+            }
+            this.thresholds = thresholds;
+            this.reachableZones = new BitSet[zones.size()][];
+        }
+
+        public List<T> getZones() {
+            return this.zones;
+        }
+
+        /**
+         * @return the index of the zone, as used in the bit sets returned by {@link #getReachableZones(Object, int)}.
+         */
+        public int getZoneIndex(T zoneId) {
+            Integer index = this.zoneIndices.get(zoneId);
+            if (index == null) {
+                throw new IllegalArgumentException("unknown zone: " + zoneId);
+            }
+            return index;
+        }
+
+        public double[] getThresholds() {
+            return Arrays.copyOf(this.thresholds, this.thresholds.length);
+        }
+
+        /**
+         * @return the indices of all zones reachable from the origin zone within the threshold with the given index.
+         * The returned bit set must not be modified.
+         */
+        public BitSet getReachableZones(T fromZoneId, int thresholdIndex) {
+            return this.reachableZones[getZoneIndex(fromZoneId)][thresholdIndex];
+        }
+
+        public int getReachableZoneCount(T fromZoneId, int thresholdIndex) {
+            return getReachableZones(fromZoneId, thresholdIndex).cardinality();
+        }
+
+        public boolean isReachable(T fromZoneId, T toZoneId, int thresholdIndex) {
+            return getReachableZones(fromZoneId, thresholdIndex).get(getZoneIndex(toZoneId));
+        }
+    }
+}
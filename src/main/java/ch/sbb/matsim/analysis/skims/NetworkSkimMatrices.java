@@ -4,8 +4,12 @@
 
 package ch.sbb.matsim.analysis.skims;
 
+import ch.sbb.matsim.routing.graph.ContractionHierarchy;
+import ch.sbb.matsim.routing.graph.CustomizableContractionHierarchy;
 import ch.sbb.matsim.routing.graph.Graph;
 import ch.sbb.matsim.routing.graph.LeastCostPathTree;
+import ch.sbb.matsim.routing.graph.ManyToManyQuery;
+import ch.sbb.matsim.routing.graph.TravelCostSnapshot;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Network;
@@ -21,6 +25,7 @@ import org.matsim.vehicles.Vehicle;
 import org.matsim.vehicles.VehicleUtils;
 import org.opengis.feature.simple.SimpleFeature;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -39,33 +44,100 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * - this results in n x n travel times per zone-to-zone combination.
  * - average the n x n travel times and store this value as the zone-to-zone travel time.
  *
+ * Alternatively, with {@link PointAggregation#MIN_OVER_ORIGIN_POINTS}, only the best origin point is
+ * taken into account for each destination point. This allows to calculate only one (multi-source)
+ * tree per origin zone instead of one tree per point, and results in n travel times per zone-to-zone
+ * combination which are then averaged.
+ *
+ * If the travel times do not depend on the time of day (e.g. free speed travel times), the
+ * {@link RoutingAlgorithm#CONTRACTION_HIERARCHY} can be used instead of Dijkstra. It requires
+ * some preprocessing, but then calculates the travel times to all destination points much faster.
+ *
  * @author mrieser / SBB
  */
 public final class NetworkSkimMatrices {
 
+    final static Vehicle VEHICLE = VehicleUtils.getFactory().createVehicle(Id.create("theVehicle", Vehicle.class), VehicleUtils.getDefaultVehicleType());
+    final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+
     private NetworkSkimMatrices() {
     }
 
+    public enum PointAggregation {
+        /** average over all n x n point-to-point combinations, requires one tree per origin point. */
+        AVERAGE,
+        /** for each destination point, only use the best origin point, requires one tree per origin zone. */
+        MIN_OVER_ORIGIN_POINTS
+    }
+
+    public enum RoutingAlgorithm {
+        /** calculates a least-cost-path-tree per origin, supports time-dependent travel times. */
+        DIJKSTRA,
+        /** uses a {@link ContractionHierarchy}, only valid for travel times that do not depend on the time of day. */
+        CONTRACTION_HIERARCHY
+    }
+
     public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads) {
-        Graph routingGraph = new Graph(routingNetwork);
-        Map<T, Node[]> nodesPerZone = new HashMap<>();
-        for (Map.Entry<T, Coord[]> e : coordsPerZone.entrySet()) {
-            T zoneId = e.getKey();
-            Coord[] coords = e.getValue();
-            Node[] nodes = new Node[coords.length];
-            nodesPerZone.put(zoneId, nodes);
-            for (int i = 0; i < coords.length; i++) {
-                Coord coord = coords[i];
-                Node node = NetworkUtils.getNearestLink(xy2lNetwork, coord).getToNode();
-                nodes[i] = routingNetwork.getNodes().get(node.getId());
-            }
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, zones, coordsPerZone, departureTime, travelTime, travelDisutility, numberOfThreads, PointAggregation.AVERAGE);
+    }
+
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, PointAggregation pointAggregation) {
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, zones, coordsPerZone, departureTime, travelTime, travelDisutility, numberOfThreads, pointAggregation, RoutingAlgorithm.DIJKSTRA);
+    }
+
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, PointAggregation pointAggregation, RoutingAlgorithm routingAlgorithm) {
+        Graph routingGraph = new Graph(routingNetwork, Graph.NodeOrdering.HILBERT);
+        ContractionHierarchy ch = null;
+        if (routingAlgorithm == RoutingAlgorithm.CONTRACTION_HIERARCHY) {
+            ch = ContractionHierarchy.create(routingGraph, travelTime, travelDisutility, departureTime, PERSON, VEHICLE);
         }
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, routingGraph, ch, null, zones, coordsPerZone, departureTime, travelTime, travelDisutility, numberOfThreads, pointAggregation);
+    }
+
+    /**
+     * Creates a snapshot of the travel times and disutilities from <code>startTime</code> to <code>endTime</code>
+     * with the given time bin size, evaluated for the same person and vehicle as used in the skims calculation.
+     */
+    public static TravelCostSnapshot createTravelCostSnapshot(Graph routingGraph, TravelTime travelTime, TravelDisutility travelDisutility, double startTime, double endTime, double binSize) {
+        return TravelCostSnapshot.create(routingGraph, travelTime, travelDisutility, startTime, endTime, binSize, PERSON, VEHICLE);
+    }
+
+    /**
+     * Calculates the skim matrices with least-cost-path trees that read the link travel times and disutilities
+     * from the given snapshot instead of evaluating a TravelTime and TravelDisutility for each link. A snapshot
+     * with multiple time bins can be re-used for multiple departure times.
+     */
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, TravelCostSnapshot snapshot, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, int numberOfThreads, PointAggregation pointAggregation) {
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, snapshot.getGraph(), null, snapshot, zones, coordsPerZone, departureTime, null, null, numberOfThreads, pointAggregation);
+    }
+
+    /**
+     * Calculates the skim matrices using the given, already prepared customizable contraction hierarchy. This allows
+     * to calculate matrices for multiple time slices with just one metric-independent preprocessing of the network.
+     * The hierarchy is customized with the travel times and disutilities at the departure time, which are then used
+     * for the whole trip (i.e. a snapshot of the network at the departure time).
+     */
+    public static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, CustomizableContractionHierarchy cch, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, PointAggregation pointAggregation) {
+        ContractionHierarchy ch = cch.customize(travelTime, travelDisutility, departureTime, PERSON, VEHICLE);
+        return calculateSkimMatrices(xy2lNetwork, routingNetwork, cch.getGraph(), ch, null, zones, coordsPerZone, departureTime, travelTime, travelDisutility, numberOfThreads, pointAggregation);
+    }
+
+    private static <T> NetworkIndicators<T> calculateSkimMatrices(Network xy2lNetwork, Network routingNetwork, Graph routingGraph, ContractionHierarchy ch, TravelCostSnapshot snapshot, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, int numberOfThreads, PointAggregation pointAggregation) {
+        Map<T, Node[]> nodesPerZone = findNodesPerZone(xy2lNetwork, routingNetwork, coordsPerZone);
 
         // prepare calculation
+        ManyToManyQuery.Targets chTargets = null;
+        if (ch != null) {
+            chTargets = ManyToManyQuery.prepareTargets(ch, getUniqueNodeIndices(routingGraph, nodesPerZone));
+        }
+
         NetworkIndicators<T> networkIndicators = new NetworkIndicators<>(zones.keySet());
+        int[][] nodeIndicesPerZone = getNodeIndicesPerZone(routingGraph, nodesPerZone, networkIndicators.travelTimeMatrix);
 
         int numberOfPointsPerZone = coordsPerZone.values().iterator().next().length;
-        float avgFactor = (float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone);
+        float avgFactor = pointAggregation == PointAggregation.AVERAGE
+                ? (float) (1.0 / numberOfPointsPerZone / numberOfPointsPerZone)
+                : (float) (1.0 / numberOfPointsPerZone);
 
         // do calculation
         ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
@@ -73,7 +145,7 @@ public final class NetworkSkimMatrices {
         Counter counter = new Counter("CAR-TravelTimeMatrix-" + Time.writeTime(departureTime) + " zone ", " / " + zones.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), routingGraph, nodesPerZone, networkIndicators, departureTime, travelTime, travelDisutility, counter);
+            RowWorker<T> worker = new RowWorker<>(originZones, routingGraph, ch, chTargets, snapshot, nodeIndicesPerZone, networkIndicators, departureTime, travelTime, travelDisutility, pointAggregation, counter);
             threads[i] = new Thread(worker, "CAR-TravelTimeMatrix-" + Time.writeTime(departureTime) + "-" + i);
             threads[i].start();
         }
@@ -93,34 +165,105 @@ public final class NetworkSkimMatrices {
         return networkIndicators;
     }
 
+    /**
+     * Finds for each coordinate the to-node of the nearest link in the xy2l-network, and returns the corresponding node of the routing network.
+     */
+    static <T> Map<T, Node[]> findNodesPerZone(Network xy2lNetwork, Network routingNetwork, Map<T, Coord[]> coordsPerZone) {
+        Map<T, Node[]> nodesPerZone = new HashMap<>();
+        for (Map.Entry<T, Coord[]> e : coordsPerZone.entrySet()) {
+            T zoneId = e.getKey();
+            Coord[] coords = e.getValue();
+            Node[] nodes = new Node[coords.length];
+            nodesPerZone.put(zoneId, nodes);
+            for (int i = 0; i < coords.length; i++) {
+                Coord coord = coords[i];
+                Node node = NetworkUtils.getNearestLink(xy2lNetwork, coord).getToNode();
+                nodes[i] = routingNetwork.getNodes().get(node.getId());
+            }
+        }
+        return nodesPerZone;
+    }
+
+    /**
+     * @return for each zone index of the matrix, the indices of the zone's nodes in the graph, or <code>null</code> if the zone has no points.
+     */
+    private static <T> int[][] getNodeIndicesPerZone(Graph routingGraph, Map<T, Node[]> nodesPerZone, FloatMatrix<T> matrix) {
+        int[][] nodeIndicesPerZone = new int[matrix.getZoneCount()][];
+        for (int zoneIndex = 0; zoneIndex < nodeIndicesPerZone.length; zoneIndex++) {
+            Node[] nodes = nodesPerZone.get(matrix.getZone(zoneIndex));
+            if (nodes != null) {
+                int[] nodeIndices = new int[nodes.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodeIndices[i] = routingGraph.getNodeIndex(nodes[i]);
+                }
+                nodeIndicesPerZone[zoneIndex] = nodeIndices;
+            }
+        }
+        return nodeIndicesPerZone;
+    }
+
+    private static <T> int[] getUniqueNodeIndices(Graph routingGraph, Map<T, Node[]> nodesPerZone) {
+        int count = 0;
+        for (Node[] nodes : nodesPerZone.values()) {
+            count += nodes.length;
+        }
+        int[] nodeIndices = new int[count];
+        int i = 0;
+        for (Node[] nodes : nodesPerZone.values()) {
+            for (Node node : nodes) {
+                nodeIndices[i++] = routingGraph.getNodeIndex(node);
+            }
+        }
+        Arrays.sort(nodeIndices);
+        int uniqueCount = 0;
+        for (int j = 0; j < nodeIndices.length; j++) {
+            if (uniqueCount == 0 || nodeIndices[uniqueCount - 1] != nodeIndices[j]) {
+                nodeIndices[uniqueCount++] = nodeIndices[j];
+            }
+        }
+        return Arrays.copyOf(nodeIndices, uniqueCount);
+    }
+
     private static class RowWorker<T> implements Runnable {
         private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
         private final Graph graph;
-        private final Map<T, Node[]> nodesPerZone;
+        private final ContractionHierarchy ch;
+        private final ManyToManyQuery.Targets chTargets;
+        private final TravelCostSnapshot snapshot;
+        private final int[][] nodeIndicesPerZone;
         private final NetworkIndicators<T> networkIndicators;
         private final TravelTime travelTime;
         private final TravelDisutility travelDisutility;
         private final double departureTime;
+        private final PointAggregation pointAggregation;
         private final Counter counter;
 
-        private final static Vehicle VEHICLE = VehicleUtils.getFactory().createVehicle(Id.create("theVehicle", Vehicle.class), VehicleUtils.getDefaultVehicleType());
-        private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+        private LeastCostPathTree lcpTree = null;
+        private ManyToManyQuery chQuery = null;
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Graph graph, Map<T, Node[]> nodesPerZone, NetworkIndicators<T> networkIndicators, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, Counter counter) {
+        RowWorker(ConcurrentLinkedQueue<T> originZones, Graph graph, ContractionHierarchy ch, ManyToManyQuery.Targets chTargets, TravelCostSnapshot snapshot, int[][] nodeIndicesPerZone, NetworkIndicators<T> networkIndicators, double departureTime, TravelTime travelTime, TravelDisutility travelDisutility, PointAggregation pointAggregation, Counter counter) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
             this.graph = graph;
-            this.nodesPerZone = nodesPerZone;
+            this.ch = ch;
+            this.chTargets = chTargets;
+            this.snapshot = snapshot;
+            this.nodeIndicesPerZone = nodeIndicesPerZone;
             this.networkIndicators = networkIndicators;
             this.departureTime = departureTime;
             this.travelTime = travelTime;
             this.travelDisutility = travelDisutility;
+            this.pointAggregation = pointAggregation;
             this.counter = counter;
         }
 
         public void run() {
-            LeastCostPathTree lcpTree = new LeastCostPathTree(this.graph, this.travelTime, this.travelDisutility);
+            if (this.ch != null) {
+                this.chQuery = new ManyToManyQuery(this.ch, this.chTargets);
+            } else if (this.snapshot != null) {
+                this.lcpTree = new LeastCostPathTree(this.snapshot);
+            } else {
+                this.lcpTree = new LeastCostPathTree(this.graph, this.travelTime, this.travelDisutility);
+            }
             while (true) {
                 T fromZoneId = this.originZones.poll();
                 if (fromZoneId == null) {
@@ -128,46 +271,84 @@ public final class NetworkSkimMatrices {
                 }
 
                 this.counter.incCounter();
-                Node[] fromNodes = this.nodesPerZone.get(fromZoneId);
+                int fromZoneIndex = this.networkIndicators.travelTimeMatrix.getIndex(fromZoneId);
+                FloatMatrix.Row travelTimeRow = this.networkIndicators.travelTimeMatrix.getRow(fromZoneIndex);
+                FloatMatrix.Row distanceRow = this.networkIndicators.distanceMatrix.getRow(fromZoneIndex);
+                int[] fromNodes = this.nodeIndicesPerZone[fromZoneIndex];
                 if (fromNodes != null) {
-                    for (Node fromNode : fromNodes) {
-                        lcpTree.calculate(fromNode.getId().index(), this.departureTime, PERSON, VEHICLE);
-
-                        for (T toZoneId : this.destinationZones) {
-                            Node[] toNodes = this.nodesPerZone.get(toZoneId);
-                            if (toNodes != null) {
-                                for (Node toNode : toNodes) {
-                                    int nodeIndex = toNode.getId().index();
-                                    double tt = lcpTree.getTime(nodeIndex) - this.departureTime;
-                                    double dist = lcpTree.getDistance(nodeIndex);
-                                    this.networkIndicators.travelTimeMatrix.add(fromZoneId, toZoneId, (float) tt);
-                                    this.networkIndicators.distanceMatrix.add(fromZoneId, toZoneId, (float) dist);
-                                }
-                            } else {
-                                // this might happen if a zone has no geometry, for whatever reason...
-                                this.networkIndicators.travelTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                                this.networkIndicators.distanceMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                            }
+                    if (this.pointAggregation == PointAggregation.MIN_OVER_ORIGIN_POINTS) {
+                        calculate(fromNodes);
+                        addTreeToMatrices(travelTimeRow, distanceRow);
+                    } else {
+                        for (int fromNode : fromNodes) {
+                            calculate(fromNode);
+                            addTreeToMatrices(travelTimeRow, distanceRow);
                         }
                     }
                 } else {
                     // this might happen if a zone has no geometry, for whatever reason...
-                    for (T toZoneId : this.destinationZones) {
-                        this.networkIndicators.travelTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                        this.networkIndicators.distanceMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
+                    travelTimeRow.fill(Float.POSITIVE_INFINITY);
+                    distanceRow.fill(Float.POSITIVE_INFINITY);
+                }
+            }
+        }
+
+        private void calculate(int fromNode) {
+            if (this.chQuery != null) {
+                this.chQuery.calculate(fromNode);
+            } else {
+                this.lcpTree.calculate(fromNode, this.departureTime, PERSON, VEHICLE);
+            }
+        }
+
+        private void calculate(int[] fromNodes) {
+            if (this.chQuery != null) {
+                this.chQuery.calculate(fromNodes);
+            } else {
+                this.lcpTree.calculate(fromNodes, null, this.departureTime, PERSON, VEHICLE);
+            }
+        }
+
+        private void addTreeToMatrices(FloatMatrix.Row travelTimeRow, FloatMatrix.Row distanceRow) {
+            for (int toZoneIndex = 0; toZoneIndex < this.nodeIndicesPerZone.length; toZoneIndex++) {
+                int[] toNodes = this.nodeIndicesPerZone[toZoneIndex];
+                if (toNodes != null) {
+                    for (int nodeIndex : toNodes) {
+                        double tt;
+                        double dist;
+                        if (this.chQuery != null) {
+                            int targetIndex = this.chQuery.getTargetIndex(nodeIndex);
+                            tt = this.chQuery.getTravelTime(targetIndex);
+                            dist = this.chQuery.getDistance(targetIndex);
+                        } else {
+                            tt = this.lcpTree.getTime(nodeIndex) - this.departureTime;
+                            dist = this.lcpTree.getDistance(nodeIndex);
+                        }
+                        travelTimeRow.add(toZoneIndex, (float) tt);
+                        distanceRow.add(toZoneIndex, (float) dist);
                     }
+                } else {
+                    // this might happen if a zone has no geometry, for whatever reason...
+                    travelTimeRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
+                    distanceRow.set(toZoneIndex, Float.POSITIVE_INFINITY);
                 }
             }
         }
     }
 
     static class NetworkIndicators<T> {
+        private static final int TRAVEL_TIME = 0;
+        private static final int DISTANCE = 1;
+
+        final SkimCube<T> cube;
         final FloatMatrix<T> travelTimeMatrix;
         final FloatMatrix<T> distanceMatrix;
 
         NetworkIndicators(Set<T> zones) {
-            this.travelTimeMatrix = new FloatMatrix<>(zones, 0);
-            this.distanceMatrix = new FloatMatrix<>(zones, 0);
+            // both values of a cell are updated together, so store them next to each other
+            this.cube = new SkimCube<>(zones, 2, SkimCube.Layout.CELL_MAJOR);
+            this.travelTimeMatrix = this.cube.getLayer(TRAVEL_TIME);
+            this.distanceMatrix = this.cube.getLayer(DISTANCE);
         }
     }
 
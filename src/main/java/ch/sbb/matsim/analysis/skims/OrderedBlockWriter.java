@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.matsim.core.utils.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a large output consisting of independent blocks, formatting (and optionally compressing)
+ * the blocks in parallel, but writing them in the correct order.
+ *
+ * Each block is formatted into its own byte array by one of the worker threads. If compression is
+ * enabled, each block is compressed as a separate gzip member. Concatenated gzip members form a valid
+ * gzip file (see RFC 1952), which {@link java.util.zip.GZIPInputStream} reads as one continuous stream.
+ * The calling thread writes the finished blocks in order to the output stream.
+ *
+ * To limit the memory usage, the workers only format blocks up to a fixed number of blocks ahead of
+ * the last block written.
+ *
+ * @author mrieser / SBB
+ */
+final class OrderedBlockWriter {
+
+    private OrderedBlockWriter() {
+    }
+
+    @FunctionalInterface
+    interface BlockFormatter {
+        /**
+         * Writes the contents of the block with the given index to the stream.
+         * This method is called concurrently by multiple threads for different blocks.
+         */
+        void formatBlock(int block, OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return <code>true</code> if the blocks written to the file should be compressed by this writer, i.e. if the file is gzip-compressed.
+     */
+    static boolean isCompressedByBlocks(String filename) {
+        return filename.endsWith(".gz");
+    }
+
+    /**
+     * Opens the file to be written with {@link #write}. Files ending in <code>.gz</code> are opened as raw files, as the
+     * blocks are compressed by this writer. All other files are opened with IOUtils, which applies any other compression
+     * based on the file extension.
+     */
+    static OutputStream openOutputStream(String filename) throws IOException {
+        if (isCompressedByBlocks(filename)) {
+            return new FileOutputStream(filename);
+        }
+        return IOUtils.getOutputStream(IOUtils.getFileUrl(filename), false);
+    }
+
+    /**
+     * Writes the given number of blocks to the stream. The stream is not closed.
+     */
+    static void write(OutputStream out, int blockCount, boolean compress, int numberOfThreads, BlockFormatter formatter) throws IOException {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("numberOfThreads must be at least 1, but is " + numberOfThreads);
+        }
+        BlockQueue queue = new BlockQueue(2 * numberOfThreads);
+        AtomicInteger nextBlock = new AtomicInteger(0);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            BlockWorker worker = new BlockWorker(queue, nextBlock, blockCount, compress, formatter);
+            threads[i] = new Thread(worker, "OrderedBlockWriter-" + i);
+            threads[i].start();
+        }
+
+        try {
+            for (int block = 0; block < blockCount; block++) {
+                byte[] data = queue.take(block);
+                out.write(data);
+            }
+        } finally {
+            queue.abort(null);
+            // wait until all threads have finished
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static class BlockWorker implements Runnable {
+        private final BlockQueue queue;
+        private final AtomicInteger nextBlock;
+        private final int blockCount;
+        private final boolean compress;
+        private final BlockFormatter formatter;
+
+        BlockWorker(BlockQueue queue, AtomicInteger nextBlock, int blockCount, boolean compress, BlockFormatter formatter) {
+            this.queue = queue;
+            this.nextBlock = nextBlock;
+            this.blockCount = blockCount;
+            this.compress = compress;
+            this.formatter = formatter;
+        }
+
+        public void run() {
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+                while (true) {
+                    int block = this.nextBlock.getAndIncrement();
+                    if (block >= this.blockCount || !this.queue.awaitSlot(block)) {
+                        return;
+                    }
+                    buffer.reset();
+                    if (this.compress) {
+                        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer, 1 << 16)) {
+                            this.formatter.formatBlock(block, gzip);
+                        }
+                    } else {
+                        this.formatter.formatBlock(block, buffer);
+                    }
+                    this.queue.put(block, buffer.toByteArray());
+                }
+            } catch (Throwable t) {
+                // also catch errors (e.g. OutOfMemoryError), otherwise the writing thread would wait forever for the block
+                this.queue.abort(t);
+            }
+        }
+    }
+
+    /**
+     * Holds the formatted blocks until they are written. Block <code>b</code> is stored in slot
+     * <code>b % capacity</code>, and can only be added once block <code>b - capacity</code> was written.
+     */
+    private static class BlockQueue {
+        private final byte[][] slots;
+        private int nextBlockToWrite = 0;
+        private boolean aborted = false;
+        private Throwable exception = null;
+
+        BlockQueue(int capacity) {
+            this.slots = new byte[capacity][];
+        }
+
+        /**
+         * Waits until the slot for the given block becomes available.
+         * @return <code>false</code> if the writing was aborted.
+         */
+        synchronized boolean awaitSlot(int block) {
+            while (!this.aborted && block >= this.nextBlockToWrite + this.slots.length) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    this.aborted = true;
+                }
+            }
+            return !this.aborted;
+        }
+
+        synchronized void put(int block, byte[] data) {
+            this.slots[block % this.slots.length] = data;
+            notifyAll();
+        }
+
+        synchronized byte[] take(int block) throws IOException {
+            int slot = block % this.slots.length;
+            while (this.slots[slot] == null && !this.aborted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for block " + block, e);
+                }
+            }
+            if (this.exception != null) {
+                throw new IOException("Failed to format block.", this.exception);
+            }
+            if (this.slots[slot] == null) {
+                throw new IOException("Writing was aborted before block " + block + " was formatted.");
+            }
+            byte[] data = this.slots[slot];
+            this.slots[slot] = null;
+            this.nextBlockToWrite = block + 1;
+            notifyAll();
+            return data;
+        }
+
+        synchronized void abort(Throwable t) {
+            if (t != null && this.exception == null) {
+                this.exception = t;
+            }
+            this.aborted = true;
+            notifyAll();
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package ch.sbb.matsim.analysis.skims;
 
-import ch.sbb.matsim.analysis.skims.RooftopUtils.ODConnection;
+import ch.sbb.matsim.analysis.skims.RooftopUtils.ConnectionBuffer;
+import ch.sbb.matsim.routing.graph.Graph;
 import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
 import ch.sbb.matsim.routing.pt.raptor.RaptorRoute;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.core.utils.geometry.CoordUtils;
@@ -53,6 +55,16 @@ import java.util.function.BiPredicate;
  * to the calculation of m*n LeastCostPathTrees. In addition, it supports running the calculation in parallel to reduce the time
  * required to compute one matrix.
  *
+ * The stop candidates and walk times of all points are determined once in parallel before the actual calculation starts,
+ * and are then used for every origin and destination. For each point, the trees are calculated for departure times in steps
+ * of <code>stepSize</code> around the departure time window. As the trees start at all stop
+ * candidates of a point at the same time, they only depend on the set of stop candidates. Points of a zone using the same
+ * stop candidates thus share their trees, which are calculated group by group. Of each tree, only the connections to the
+ * stop candidates are kept, and a connection found in multiple trees is only stored once (see {@link TreeConnections}).
+ * Points of neighbouring zones often use the same stop candidates as well. The origin zones are thus ordered spatially
+ * and handed out to the threads in batches of neighbouring zones, and each thread keeps the trees of its recently used
+ * sets of stop candidates in a cache of limited size.
+ *
  * If no connection can be found between two zones (can happen when there is no transit stop in a zone),
  * the corresponding matrix cells contain the value "0" for the perceived frequency, and "Infinity" for all other skim matrices.
  *
@@ -60,21 +72,44 @@ import java.util.function.BiPredicate;
  */
 public class PTSkimMatrices {
 
+    private static final Logger log = Logger.getLogger(PTSkimMatrices.class);
+
+    /** number of neighbouring origin zones handed out to a thread at once */
+    private static final int ZONE_BATCH_SIZE = 16;
+
     private PTSkimMatrices() {
     }
 
     public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector) {
         // prepare calculation
         PtIndicators<T> pti = new PtIndicators<>(zones.keySet());
+        // all matrices use the same zone indices
+        int zoneCount = pti.dataCountMatrix.getZoneCount();
+        Coord[][] coordsPerZoneIndex = new Coord[zoneCount][];
+        for (int i = 0; i < zoneCount; i++) {
+            coordsPerZoneIndex[i] = coordsPerZone.get(pti.dataCountMatrix.getZone(i));
+        }
+
+        // find the stop candidates of all points once, they are used for every origin and every destination
+        PointStops[][] stopsPerZoneIndex = calcStopsPerPoint(coordsPerZoneIndex, raptorData, parameters, numberOfThreads);
+        StopIndex stopIndex = new StopIndex(stopsPerZoneIndex);
 
         // do calculation
-        ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
+        // neighbouring zones often have points with the same stop candidates, so they are handed out in batches
+        // of neighbouring zones to let each thread re-use the trees it calculated for the previous zones.
+        List<T> orderedZones = orderSpatially(zones.keySet(), coordsPerZone);
+        ConcurrentLinkedQueue<List<T>> originZones = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < orderedZones.size(); i += ZONE_BATCH_SIZE) {
+            originZones.add(orderedZones.subList(i, Math.min(i + ZONE_BATCH_SIZE, orderedZones.size())));
+        }
 
         Counter counter = new Counter("PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + " zone ", " / " + zones.size());
         Thread[] threads = new Thread[numberOfThreads];
+        RowWorker<?>[] workers = new RowWorker<?>[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
             SwissRailRaptor raptor = new SwissRailRaptor(raptorData, null, null, null);
-            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), coordsPerZone, pti, raptor, parameters, minDepartureTime, maxDepartureTime, stepSize_seconds, counter, trainDetector);
+            RowWorker<T> worker = new RowWorker<>(originZones, stopsPerZoneIndex, stopIndex, pti, raptor, parameters, minDepartureTime, maxDepartureTime, stepSize_seconds, counter, trainDetector);
+            workers[i] = worker;
             threads[i] = new Thread(worker, "PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + "-" + i);
             threads[i].start();
         }
@@ -88,41 +123,446 @@ public class PTSkimMatrices {
             }
         }
 
-        for (T fromZoneId : zones.keySet()) {
-            for (T toZoneId : zones.keySet()) {
-                float count = pti.dataCountMatrix.get(fromZoneId, toZoneId);
-                if (count == 0) {
-                    pti.adaptionTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.frequencyMatrix.set(fromZoneId, toZoneId, 0);
-                    pti.distanceMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.travelTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.accessTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.egressTimeMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.transferCountMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.trainDistanceShareMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                    pti.trainTravelTimeShareMatrix.set(fromZoneId, toZoneId, Float.POSITIVE_INFINITY);
-                } else {
-                    float avgFactor = 1.0f / count;
-                    float adaptionTime = pti.adaptionTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.travelTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.accessTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.egressTimeMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.trainDistanceShareMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.trainTravelTimeShareMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    pti.transferCountMatrix.multiply(fromZoneId, toZoneId, avgFactor);
-                    float frequency = (float) ((maxDepartureTime - minDepartureTime) / adaptionTime / 4.0);
-                    pti.frequencyMatrix.set(fromZoneId, toZoneId, frequency);
+        long pointCount = 0;
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        for (RowWorker<?> worker : workers) {
+            pointCount += worker.pointCount;
+            cacheHits += worker.cacheHits;
+            cacheMisses += worker.cacheMisses;
+        }
+        long groupCount = cacheHits + cacheMisses;
+        log.info("PT trees calculated for " + cacheMisses + " sets of stop candidates of " + pointCount + " origin points. "
+                + cacheHits + " of " + groupCount + " groups of points with the same stop candidates were found in the cache of previous zones"
+                + (groupCount > 0 ? String.format(" (hit rate %.1f%%).", 100.0 * cacheHits / groupCount) : "."));
+
+        pti.cube.divideByLayer(PtIndicators.DATA_COUNT, PtIndicators.ADAPTION_TIME, PtIndicators.TRAVEL_TIME, PtIndicators.ACCESS_TIME,
+                PtIndicators.EGRESS_TIME, PtIndicators.TRAIN_DISTANCE_SHARE, PtIndicators.TRAIN_TRAVELTIME_SHARE, PtIndicators.TRANSFER_COUNT);
+        for (int fromIndex = 0; fromIndex < zoneCount; fromIndex++) {
+            FloatMatrix.Row countRow = pti.dataCountMatrix.getRow(fromIndex);
+            FloatMatrix.Row adaptionTimeRow = pti.adaptionTimeMatrix.getRow(fromIndex);
+            FloatMatrix.Row frequencyRow = pti.frequencyMatrix.getRow(fromIndex);
+            for (int toIndex = 0; toIndex < zoneCount; toIndex++) {
+                if (countRow.get(toIndex) != 0) {
+                    float frequency = (float) ((maxDepartureTime - minDepartureTime) / adaptionTimeRow.get(toIndex) / 4.0);
+                    frequencyRow.set(toIndex, frequency);
                 }
             }
         }
+        // the frequency is already 0 where no data is available
+        pti.cube.fillWhereZero(PtIndicators.DATA_COUNT, Float.POSITIVE_INFINITY, PtIndicators.ADAPTION_TIME, PtIndicators.DISTANCE, PtIndicators.TRAVEL_TIME,
+                PtIndicators.ACCESS_TIME, PtIndicators.EGRESS_TIME, PtIndicators.TRANSFER_COUNT, PtIndicators.TRAIN_DISTANCE_SHARE, PtIndicators.TRAIN_TRAVELTIME_SHARE);
 
         return pti;
     }
 
+    /**
+     * Orders the zones along a Hilbert curve through the mean coordinates of their points, so zones following each
+     * other are mostly neighbours. Zones without points are added at the end.
+     */
+    private static <T> List<T> orderSpatially(Collection<T> zones, Map<T, Coord[]> coordsPerZone) {
+        List<T> zonesWithPoints = new ArrayList<>();
+        List<T> zonesWithoutPoints = new ArrayList<>();
+        List<Coord> centers = new ArrayList<>();
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (T zone : zones) {
+            Coord[] coords = coordsPerZone.get(zone);
+            if (coords == null || coords.length == 0) {
+                zonesWithoutPoints.add(zone);
+                continue;
+            }
+            double x = 0;
+            double y = 0;
+            for (Coord coord : coords) {
+                x += coord.getX();
+                y += coord.getY();
+            }
+            Coord center = new Coord(x / coords.length, y / coords.length);
+            zonesWithPoints.add(zone);
+            centers.add(center);
+            minX = Math.min(minX, center.getX());
+            minY = Math.min(minY, center.getY());
+            maxX = Math.max(maxX, center.getX());
+            maxY = Math.max(maxY, center.getY());
+        }
+        final int hilbertOrder = 16;
+        final int maxCell = (1 << hilbertOrder) - 1;
+        double scale = maxCell / Math.max(1e-9, Math.max(maxX - minX, maxY - minY));
+
+        // sort by hilbert value (upper bits), the position in the zones list is stored in the lower bits
+        long[] keys = new long[zonesWithPoints.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Coord c = centers.get(i);
+            int x = (int) ((c.getX() - minX) * scale);
+            int y = (int) ((c.getY() - minY) * scale);
+            long d = Graph.hilbertIndex(hilbertOrder, Math.min(x, maxCell), Math.min(y, maxCell));
+            keys[i] = (d << 31) | i;
+        }
+        Arrays.sort(keys);
+        List<T> ordered = new ArrayList<>(zones.size());
+        for (long key : keys) {
+            ordered.add(zonesWithPoints.get((int) (key & Integer.MAX_VALUE)));
+        }
+        ordered.addAll(zonesWithoutPoints);
+        return ordered;
+    }
+
+    private static PointStops[][] calcStopsPerPoint(Coord[][] coordsPerZoneIndex, SwissRailRaptorData raptorData, RaptorParameters parameters, int numberOfThreads) {
+        PointStops[][] stopsPerZoneIndex = new PointStops[coordsPerZoneIndex.length][];
+        ConcurrentLinkedQueue<Integer> zoneIndices = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < coordsPerZoneIndex.length; i++) {
+            zoneIndices.add(i);
+        }
+
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            StopsWorker worker = new StopsWorker(zoneIndices, coordsPerZoneIndex, stopsPerZoneIndex, raptorData, parameters);
+            threads[i] = new Thread(worker, "PT-StopCandidates-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return stopsPerZoneIndex;
+    }
+
+    /**
+     * The stop candidates of a point, together with the walk times between the point and each stop.
+     * They are used as access times if the point is the origin, and as egress times if it is the destination.
+     * Instances are immutable once the {@link StopIndex} is built, and shared by all threads.
+     */
+    static final class PointStops {
+        final Collection<TransitStopFacility> stops;
+        final Set<Id<TransitStopFacility>> stopIdSet;
+        final Id<TransitStopFacility>[] stopIds;
+        final int[] stopIndices; // index of each stop in the StopIndex
+        final double[] walkTimes;
+
+        @SuppressWarnings("unchecked")
+        PointStops(Coord coord, Collection<TransitStopFacility> stops, double walkSpeed) {
+            this.stops = Collections.unmodifiableList(new ArrayList<>(stops));
+            this.stopIds = new Id[stops.size()];
+            this.stopIndices = new int[stops.size()];
+            this.walkTimes = new double[stops.size()];
+            Set<Id<TransitStopFacility>> stopIdSet = new HashSet<>();
+            int i = 0;
+            for (TransitStopFacility stop : stops) {
+                double distance = CoordUtils.calcEuclideanDistance(coord, stop.getCoord());
+                this.stopIds[i] = stop.getId();
+                this.walkTimes[i] = distance / walkSpeed;
+                stopIdSet.add(stop.getId());
+                i++;
+            }
+            this.stopIdSet = Collections.unmodifiableSet(stopIdSet);
+        }
+
+        double getWalkTime(int stopIndex) {
+            for (int i = 0; i < this.stopIndices.length; i++) {
+                if (this.stopIndices[i] == stopIndex) {
+                    return this.walkTimes[i];
+                }
+            }
+            throw new IllegalArgumentException("Stop " + stopIndex + " is not a stop candidate of this point.");
+        }
+    }
+
+    /**
+     * A compact index of all stops that are stop candidates of at least one point. Only these stops can be used as
+     * departure or arrival stops, so only they have to be looked up in the trees. Also sets the stop indices of the points.
+     */
+    static final class StopIndex {
+        final Id<TransitStopFacility>[] stopIds;
+        final Map<Id<TransitStopFacility>, Integer> indices = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        StopIndex(PointStops[][] stopsPerZoneIndex) {
+            List<Id<TransitStopFacility>> stopIds = new ArrayList<>();
+            for (PointStops[] points : stopsPerZoneIndex) {
+                if (points != null) {
+                    for (PointStops point : points) {
+                        for (int i = 0; i < point.stopIds.length; i++) {
+                            Integer index = this.indices.get(point.stopIds[i]);
+                            if (index == null) {
+                                index = stopIds.size();
+                                this.indices.put(point.stopIds[i], index);
+                                stopIds.add(point.stopIds[i]);
+                            }
+                            point.stopIndices[i] = index;
+                        }
+                    }
+                }
+            }
+            this.stopIds = stopIds.toArray(new Id[0]);
+        }
+
+        int size() {
+            return this.stopIds.length;
+        }
+    }
+
+    /**
+     * The connections to the stops of the {@link StopIndex} found in all the trees calculated for one set of departure stops.
+     * Only stops reached by pt are stored. If consecutive trees contain the same connection to a stop (same departure stop,
+     * departure time, travel time and number of transfers), which is the case for most trees as the departure time steps are
+     * usually shorter than the headways, the connection is only stored once. RooftopUtils would remove the later copies anyway,
+     * as they never improve on the first one. The connections of a stop form a linked list in the order of the trees.
+     *
+     * The distances and in-vehicle times are calculated from the route as soon as a connection is added, so the raptor's
+     * data is not referenced after a tree is added. Each stored connection uses 48 bytes, and each indexed stop 8 bytes.
+     */
+    static final class TreeConnections {
+        private static final int MIN_CAPACITY = 1024;
+
+        private final int[] firstConnections; // per indexed stop, -1 if the stop is not reached
+        private final int[] lastConnections; // per indexed stop, only valid if the stop is reached
+        private int[] nextConnections; // -1 for the last connection of a stop
+        private int[] treeIndices;
+        private double[] departureTimes;
+        private double[] travelTimes;
+        private int[] transferCounts;
+        private int[] departureStopIndices;
+        private float[] distances;
+        private float[] trainDistances;
+        private float[] inVehicleTimes;
+        private float[] trainInVehicleTimes;
+        private int size = 0;
+        private int treeCount = 0;
+
+        TreeConnections(int stopCount) {
+            this.firstConnections = new int[stopCount];
+            this.lastConnections = new int[stopCount];
+            Arrays.fill(this.firstConnections, -1);
+            setCapacity(MIN_CAPACITY);
+        }
+
+        private void setCapacity(int capacity) {
+            if (this.nextConnections == null) {
+                this.nextConnections = new int[capacity];
+                this.treeIndices = new int[capacity];
+                this.departureTimes = new double[capacity];
+                this.travelTimes = new double[capacity];
+                this.transferCounts = new int[capacity];
+                this.departureStopIndices = new int[capacity];
+                this.distances = new float[capacity];
+                this.trainDistances = new float[capacity];
+                this.inVehicleTimes = new float[capacity];
+                this.trainInVehicleTimes = new float[capacity];
+            } else {
+                this.nextConnections = Arrays.copyOf(this.nextConnections, capacity);
+                this.treeIndices = Arrays.copyOf(this.treeIndices, capacity);
+                this.departureTimes = Arrays.copyOf(this.departureTimes, capacity);
+                this.travelTimes = Arrays.copyOf(this.travelTimes, capacity);
+                this.transferCounts = Arrays.copyOf(this.transferCounts, capacity);
+                this.departureStopIndices = Arrays.copyOf(this.departureStopIndices, capacity);
+                this.distances = Arrays.copyOf(this.distances, capacity);
+                this.trainDistances = Arrays.copyOf(this.trainDistances, capacity);
+                this.inVehicleTimes = Arrays.copyOf(this.inVehicleTimes, capacity);
+                this.trainInVehicleTimes = Arrays.copyOf(this.trainInVehicleTimes, capacity);
+            }
+        }
+
+        /**
+         * Removes all connections. If the last set of departure stops required much less memory than allocated,
+         * the memory is reduced, so a single set with many connections does not increase the memory for all following ones.
+         */
+        void clear() {
+            Arrays.fill(this.firstConnections, -1);
+            int capacity = Math.max(this.size, MIN_CAPACITY);
+            if (this.nextConnections.length > 2 * capacity) {
+                this.nextConnections = null; // the connections are not needed anymore, so new arrays are allocated
+                setCapacity(capacity);
+            }
+            this.size = 0;
+            this.treeCount = 0;
+        }
+
+        /**
+         * Adds the connections to all indexed stops reached by pt in the tree.
+         */
+        void addTree(Map<Id<TransitStopFacility>, TravelInfo> tree, StopIndex stopIndex, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+            int treeIndex = this.treeCount++;
+            for (int stop = 0; stop < this.firstConnections.length; stop++) {
+                TravelInfo info = tree.get(stopIndex.stopIds[stop]);
+                if (info == null || info.isWalkOnly()) {
+                    continue;
+                }
+                int departureStopIndex = stopIndex.indices.get(info.departureStop);
+                int previous = this.firstConnections[stop] < 0 ? -1 : this.lastConnections[stop];
+                if (previous >= 0
+                        && this.departureStopIndices[previous] == departureStopIndex
+                        && this.departureTimes[previous] == info.ptDepartureTime
+                        && this.travelTimes[previous] == info.ptTravelTime
+                        && this.transferCounts[previous] == info.transferCount) {
+                    continue; // the same connection as in an earlier tree
+                }
+                if (this.size == this.nextConnections.length) {
+                    setCapacity(this.size * 2);
+                }
+                int connection = this.size++;
+                this.nextConnections[connection] = -1;
+                this.treeIndices[connection] = treeIndex;
+                this.departureTimes[connection] = info.ptDepartureTime;
+                this.travelTimes[connection] = info.ptTravelTime;
+                this.transferCounts[connection] = info.transferCount;
+                this.departureStopIndices[connection] = departureStopIndex;
+                evaluateRoute(connection, info.getRaptorRoute(), trainDetector);
+                if (previous >= 0) {
+                    this.nextConnections[previous] = connection;
+                } else {
+                    this.firstConnections[stop] = connection;
+                }
+                this.lastConnections[stop] = connection;
+            }
+        }
+
+        private void evaluateRoute(int connection, RaptorRoute route, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+            double totalDistance = 0;
+            double trainDistance = 0;
+            double totalInVehTime = 0;
+            double trainInVehTime = 0;
+
+            for (RaptorRoute.RoutePart part : route.getParts()) {
+                if (part.line != null) {
+                    // it's a non-transfer part, an actual pt stage
+
+                    boolean isTrain = trainDetector.test(part.line, part.route);
+                    double inVehicleTime = part.arrivalTime - part.boardingTime;
+
+                    totalDistance += part.distance;
+                    totalInVehTime += inVehicleTime;
+
+                    if (isTrain) {
+                        trainDistance += part.distance;
+                        trainInVehTime += inVehicleTime;
+                    }
+                }
+            }
+
+            this.distances[connection] = (float) totalDistance;
+            this.trainDistances[connection] = (float) trainDistance;
+            this.inVehicleTimes[connection] = (float) totalInVehTime;
+            this.trainInVehicleTimes[connection] = (float) trainInVehTime;
+        }
+
+        /**
+         * @return the number of stored connections.
+         */
+        int size() {
+            return this.size;
+        }
+
+        /**
+         * @return the first connection to the stop, or -1 if the stop was not reached by pt.
+         */
+        int getFirstConnection(int stopIndex) {
+            return this.firstConnections[stopIndex];
+        }
+
+        /**
+         * @return the next connection to the same stop from the same or a later tree, or -1 if there is none.
+         */
+        int getNextConnection(int connection) {
+            return this.nextConnections[connection];
+        }
+
+        int getTreeIndex(int connection) {
+            return this.treeIndices[connection];
+        }
+
+        double getDepartureTime(int connection) {
+            return this.departureTimes[connection];
+        }
+
+        double getTravelTime(int connection) {
+            return this.travelTimes[connection];
+        }
+
+        int getTransferCount(int connection) {
+            return this.transferCounts[connection];
+        }
+
+        int getDepartureStopIndex(int connection) {
+            return this.departureStopIndices[connection];
+        }
+
+        double getDistance(int connection) {
+            return this.distances[connection];
+        }
+
+        double getTrainDistance(int connection) {
+            return this.trainDistances[connection];
+        }
+
+        double getInVehicleTime(int connection) {
+            return this.inVehicleTimes[connection];
+        }
+
+        double getTrainInVehicleTime(int connection) {
+            return this.trainInVehicleTimes[connection];
+        }
+    }
+
+    private static class StopsWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> zoneIndices;
+        private final Coord[][] coordsPerZoneIndex;
+        private final PointStops[][] stopsPerZoneIndex;
+        private final SwissRailRaptorData raptorData;
+        private final RaptorParameters parameters;
+
+        StopsWorker(ConcurrentLinkedQueue<Integer> zoneIndices, Coord[][] coordsPerZoneIndex, PointStops[][] stopsPerZoneIndex, SwissRailRaptorData raptorData, RaptorParameters parameters) {
+            this.zoneIndices = zoneIndices;
+            this.coordsPerZoneIndex = coordsPerZoneIndex;
+            this.stopsPerZoneIndex = stopsPerZoneIndex;
+            this.raptorData = raptorData;
+            this.parameters = parameters;
+        }
+
+        public void run() {
+            double walkSpeed = this.parameters.getBeelineWalkSpeed();
+            while (true) {
+                Integer zoneIndex = this.zoneIndices.poll();
+                if (zoneIndex == null) {
+                    return;
+                }
+                Coord[] coords = this.coordsPerZoneIndex[zoneIndex];
+                if (coords != null) {
+                    PointStops[] pointStops = new PointStops[coords.length];
+                    for (int i = 0; i < coords.length; i++) {
+                        Collection<TransitStopFacility> stops = findStopCandidates(coords[i], this.raptorData, this.parameters);
+                        pointStops[i] = new PointStops(coords[i], stops, walkSpeed);
+                    }
+                    this.stopsPerZoneIndex[zoneIndex] = pointStops;
+                }
+            }
+        }
+    }
+
+    private static Collection<TransitStopFacility> findStopCandidates(Coord coord, SwissRailRaptorData raptorData, RaptorParameters parameters) {
+        Collection<TransitStopFacility> stops = raptorData.findNearbyStops(coord.getX(), coord.getY(), parameters.getSearchRadius());
+        if (stops.isEmpty()) {
+            TransitStopFacility nearest = raptorData.findNearestStop(coord.getX(), coord.getY());
+            double nearestStopDistance = CoordUtils.calcEuclideanDistance(coord, nearest.getCoord());
+            stops = raptorData.findNearbyStops(coord.getX(), coord.getY(), nearestStopDistance + parameters.getExtensionRadius());
+        }
+        return stops;
+    }
+
     static class RowWorker<T> implements Runnable {
-        private final ConcurrentLinkedQueue<T> originZones;
-        private final Set<T> destinationZones;
-        private final Map<T, Coord[]> coordsPerZone;
+        private static final int MAX_CACHED_CONNECTIONS = 1 << 20; // about 48 MB per thread
+        private static final int MAX_CACHED_STOP_SETS = 64;
+
+        private final ConcurrentLinkedQueue<List<T>> originZones;
+        private final PointStops[][] stopsPerZoneIndex;
+        private final StopIndex stopIndex;
         private final PtIndicators<T> pti;
         private final SwissRailRaptor raptor;
         private final RaptorParameters parameters;
@@ -131,11 +571,20 @@ public class PTSkimMatrices {
         private final double stepSize;
         private final Counter counter;
         private final BiPredicate<TransitLine, TransitRoute> trainDetector;
-
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, PtIndicators<T> pti, SwissRailRaptor raptor, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, double stepSize, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        private final ConnectionBuffer<TreeConnections> connections = new ConnectionBuffer<>(64); // re-used for all OD-relations
+        private final LinkedHashMap<Set<Id<TransitStopFacility>>, TreeConnections> cachedTrees = new LinkedHashMap<>(16, 0.75f, true); // in access order
+        private int cachedConnections = 0;
+        private TreeConnections spareTrees = null; // evicted from the cache, re-used for the next set of stop candidates
+        private final FloatMatrix.Row[] rows = new FloatMatrix.Row[PtIndicators.LAYER_COUNT]; // of the current origin zone
+        private int[] cursors = new int[16]; // the next connection per stop of the destination point
+        long pointCount = 0;
+        long cacheHits = 0;
+        long cacheMisses = 0;
+
+        RowWorker(ConcurrentLinkedQueue<List<T>> originZones, PointStops[][] stopsPerZoneIndex, StopIndex stopIndex, PtIndicators<T> pti, SwissRailRaptor raptor, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, double stepSize, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
             this.originZones = originZones;
-            this.destinationZones = destinationZones;
-            this.coordsPerZone = coordsPerZone;
+            this.stopsPerZoneIndex = stopsPerZoneIndex;
+            this.stopIndex = stopIndex;
             this.pti = pti;
             this.raptor = raptor;
             this.parameters = parameters;
@@ -148,74 +597,106 @@ public class PTSkimMatrices {
 
         public void run() {
             while (true) {
-                T fromZoneId = this.originZones.poll();
-                if (fromZoneId == null) {
+                List<T> fromZoneIds = this.originZones.poll();
+                if (fromZoneIds == null) {
                     return;
                 }
+                for (T fromZoneId : fromZoneIds) {
+                    calcForZone(fromZoneId);
+                }
+            }
+        }
 
-                this.counter.incCounter();
-                Coord[] fromCoords = this.coordsPerZone.get(fromZoneId);
-                if (fromCoords != null) {
-                    for (Coord fromCoord : fromCoords) {
-                        calcForRow(fromZoneId, fromCoord);
+        private void calcForZone(T fromZoneId) {
+            this.counter.incCounter();
+            int fromZoneIndex = this.pti.dataCountMatrix.getIndex(fromZoneId);
+            PointStops[] fromPoints = this.stopsPerZoneIndex[fromZoneIndex];
+            if (fromPoints != null) {
+                for (int layer = 0; layer < this.rows.length; layer++) {
+                    this.rows[layer] = this.pti.cube.getLayer(layer).getRow(fromZoneIndex);
+                }
+                // The trees start at all stops at the same time, the access times are only added per connection later on.
+                // Thus the trees only depend on the set of stops, and not on the point itself. The points of a zone often
+                // use the same stops, so the trees are looked up once per group of points with the same stops.
+                Map<Set<Id<TransitStopFacility>>, List<PointStops>> pointsPerStops = new LinkedHashMap<>();
+                for (PointStops fromPoint : fromPoints) {
+                    pointsPerStops.computeIfAbsent(fromPoint.stopIdSet, stopIds -> new ArrayList<>()).add(fromPoint);
+                }
+                this.pointCount += fromPoints.length;
+                for (List<PointStops> points : pointsPerStops.values()) {
+                    TreeConnections trees = getTrees(points.get(0));
+                    for (PointStops fromPoint : points) {
+                        calcForRow(fromPoint, trees);
                     }
                 }
             }
         }
 
-        private void calcForRow(T fromZoneId, Coord fromCoord) {
-            double walkSpeed = this.parameters.getBeelineWalkSpeed();
-
-            Collection<TransitStopFacility> fromStops = findStopCandidates(fromCoord, this.raptor, this.parameters);
-            Map<Id<TransitStopFacility>, Double> accessTimes = new HashMap<>();
-            for (TransitStopFacility stop : fromStops) {
-                double distance = CoordUtils.calcEuclideanDistance(fromCoord, stop.getCoord());
-                double accessTime = distance / walkSpeed;
-                accessTimes.put(stop.getId(), accessTime);
+        /**
+         * Returns the trees starting at the stop candidates of the given point. Points of neighbouring zones often
+         * use the same stops, so the trees of recently used sets of stops are kept across zones. The cache is limited
+         * by the number of stored connections; the least recently used trees are evicted first, and their memory is
+         * re-used for the next set of stops.
+         */
+        private TreeConnections getTrees(PointStops fromPoint) {
+            TreeConnections trees = this.cachedTrees.get(fromPoint.stopIdSet);
+            if (trees != null) {
+                this.cacheHits++;
+                return trees;
             }
-
-            List<Map<Id<TransitStopFacility>, TravelInfo>> trees = new ArrayList<>();
-
-            double timeWindow = this.maxDepartureTime - this.minDepartureTime;
-            double endTime = this.maxDepartureTime + timeWindow;
-            for (double time = this.minDepartureTime - timeWindow; time < endTime; time += this.stepSize) {
-                Map<Id<TransitStopFacility>, TravelInfo> tree = this.raptor.calcTree(fromStops, time, this.parameters);
-                trees.add(tree);
+            this.cacheMisses++;
+            trees = this.spareTrees != null ? this.spareTrees : new TreeConnections(this.stopIndex.size());
+            this.spareTrees = null;
+            calcTrees(trees, fromPoint.stops);
+            this.cachedTrees.put(fromPoint.stopIdSet, trees);
+            this.cachedConnections += trees.size();
+
+            // evict the least recently used trees, but always keep the ones just calculated
+            Iterator<TreeConnections> iter = this.cachedTrees.values().iterator();
+            while ((this.cachedConnections > MAX_CACHED_CONNECTIONS || this.cachedTrees.size() > MAX_CACHED_STOP_SETS) && this.cachedTrees.size() > 1) {
+                TreeConnections evicted = iter.next();
+                iter.remove();
+                this.cachedConnections -= evicted.size();
+                this.spareTrees = evicted;
             }
+            return trees;
+        }
 
-            for (T toZoneId : this.destinationZones) {
-                Coord[] toCoords = this.coordsPerZone.get(toZoneId);
-                if (toCoords != null) {
-                    for (Coord toCoord : toCoords) {
-                        calcForOD(fromZoneId, fromCoord, toZoneId, toCoord, accessTimes, trees);
+        private void calcForRow(PointStops fromPoint, TreeConnections trees) {
+            for (int toZoneIndex = 0; toZoneIndex < this.stopsPerZoneIndex.length; toZoneIndex++) {
+                PointStops[] toPoints = this.stopsPerZoneIndex[toZoneIndex];
+                if (toPoints != null) {
+                    for (PointStops toPoint : toPoints) {
+                        calcForOD(fromPoint, toZoneIndex, toPoint, trees);
                     }
                 }
             }
         }
 
-        private void calcForOD(T fromZoneId, Coord fromCoord, T toZoneId, Coord toCoord, Map<Id<TransitStopFacility>, Double> accessTimes, List<Map<Id<TransitStopFacility>, TravelInfo>> trees) {
-            double walkSpeed = this.parameters.getBeelineWalkSpeed();
-
-            Collection<TransitStopFacility> toStops = findStopCandidates(toCoord, this.raptor, this.parameters);
-            Map<Id<TransitStopFacility>, Double> egressTimes = new HashMap<>();
-            for (TransitStopFacility stop : toStops) {
-                double distance = CoordUtils.calcEuclideanDistance(stop.getCoord(), toCoord);
-                double egressTime = distance / walkSpeed;
-                egressTimes.put(stop.getId(), egressTime);
+        private void calcTrees(TreeConnections trees, Collection<TransitStopFacility> fromStops) {
+            trees.clear();
+            double timeWindow = this.maxDepartureTime - this.minDepartureTime;
+            double endTime = this.maxDepartureTime + timeWindow;
+            for (double time = this.minDepartureTime - timeWindow; time < endTime; time += this.stepSize) {
+                Map<Id<TransitStopFacility>, TravelInfo> tree = this.raptor.calcTree(fromStops, time, this.parameters);
+                trees.addTree(tree, this.stopIndex, this.trainDetector);
             }
+        }
 
-            List<ODConnection> connections = buildODConnections(trees, accessTimes, egressTimes);
+        private void calcForOD(PointStops fromPoint, int toZoneIndex, PointStops toPoint, TreeConnections trees) {
+            ConnectionBuffer<TreeConnections> connections = this.connections;
+            buildODConnections(trees, fromPoint, toPoint, connections);
             if (connections.isEmpty()) {
                 return;
             }
 
-            connections = RooftopUtils.sortAndFilterConnections(connections, maxDepartureTime);
+            RooftopUtils.sortAndFilterConnections(connections, this.maxDepartureTime);
 
-            double avgAdaptionTime = RooftopUtils.calcAverageAdaptionTime(connections, minDepartureTime, maxDepartureTime);
+            double avgAdaptionTime = RooftopUtils.calcAverageAdaptionTime(connections, this.minDepartureTime, this.maxDepartureTime);
 
-            this.pti.adaptionTimeMatrix.add(fromZoneId, toZoneId, (float) avgAdaptionTime);
+            this.rows[PtIndicators.ADAPTION_TIME].add(toZoneIndex, (float) avgAdaptionTime);
 
-            Map<ODConnection, Double> connectionShares = RooftopUtils.calcConnectionShares(connections, minDepartureTime, maxDepartureTime);
+            RooftopUtils.calcConnectionShares(connections, this.minDepartureTime, this.maxDepartureTime);
 
             float accessTime = 0;
             float egressTime = 0;
@@ -227,89 +708,95 @@ public class PTSkimMatrices {
             double totalInVehTime = 0;
             double trainInVehTime = 0;
 
-            for (Map.Entry<ODConnection, Double> e : connectionShares.entrySet()) {
-                ODConnection connection = e.getKey();
-                double share = e.getValue();
-
-                accessTime += share * accessTimes.get(connection.travelInfo.departureStop).floatValue();
-                egressTime += share * (float) connection.egressTime;
-                transferCount += share * (float) connection.transferCount;
-                travelTime += share * (float) connection.totalTravelTime();
-
-                double connTotalDistance = 0;
-                double connTrainDistance = 0;
-                double connTotalInVehTime = 0;
-                double connTrainInVehTime = 0;
-
-                RaptorRoute route = connection.travelInfo.getRaptorRoute();
-                for (RaptorRoute.RoutePart part : route.getParts()) {
-                    if (part.line != null) {
-                        // it's a non-transfer part, an actual pt stage
-
-                        boolean isTrain = this.trainDetector.test(part.line, part.route);
-                        double inVehicleTime = part.arrivalTime - part.boardingTime;
-
-                        connTotalDistance += part.distance;
-                        connTotalInVehTime += inVehicleTime;
-
-                        if (isTrain) {
-                            connTrainDistance += part.distance;
-                            connTrainInVehTime += inVehicleTime;
-                        }
-                    }
+            for (int i = 0; i < connections.size(); i++) {
+                double share = connections.getShare(i);
+                if (Double.isNaN(share)) {
+                    continue; // the connection does not cover any part of the time window
                 }
 
-                totalDistance += share * connTotalDistance;
-                trainDistance += share * connTrainDistance;
-                totalInVehTime += share * connTotalInVehTime;
-                trainInVehTime += share * connTrainInVehTime;
+                accessTime += share * (float) connections.getAccessTime(i);
+                egressTime += share * (float) connections.getEgressTime(i);
+                transferCount += share * (float) connections.getTransferCount(i);
+                travelTime += share * (float) connections.totalTravelTime(i);
+
+                int connection = connections.getHandleIndex(i);
+                totalDistance += share * trees.getDistance(connection);
+                trainDistance += share * trees.getTrainDistance(connection);
+                totalInVehTime += share * trees.getInVehicleTime(connection);
+                trainInVehTime += share * trees.getTrainInVehicleTime(connection);
             }
 
             float trainShareByTravelTime = (float) (trainInVehTime / totalInVehTime);
             float trainShareByDistance = (float) (trainDistance / totalDistance);
 
-            this.pti.accessTimeMatrix.add(fromZoneId, toZoneId, accessTime);
-            this.pti.egressTimeMatrix.add(fromZoneId, toZoneId, egressTime);
-            this.pti.transferCountMatrix.add(fromZoneId, toZoneId, transferCount);
-            this.pti.travelTimeMatrix.add(fromZoneId, toZoneId, travelTime);
-            this.pti.distanceMatrix.add(fromZoneId, toZoneId, (float) totalDistance);
-            this.pti.trainDistanceShareMatrix.add(fromZoneId, toZoneId, trainShareByDistance);
-            this.pti.trainTravelTimeShareMatrix.add(fromZoneId, toZoneId, trainShareByTravelTime);
-
-            this.pti.dataCountMatrix.add(fromZoneId, toZoneId, 1);
-        }
-
-        private List<ODConnection> buildODConnections(List<Map<Id<TransitStopFacility>, TravelInfo>> trees, Map<Id<TransitStopFacility>, Double> accessTimes, Map<Id<TransitStopFacility>, Double> egressTimes) {
-            List<ODConnection> connections = new ArrayList<>();
-
-            for (Map<Id<TransitStopFacility>, TravelInfo> tree : trees) {
-                for (Map.Entry<Id<TransitStopFacility>, Double> egressEntry : egressTimes.entrySet()) {
-                    Id<TransitStopFacility> egressStopId = egressEntry.getKey();
-                    Double egressTime = egressEntry.getValue();
-                    TravelInfo info = tree.get(egressStopId);
-                    if (info != null && !info.isWalkOnly()) {
-                        Double accessTime = accessTimes.get(info.departureStop);
-                        ODConnection connection = new ODConnection(info.ptDepartureTime, info.ptTravelTime, accessTime, egressTime, info.transferCount, info);
-                        connections.add(connection);
-                    }
-                }
-            }
+            FloatMatrix.Row[] rows = this.rows;
+            rows[PtIndicators.ACCESS_TIME].add(toZoneIndex, accessTime);
+            rows[PtIndicators.EGRESS_TIME].add(toZoneIndex, egressTime);
+            rows[PtIndicators.TRANSFER_COUNT].add(toZoneIndex, transferCount);
+            rows[PtIndicators.TRAVEL_TIME].add(toZoneIndex, travelTime);
+            rows[PtIndicators.DISTANCE].add(toZoneIndex, (float) totalDistance);
+            rows[PtIndicators.TRAIN_DISTANCE_SHARE].add(toZoneIndex, trainShareByDistance);
+            rows[PtIndicators.TRAIN_TRAVELTIME_SHARE].add(toZoneIndex, trainShareByTravelTime);
 
-            return connections;
+            rows[PtIndicators.DATA_COUNT].add(toZoneIndex, 1);
         }
 
-        private static Collection<TransitStopFacility> findStopCandidates(Coord coord, SwissRailRaptor raptor, RaptorParameters parameters) {
-            Collection<TransitStopFacility> stops = raptor.getUnderlyingData().findNearbyStops(coord.getX(), coord.getY(), parameters.getSearchRadius());
-            if (stops.isEmpty()) {
-                TransitStopFacility nearest = raptor.getUnderlyingData().findNearestStop(coord.getX(), coord.getY());
-                double nearestStopDistance = CoordUtils.calcEuclideanDistance(coord, nearest.getCoord());
-                stops = raptor.getUnderlyingData().findNearbyStops(coord.getX(), coord.getY(), nearestStopDistance + parameters.getExtensionRadius());
+        /**
+         * Adds the connections to the stops of the destination point in the order of the trees, and for each tree
+         * in the order of the stops, so ties are resolved the same way as if the trees were evaluated one by one.
+         */
+        private void buildODConnections(TreeConnections trees, PointStops fromPoint, PointStops toPoint, ConnectionBuffer<TreeConnections> connections) {
+            connections.clear();
+
+            int stopCount = toPoint.stopIndices.length;
+            if (this.cursors.length < stopCount) {
+                this.cursors = new int[stopCount];
+            }
+            int[] cursors = this.cursors;
+            for (int i = 0; i < stopCount; i++) {
+                cursors[i] = trees.getFirstConnection(toPoint.stopIndices[i]);
+            }
+            while (true) {
+                int next = -1;
+                int nextTreeIndex = Integer.MAX_VALUE;
+                for (int i = 0; i < stopCount; i++) {
+                    int connection = cursors[i];
+                    if (connection >= 0 && trees.getTreeIndex(connection) < nextTreeIndex) {
+                        next = i;
+                        nextTreeIndex = trees.getTreeIndex(connection);
+                    }
+                }
+                if (next < 0) {
+                    return;
+                }
+                int connection = cursors[next];
+                double accessTime = fromPoint.getWalkTime(trees.getDepartureStopIndex(connection));
+                double egressTime = toPoint.walkTimes[next];
+                connections.add(trees.getDepartureTime(connection), trees.getTravelTime(connection), accessTime, egressTime, trees.getTransferCount(connection), trees, connection);
+                cursors[next] = trees.getNextConnection(connection);
             }
-            return stops;
         }
     }
 
+    /**
+     * The skim matrices calculated for public transport. All matrices are layers of the same {@link SkimCube},
+     * with the values of a cell stored next to each other, as they are all updated together for each OD-relation.
+     */
     public static class PtIndicators<T> {
+        static final int ADAPTION_TIME = 0;
+        static final int FREQUENCY = 1;
+        static final int DISTANCE = 2;
+        static final int TRAVEL_TIME = 3;
+        static final int ACCESS_TIME = 4;
+        static final int EGRESS_TIME = 5;
+        static final int TRANSFER_COUNT = 6;
+        static final int TRAIN_TRAVELTIME_SHARE = 7;
+        static final int TRAIN_DISTANCE_SHARE = 8;
+        static final int DATA_COUNT = 9;
+        private static final int LAYER_COUNT = 10;
+
+        public final SkimCube<T> cube;
+
         public final FloatMatrix<T> adaptionTimeMatrix;
         public final FloatMatrix<T> frequencyMatrix;
 
@@ -324,17 +811,19 @@ public class PTSkimMatrices {
         public final FloatMatrix<T> dataCountMatrix; // how many values/routes were taken into account to calculate the averages
 
         PtIndicators(Set<T> zones) {
-            this.adaptionTimeMatrix = new FloatMatrix<>(zones, 0);
-            this.frequencyMatrix = new FloatMatrix<>(zones, 0);
-
-            this.distanceMatrix = new FloatMatrix<>(zones, 0);
-            this.travelTimeMatrix = new FloatMatrix<>(zones, 0);
-            this.accessTimeMatrix = new FloatMatrix<>(zones, 0);
-            this.egressTimeMatrix = new FloatMatrix<>(zones, 0);
-            this.transferCountMatrix = new FloatMatrix<>(zones, 0);
-            this.dataCountMatrix = new FloatMatrix<>(zones, 0);
-            this.trainTravelTimeShareMatrix = new FloatMatrix<>(zones, 0);
-            this.trainDistanceShareMatrix = new FloatMatrix<>(zones, 0);
+            this.cube = new SkimCube<>(zones, LAYER_COUNT, SkimCube.Layout.CELL_MAJOR);
+
+            this.adaptionTimeMatrix = this.cube.getLayer(ADAPTION_TIME);
+            this.frequencyMatrix = this.cube.getLayer(FREQUENCY);
+
+            this.distanceMatrix = this.cube.getLayer(DISTANCE);
+            this.travelTimeMatrix = this.cube.getLayer(TRAVEL_TIME);
+            this.accessTimeMatrix = this.cube.getLayer(ACCESS_TIME);
+            this.egressTimeMatrix = this.cube.getLayer(EGRESS_TIME);
+            this.transferCountMatrix = this.cube.getLayer(TRANSFER_COUNT);
+            this.dataCountMatrix = this.cube.getLayer(DATA_COUNT);
+            this.trainTravelTimeShareMatrix = this.cube.getLayer(TRAIN_TRAVELTIME_SHARE);
+            this.trainDistanceShareMatrix = this.cube.getLayer(TRAIN_DISTANCE_SHARE);
         }
     }
 
@@ -3,7 +3,7 @@ package ch.sbb.matsim.analysis.skims;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,99 +20,113 @@ import java.util.Map;
 public class RooftopUtils {
 
     public static List<ODConnection> sortAndFilterConnections(List<ODConnection> connections, double maxDepartureTime) {
-        connections.sort((c1, c2) -> Double.compare((c1.departureTime - c1.accessTime), (c2.departureTime - c2.accessTime)));
+        ConnectionBuffer<ODConnection> buffer = toBuffer(connections);
+        sortAndFilterConnections(buffer, maxDepartureTime);
+        List<ODConnection> filteredConnections = new ArrayList<>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            filteredConnections.add(buffer.getHandle(i));
+        }
+        return filteredConnections;
+    }
+
+    /**
+     * Sorts the connections by their departure time (including access time) and removes all connections that are dominated
+     * by an earlier or later connection. The buffer is modified in place, afterwards it only contains the remaining
+     * connections in ascending departure time order.
+     */
+    public static void sortAndFilterConnections(ConnectionBuffer<?> connections, double maxDepartureTime) {
+        connections.sortByDepartureTime();
+        int size = connections.size();
+        if (size == 0) {
+            return;
+        }
 
         // step forward through all connections and figure out which can be ignore because the earlier one is better
-        List<ODConnection> filteredConnections1 = new ArrayList<>(connections.size());
-        ODConnection earlierConnection = null;
-        for (ODConnection connection : connections) {
-            if (earlierConnection == null) {
-                filteredConnections1.add(connection);
-                earlierConnection = connection;
-            } else {
-                double timeDiff = (connection.departureTime - connection.accessTime) - (earlierConnection.departureTime - earlierConnection.accessTime);
-                if (earlierConnection.totalTravelTime() + timeDiff > connection.totalTravelTime() + 0.5) { // +0.5 to catch numerical instabilities in double calculations
-                    // connection is better to earlierConnection, use it
-                    filteredConnections1.add(connection);
-                    earlierConnection = connection;
-                }
+        int count = 1;
+        int earlierConnection = 0;
+        for (int i = 1; i < size; i++) {
+            double timeDiff = connections.getStartTime(i) - connections.getStartTime(earlierConnection);
+            if (connections.totalTravelTime(earlierConnection) + timeDiff > connections.totalTravelTime(i) + 0.5) { // +0.5 to catch numerical instabilities in double calculations
+                // connection is better to earlierConnection, use it
+                connections.move(i, count);
+                earlierConnection = count;
+                count++;
             }
         }
 
-        // now step backwards through the remaining connections and figure out which can be ignored because the later one is better
-        List<ODConnection> filteredConnections = new ArrayList<>();
-        ODConnection laterConnection = null;
-
-        for (int i = filteredConnections1.size() - 1; i >= 0; i--) {
-            ODConnection connection = filteredConnections1.get(i);
-            if (laterConnection == null) {
-                filteredConnections.add(connection);
-                laterConnection = connection;
-            } else {
-                double timeDiff = (laterConnection.departureTime - laterConnection.accessTime) - (connection.departureTime - connection.accessTime);
-                if (laterConnection.totalTravelTime() + timeDiff > connection.totalTravelTime() + 0.5) { // +0.5 to catch numerical instabilities in double calculations
-                    // connection is better to laterConnection, use it
-                    if (connection.departureTime - connection.accessTime > maxDepartureTime) {
-                        // there should only be one connection after maxDepartureTime
-                        filteredConnections.set(0, connection);
-                    } else {
-                        filteredConnections.add(connection);
-                    }
-                    laterConnection = connection;
+        // now step backwards through the remaining connections and figure out which can be ignored because the later one is better.
+        // The remaining connections are collected at the end of the buffer, the position can never overtake the current connection.
+        int last = count - 1;
+        int first = last;
+        int laterConnection = last;
+        for (int i = last - 1; i >= 0; i--) {
+            double timeDiff = connections.getStartTime(laterConnection) - connections.getStartTime(i);
+            if (connections.totalTravelTime(laterConnection) + timeDiff > connections.totalTravelTime(i) + 0.5) { // +0.5 to catch numerical instabilities in double calculations
+                // connection is better to laterConnection, use it
+                if (connections.getStartTime(i) > maxDepartureTime) {
+                    // there should only be one connection after maxDepartureTime
+                    connections.move(i, last);
+                    laterConnection = last;
+                } else {
+                    first--;
+                    connections.move(i, first);
+                    laterConnection = first;
                 }
             }
         }
 
-        Collections.reverse(filteredConnections);
-        // now the filtered connections are in ascending departure time order
-
-        return filteredConnections;
+        // now the filtered connections are in ascending departure time order, move them to the start of the buffer
+        for (int i = first; i <= last; i++) {
+            connections.move(i, i - first);
+        }
+        connections.size = last - first + 1;
     }
 
     public static double calcAverageAdaptionTime(List<ODConnection> connections, double minDepartureTime, double maxDepartureTime) {
-        ODConnection prevConnection = null;
+        return calcAverageAdaptionTime(toBuffer(connections), minDepartureTime, maxDepartureTime);
+    }
+
+    public static double calcAverageAdaptionTime(ConnectionBuffer<?> connections, double minDepartureTime, double maxDepartureTime) {
+        int size = connections.size();
         double sum = 0;
-        for (ODConnection connection : connections) {
-            if (prevConnection != null) {
-                double depTime1 = prevConnection.departureTime - prevConnection.accessTime;
-                double depTime2 = connection.departureTime - connection.accessTime;
-                if (depTime2 > minDepartureTime && depTime1 < maxDepartureTime) {
-                    double travelTime1 = prevConnection.totalTravelTime();
-                    double travelTime2 = connection.totalTravelTime();
-                    double deltaStart = 0;
-                    double deltaEnd = 0;
-                    if (depTime1 < minDepartureTime) {
-                        // shift connection1 to minDepartureTime
-                        deltaStart = minDepartureTime - depTime1;
-                        depTime1 = minDepartureTime;
-                        travelTime1 += deltaStart;
-                    }
-                    if (depTime2 > maxDepartureTime) {
-                        // shift connection2 to maxDepartureTime;
-                        deltaEnd = depTime2 - maxDepartureTime;
-                        depTime2 = maxDepartureTime;
-                        travelTime2 += deltaEnd;
-                    }
-                    double deltaTravelTime = travelTime2 - travelTime1;
-                    double zenith = ((depTime1 + deltaTravelTime) + depTime2) / 2;
-
-                    if (zenith < minDepartureTime) {
-                        sum += (depTime2 - minDepartureTime) * (depTime2 - minDepartureTime) / 2;
-                    } else if (zenith > maxDepartureTime) {
-                        sum += (maxDepartureTime - depTime1) * (maxDepartureTime - depTime1) / 2;
-                    } else {
-                        sum += (zenith - depTime1) * (zenith - depTime1) / 2;
-                        sum += deltaStart * (zenith - depTime1);
-                        sum += (depTime2 - zenith) * (depTime2 - zenith) / 2;
-                        sum += deltaEnd * (depTime2 - zenith);
-                    }
+        for (int i = 1; i < size; i++) {
+            double depTime1 = connections.getStartTime(i - 1);
+            double depTime2 = connections.getStartTime(i);
+            if (depTime2 > minDepartureTime && depTime1 < maxDepartureTime) {
+                double travelTime1 = connections.totalTravelTime(i - 1);
+                double travelTime2 = connections.totalTravelTime(i);
+                double deltaStart = 0;
+                double deltaEnd = 0;
+                if (depTime1 < minDepartureTime) {
+                    // shift connection1 to minDepartureTime
+                    deltaStart = minDepartureTime - depTime1;
+                    depTime1 = minDepartureTime;
+                    travelTime1 += deltaStart;
+                }
+                if (depTime2 > maxDepartureTime) {
+                    // shift connection2 to maxDepartureTime;
+                    deltaEnd = depTime2 - maxDepartureTime;
+                    depTime2 = maxDepartureTime;
+                    travelTime2 += deltaEnd;
+                }
+                double deltaTravelTime = travelTime2 - travelTime1;
+                double zenith = ((depTime1 + deltaTravelTime) + depTime2) / 2;
+
+                if (zenith < minDepartureTime) {
+                    sum += (depTime2 - minDepartureTime) * (depTime2 - minDepartureTime) / 2;
+                } else if (zenith > maxDepartureTime) {
+                    sum += (maxDepartureTime - depTime1) * (maxDepartureTime - depTime1) / 2;
+                } else {
+                    sum += (zenith - depTime1) * (zenith - depTime1) / 2;
+                    sum += deltaStart * (zenith - depTime1);
+                    sum += (depTime2 - zenith) * (depTime2 - zenith) / 2;
+                    sum += deltaEnd * (depTime2 - zenith);
                 }
             }
-            prevConnection = connection;
         }
-        if (connections.size() == 1) {
-            // in this case, the above loop did nothing except setting prevConnection
-            double depTime = prevConnection.departureTime - prevConnection.accessTime;
+        if (size == 1) {
+            // in this case, the above loop did nothing
+            double depTime = connections.getStartTime(0);
             if (depTime < minDepartureTime) {
                 double delta = minDepartureTime - depTime;
                 sum = (3600 + delta) * (3600 + delta) / 2 - (delta * delta / 2);
@@ -123,8 +137,8 @@ public class RooftopUtils {
                 sum += (depTime - minDepartureTime) * (depTime - minDepartureTime) / 2;
                 sum += (maxDepartureTime - depTime) * (maxDepartureTime - depTime) / 2;
             }
-        } else if (prevConnection != null) {
-            double depTime = prevConnection.departureTime - prevConnection.accessTime;
+        } else if (size > 1) {
+            double depTime = connections.getStartTime(size - 1);
             if (depTime < maxDepartureTime) {
                 // there is no departure after maxDepartureTime, so we're missing the final part
                 sum += (maxDepartureTime - depTime) * (maxDepartureTime - depTime) / 2;
@@ -136,65 +150,308 @@ public class RooftopUtils {
     /** calculates the share each connection covers based on minimizing (travelTime + adaptionTime)
      */
     public static Map<ODConnection, Double> calcConnectionShares(List<ODConnection> connections, double minDepartureTime, double maxDepartureTime) {
+        ConnectionBuffer<ODConnection> buffer = toBuffer(connections);
+        calcConnectionShares(buffer, minDepartureTime, maxDepartureTime);
         Map<ODConnection, Double> shares = new HashMap<>();
+        for (int i = 0; i < buffer.size(); i++) {
+            double share = buffer.getShare(i);
+            if (!Double.isNaN(share)) {
+                shares.merge(buffer.getHandle(i), share, Double::sum);
+            }
+        }
+        return shares;
+    }
 
-        ODConnection prevConnection = null;
-        for (ODConnection connection : connections) {
-            if (prevConnection != null) {
-                double depTime1 = prevConnection.departureTime - prevConnection.accessTime;
-                double depTime2 = connection.departureTime - connection.accessTime;
-                if (depTime2 > minDepartureTime && depTime1 < maxDepartureTime) {
-                    double travelTime1 = prevConnection.totalTravelTime();
-                    double travelTime2 = connection.totalTravelTime();
-                    if (depTime1 < minDepartureTime) {
-                        // shift connection1 to minDepartureTime
-                        double delta = minDepartureTime - depTime1;
-                        depTime1 = minDepartureTime;
-                        travelTime1 += delta;
-                    }
-                    if (depTime2 > maxDepartureTime) {
-                        // shift connection2 to maxDepartureTime;
-                        double delta = depTime2 - maxDepartureTime;
-                        depTime2 = maxDepartureTime;
-                        travelTime2 += delta;
-                    }
-                    double deltaTravelTime = travelTime2 - travelTime1;
-                    double zenith = ((depTime1 + deltaTravelTime) + depTime2) / 2;
-
-                    double share1 = (zenith - depTime1) /  3600;
-                    double share2 = (depTime2 - zenith) /  3600;
+    /**
+     * Calculates the share each connection covers based on minimizing (travelTime + adaptionTime) and stores it in the buffer.
+     * Connections not covering any part of the time window get a share of <code>NaN</code>.
+     */
+    public static void calcConnectionShares(ConnectionBuffer<?> connections, double minDepartureTime, double maxDepartureTime) {
+        int size = connections.size();
+        Arrays.fill(connections.shares, 0, size, Double.NaN);
 
-                    if (share1 < 0) {
-                        // this can happen if zenith if before minDepTime
-                        share2 += share1;
-                        share1 = 0;
-                    }
-                    if (share2 < 0) {
-                        // this can happen if zenith is after maxDepTime
-                        share1 += share2;
-                        share2 = 0;
-                    }
+        for (int i = 1; i < size; i++) {
+            double depTime1 = connections.getStartTime(i - 1);
+            double depTime2 = connections.getStartTime(i);
+            if (depTime2 > minDepartureTime && depTime1 < maxDepartureTime) {
+                double travelTime1 = connections.totalTravelTime(i - 1);
+                double travelTime2 = connections.totalTravelTime(i);
+                if (depTime1 < minDepartureTime) {
+                    // shift connection1 to minDepartureTime
+                    double delta = minDepartureTime - depTime1;
+                    depTime1 = minDepartureTime;
+                    travelTime1 += delta;
+                }
+                if (depTime2 > maxDepartureTime) {
+                    // shift connection2 to maxDepartureTime;
+                    double delta = depTime2 - maxDepartureTime;
+                    depTime2 = maxDepartureTime;
+                    travelTime2 += delta;
+                }
+                double deltaTravelTime = travelTime2 - travelTime1;
+                double zenith = ((depTime1 + deltaTravelTime) + depTime2) / 2;
 
-                    final double fShare1 = share1; // variables must be final to be used in lambda expression below
-                    final double fShare2 = share2;
+                double share1 = (zenith - depTime1) /  3600;
+                double share2 = (depTime2 - zenith) /  3600;
 
-                    shares.compute(prevConnection, (c, oldVal) -> (oldVal == null ? fShare1 : (oldVal + fShare1)));
-                    shares.compute(connection, (c, oldVal) -> (oldVal == null ? fShare2 : (oldVal + fShare2)));
+                if (share1 < 0) {
+                    // this can happen if zenith if before minDepTime
+                    share2 += share1;
+                    share1 = 0;
                 }
+                if (share2 < 0) {
+                    // this can happen if zenith is after maxDepTime
+                    share1 += share2;
+                    share2 = 0;
+                }
+
+                connections.addShare(i - 1, share1);
+                connections.addShare(i, share2);
             }
-            prevConnection = connection;
         }
-        if (connections.size() == 1) {
-            shares.put(prevConnection, 1.0);
-        } else if (prevConnection != null) {
-            double depTime = prevConnection.departureTime - prevConnection.accessTime;
+        if (size == 1) {
+            connections.shares[0] = 1.0;
+        } else if (size > 1) {
+            double depTime = connections.getStartTime(size - 1);
             if (depTime < maxDepartureTime) {
                 // there is no departure after maxDepartureTime, so we're still missing the final part
                 double share = (maxDepartureTime - depTime) /  3600;
-                shares.compute(prevConnection, (c, oldVal) -> (oldVal == null ? share : (oldVal + share)));
+                connections.addShare(size - 1, share);
+            }
+        }
+    }
+
+    private static ConnectionBuffer<ODConnection> toBuffer(List<ODConnection> connections) {
+        ConnectionBuffer<ODConnection> buffer = new ConnectionBuffer<>(connections.size());
+        for (ODConnection connection : connections) {
+            buffer.add(connection.departureTime, connection.travelTime, connection.accessTime, connection.egressTime, connection.transferCount, connection);
+        }
+        return buffer;
+    }
+
+    /**
+     * Stores connections column-wise in primitive arrays, so that a buffer can be re-used for many OD-relations
+     * without creating any objects per connection. Each connection has a handle and an index within the handle,
+     * e.g. a tree and the stop within the tree, which are passed along when the connections are sorted or filtered.
+     *
+     * @param <C> type of the connection handles
+     */
+    public static final class ConnectionBuffer<C> {
+        private double[] departureTimes;
+        private double[] travelTimes;
+        private double[] accessTimes;
+        private double[] egressTimes;
+        private double[] transferCounts;
+        private double[] shares;
+        private Object[] handles;
+        private int[] handleIndices;
+        private int size = 0;
+        private int[] sortOrder = null;
+        private int[] sortBuffer = null;
+        private double[] sortKeys = null;
+
+        public ConnectionBuffer(int initialCapacity) {
+            int capacity = Math.max(initialCapacity, 1);
+            this.departureTimes = new double[capacity];
+            this.travelTimes = new double[capacity];
+            this.accessTimes = new double[capacity];
+            this.egressTimes = new double[capacity];
+            this.transferCounts = new double[capacity];
+            this.shares = new double[capacity];
+            this.handles = new Object[capacity];
+            this.handleIndices = new int[capacity];
+        }
+
+        /**
+         * Removes all connections, but keeps the allocated memory.
+         */
+        public void clear() {
+            Arrays.fill(this.handles, 0, this.size, null);
+            this.size = 0;
+        }
+
+        public void add(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, C handle) {
+            add(departureTime, travelTime, accessTime, egressTime, transferCount, handle, -1);
+        }
+
+        public void add(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, C handle, int handleIndex) {
+            if (this.size == this.departureTimes.length) {
+                int capacity = this.size * 2;
+                this.departureTimes = Arrays.copyOf(this.departureTimes, capacity);
+                this.travelTimes = Arrays.copyOf(this.travelTimes, capacity);
+                this.accessTimes = Arrays.copyOf(this.accessTimes, capacity);
+                this.egressTimes = Arrays.copyOf(this.egressTimes, capacity);
+                this.transferCounts = Arrays.copyOf(this.transferCounts, capacity);
+                this.shares = Arrays.copyOf(this.shares, capacity);
+                this.handles = Arrays.copyOf(this.handles, capacity);
+                this.handleIndices = Arrays.copyOf(this.handleIndices, capacity);
+            }
+            int i = this.size;
+            this.departureTimes[i] = departureTime;
+            this.travelTimes[i] = travelTime;
+            this.accessTimes[i] = accessTime;
+            this.egressTimes[i] = egressTime;
+            this.transferCounts[i] = transferCount;
+            this.shares[i] = Double.NaN;
+            this.handles[i] = handle;
+            this.handleIndices[i] = handleIndex;
+            this.size++;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        public double getDepartureTime(int i) {
+            return this.departureTimes[i];
+        }
+
+        public double getTravelTime(int i) {
+            return this.travelTimes[i];
+        }
+
+        public double getAccessTime(int i) {
+            return this.accessTimes[i];
+        }
+
+        public double getEgressTime(int i) {
+            return this.egressTimes[i];
+        }
+
+        public double getTransferCount(int i) {
+            return this.transferCounts[i];
+        }
+
+        /**
+         * @return the share calculated by {@link RooftopUtils#calcConnectionShares(ConnectionBuffer, double, double)},
+         * or <code>NaN</code> if the connection has no share.
+         */
+        public double getShare(int i) {
+            return this.shares[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        public C getHandle(int i) {
+            return (C) this.handles[i];
+        }
+
+        /**
+         * @return the index within the handle, or -1 if none was specified.
+         */
+        public int getHandleIndex(int i) {
+            return this.handleIndices[i];
+        }
+
+        public double totalTravelTime(int i) {
+            return this.accessTimes[i] + this.travelTimes[i] + this.egressTimes[i];
+        }
+
+        /**
+         * @return the time when one has to leave the origin, i.e. the departure time minus the access time.
+         */
+        double getStartTime(int i) {
+            return this.departureTimes[i] - this.accessTimes[i];
+        }
+
+        private void addShare(int i, double share) {
+            double oldShare = this.shares[i];
+            this.shares[i] = Double.isNaN(oldShare) ? share : (oldShare + share);
+        }
+
+        private void move(int from, int to) {
+            if (from != to) {
+                this.departureTimes[to] = this.departureTimes[from];
+                this.travelTimes[to] = this.travelTimes[from];
+                this.accessTimes[to] = this.accessTimes[from];
+                this.egressTimes[to] = this.egressTimes[from];
+                this.transferCounts[to] = this.transferCounts[from];
+                this.shares[to] = this.shares[from];
+                this.handles[to] = this.handles[from];
+                this.handleIndices[to] = this.handleIndices[from];
+            }
+        }
+
+        /**
+         * Sorts the connections by their start time, keeping the order of connections with the same start time.
+         * Sorts a permutation of the indices with a bottom-up merge sort on the primitive start times,
+         * and then moves the connections along the cycles of the permutation, so each connection is moved at most once.
+         */
+        void sortByDepartureTime() {
+            int n = this.size;
+            boolean isSorted = true;
+            for (int i = 1; i < n && isSorted; i++) {
+                isSorted = getStartTime(i - 1) <= getStartTime(i);
+            }
+            if (isSorted) {
+                return;
+            }
+            if (this.sortOrder == null || this.sortOrder.length < n) {
+                this.sortOrder = new int[n];
+                this.sortBuffer = new int[n];
+                this.sortKeys = new double[n];
+            }
+            int[] order = this.sortOrder;
+            int[] buffer = this.sortBuffer;
+            double[] keys = this.sortKeys;
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+                keys[i] = getStartTime(i);
+            }
+            for (int width = 1; width < n; width *= 2) {
+                for (int from = 0; from < n; from += 2 * width) {
+                    int mid = Math.min(from + width, n);
+                    int to = Math.min(from + 2 * width, n);
+                    int left = from;
+                    int right = mid;
+                    for (int k = from; k < to; k++) {
+                        if (left < mid && (right >= to || keys[order[left]] <= keys[order[right]])) {
+                            buffer[k] = order[left++];
+                        } else {
+                            buffer[k] = order[right++];
+                        }
+                    }
+                }
+                int[] tmp = order;
+                order = buffer;
+                buffer = tmp;
+            }
+            // order[k] is now the index of the connection that belongs to position k
+            for (int i = 0; i < n; i++) {
+                if (order[i] == i) {
+                    continue;
+                }
+                double departureTime = this.departureTimes[i];
+                double travelTime = this.travelTimes[i];
+                double accessTime = this.accessTimes[i];
+                double egressTime = this.egressTimes[i];
+                double transferCount = this.transferCounts[i];
+                double share = this.shares[i];
+                Object handle = this.handles[i];
+                int handleIndex = this.handleIndices[i];
+                int j = i;
+                while (true) {
+                    int source = order[j];
+                    order[j] = j;
+                    if (source == i) {
+                        break;
+                    }
+                    move(source, j);
+                    j = source;
+                }
+                this.departureTimes[j] = departureTime;
+                this.travelTimes[j] = travelTime;
+                this.accessTimes[j] = accessTime;
+                this.egressTimes[j] = egressTime;
+                this.transferCounts[j] = transferCount;
+                this.shares[j] = share;
+                this.handles[j] = handle;
+                this.handleIndices[j] = handleIndex;
             }
         }
-        return shares;
     }
 
     public static class ODConnection {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores multiple zone-to-zone matrices (layers) with the same zones in one contiguous storage,
+ * e.g. all the indicators calculated in one skim run. The zones are indexed only once and the
+ * index is shared by all layers.
+ *
+ * Each layer can be accessed as a {@link FloatMatrix} using {@link #getLayer(int)}. The layer
+ * is a view, i.e. changes to it are directly applied to the cube and vice versa.
+ *
+ * The values can be stored in two layouts:
+ * <ul>
+ *     <li>{@link Layout#LAYER_MAJOR}: all values of a layer are stored consecutively, like in
+ *     separate matrices. This is efficient when the layers are processed one after the other,
+ *     e.g. when writing them to files.</li>
+ *     <li>{@link Layout#CELL_MAJOR}: the values of all layers for one cell are stored consecutively.
+ *     This is efficient when all layers of a cell are updated at the same time, e.g. when all
+ *     indicators of an OD-relation are calculated together, as the values are then likely in the
+ *     same cache line.</li>
+ * </ul>
+ *
+ * The whole-layer operations like {@link #divideByLayer(int, int...)} process the cells in their
+ * natural order and thus access the storage sequentially with both layouts, and without any
+ * look-ups of zone indices.
+ *
+ * @param <T> identifier type for matrix entries
+ *
+ * @author mrieser / SBB
+ */
+public class SkimCube<T> {
+
+    public enum Layout { LAYER_MAJOR, CELL_MAJOR }
+
+    private final Map<T, Integer> id2index;
+    private final List<T> index2id;
+    private final int size;
+    private final int layerCount;
+    private final Layout layout;
+    private final long cellCount;
+    private final FloatStorage storage;
+    private final List<FloatMatrix<T>> layers;
+
+    public SkimCube(Set<T> zones, int layerCount, Layout layout) {
+        this(zones, layerCount, layout, FloatMatrix.getDefaultStorageType((long) zones.size() * zones.size() * layerCount));
+    }
+
+    public SkimCube(Set<T> zones, int layerCount, Layout layout, FloatMatrix.StorageType storageType) {
+        this.id2index = FloatMatrix.createIndex(zones);
+        this.index2id = new ArrayList<>(zones);
+        this.size = zones.size();
+        this.layerCount = layerCount;
+        this.layout = layout;
+        this.cellCount = (long) this.size * this.size;
+        this.storage = FloatMatrix.createStorage(this.cellCount * layerCount, storageType);
+        this.layers = new ArrayList<>(layerCount);
+        for (int layer = 0; layer < layerCount; layer++) {
+            FloatStorage view = layout == Layout.LAYER_MAJOR
+                    ? new FloatStorage.View(this.storage, layer * this.cellCount, 1, this.cellCount)
+                    : new FloatStorage.View(this.storage, layer, layerCount, this.cellCount);
+            this.layers.add(new FloatMatrix<>(this.id2index, this.index2id, view));
+        }
+    }
+
+    public int getLayerCount() {
+        return this.layerCount;
+    }
+
+    public Layout getLayout() {
+        return this.layout;
+    }
+
+    /**
+     * @return a view of the layer as matrix. All layers share the same zone indices.
+     */
+    public FloatMatrix<T> getLayer(int layer) {
+        return this.layers.get(layer);
+    }
+
+    /**
+     * Divides the values of the given layers by the value of the count layer in the same cell.
+     * Cells with a count of 0 are not changed.
+     */
+    public void divideByLayer(int countLayer, int... layers) {
+        for (long cell = 0; cell < this.cellCount; cell++) {
+            float count = this.storage.get(getStorageIndex(countLayer, cell));
+            if (count != 0) {
+                float factor = 1.0f / count;
+                for (int layer : layers) {
+                    long index = getStorageIndex(layer, cell);
+                    this.storage.set(index, this.storage.get(index) * factor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the values of the given layers to the given value in all cells where the count layer has a value of 0.
+     */
+    public void fillWhereZero(int countLayer, float value, int... layers) {
+        for (long cell = 0; cell < this.cellCount; cell++) {
+            if (this.storage.get(getStorageIndex(countLayer, cell)) == 0) {
+                for (int layer : layers) {
+                    this.storage.set(getStorageIndex(layer, cell), value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies all values of the given layer with the given factor.
+     */
+    public void multiply(int layer, float factor) {
+        this.layers.get(layer).multiply(factor);
+    }
+
+    private long getStorageIndex(int layer, long cell) {
+        return this.layout == Layout.LAYER_MAJOR
+                ? layer * this.cellCount + cell
+                : cell * this.layerCount + layer;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A sparse m x m matrix storing float values, using arbitrary objects to identify rows and columns.
+ * Only the explicitly set cells are stored, all other cells have a common default value.
+ *
+ * The values are stored in compressed sparse row (CSR) format: the column indices and values of all
+ * stored cells are kept in two arrays, sorted by row and column, and a third array contains the start
+ * of each row in these arrays. Each stored cell thus uses 8 bytes, plus 4 bytes per row. Compared to
+ * the 4 bytes per cell of the dense {@link FloatMatrix}, the sparse matrix is more efficient as long
+ * as less than half of the cells are stored. For skims limited to a short distance around each zone,
+ * e.g. walk skims or car skims calculated with a distance-bounded stop criterion, this can be only a
+ * tiny fraction of all cells. The number of stored cells is limited to 2^31 by the Java arrays.
+ *
+ * Looking up a cell requires a binary search within its row. The matrix is immutable once it is built,
+ * use a {@link Builder} to create it.
+ *
+ * @param <T> identifier type for matrix entries
+ *
+ * @author mrieser / SBB
+ */
+public final class SparseFloatMatrix<T> implements ZoneMatrix<T> {
+
+    final Map<T, Integer> id2index;
+    private final List<T> index2id;
+    final int size;
+    final float defaultValue;
+    final int[] rowStarts;
+    final int[] columns;
+    final float[] values;
+
+    SparseFloatMatrix(Map<T, Integer> id2index, List<T> index2id, float defaultValue, int[] rowStarts, int[] columns, float[] values) {
+        this.id2index = id2index;
+        this.index2id = index2id;
+        this.size = index2id.size();
+        this.defaultValue = defaultValue;
+        this.rowStarts = rowStarts;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    @Override
+    public int getZoneCount() {
+        return this.size;
+    }
+
+    @Override
+    public int getIndex(T zone) {
+        Integer index = this.id2index.get(zone);
+        return index == null ? -1 : index;
+    }
+
+    @Override
+    public T getZone(int index) {
+        return this.index2id.get(index);
+    }
+
+    public float getDefaultValue() {
+        return this.defaultValue;
+    }
+
+    /**
+     * @return the number of explicitly stored cells.
+     */
+    public int getStoredCellCount() {
+        return this.values.length;
+    }
+
+    @Override
+    public float get(T from, T to) {
+        return getByIndex(this.id2index.get(from), this.id2index.get(to));
+    }
+
+    @Override
+    public float getByIndex(int fromIndex, int toIndex) {
+        int pos = Arrays.binarySearch(this.columns, this.rowStarts[fromIndex], this.rowStarts[fromIndex + 1], toIndex);
+        return pos < 0 ? this.defaultValue : this.values[pos];
+    }
+
+    /**
+     * Collects the values of a sparse matrix. The values can be set in any order, also for multiple rows concurrently
+     * as long as each row is only set by one thread at a time. If a cell is set multiple times, the last value is kept.
+     */
+    public static final class Builder<T> {
+        private final Map<T, Integer> id2index;
+        private final List<T> index2id;
+        private final float defaultValue;
+        private final int[][] rowColumns;
+        private final float[][] rowValues;
+        private final int[] rowCounts;
+
+        public Builder(Set<T> zones, float defaultValue) {
+            this.id2index = FloatMatrix.createIndex(zones);
+            this.index2id = Collections.unmodifiableList(new ArrayList<>(zones));
+            this.defaultValue = defaultValue;
+            this.rowColumns = new int[zones.size()][];
+            this.rowValues = new float[zones.size()][];
+            this.rowCounts = new int[zones.size()];
+        }
+
+        public int getIndex(T zone) {
+            Integer index = this.id2index.get(zone);
+            return index == null ? -1 : index;
+        }
+
+        public void set(T from, T to, float value) {
+            setByIndex(this.id2index.get(from), this.id2index.get(to), value);
+        }
+
+        public void setByIndex(int fromIndex, int toIndex, float value) {
+            int count = this.rowCounts[fromIndex];
+            if (count == 0 && this.rowColumns[fromIndex] == null) {
+                this.rowColumns[fromIndex] = new int[8];
+                this.rowValues[fromIndex] = new float[8];
+            } else if (count == this.rowColumns[fromIndex].length) {
+                this.rowColumns[fromIndex] = Arrays.copyOf(this.rowColumns[fromIndex], count * 2);
+                this.rowValues[fromIndex] = Arrays.copyOf(this.rowValues[fromIndex], count * 2);
+            }
+            this.rowColumns[fromIndex][count] = toIndex;
+            this.rowValues[fromIndex][count] = value;
+            this.rowCounts[fromIndex] = count + 1;
+        }
+
+        public SparseFloatMatrix<T> build() {
+            int size = this.rowCounts.length;
+            int[] rowStarts = new int[size + 1];
+            long cellCount = 0;
+            for (int row = 0; row < size; row++) {
+                sortRow(row);
+                cellCount += this.rowCounts[row];
+                if (cellCount > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Too many cells for a sparse matrix: " + cellCount);
+                }
+                rowStarts[row + 1] = (int) cellCount;
+            }
+            int[] columns = new int[(int) cellCount];
+            float[] values = new float[(int) cellCount];
+            for (int row = 0; row < size; row++) {
+                int count = this.rowCounts[row];
+                if (count > 0) {
+                    System.arraycopy(this.rowColumns[row], 0, columns, rowStarts[row], count);
+                    System.arraycopy(this.rowValues[row], 0, values, rowStarts[row], count);
+                }
+            }
+            return new SparseFloatMatrix<>(this.id2index, this.index2id, this.defaultValue, rowStarts, columns, values);
+        }
+
+        /**
+         * Sorts the cells of the row by column and removes duplicates, keeping the value set last.
+         */
+        private void sortRow(int row) {
+            int count = this.rowCounts[row];
+            int[] columns = this.rowColumns[row];
+            float[] values = this.rowValues[row];
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = columns[i - 1] < columns[i];
+            }
+            if (sorted) {
+                return;
+            }
+            // sort by column, and by insertion order within the same column
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = ((long) columns[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            float[] unsortedValues = Arrays.copyOf(values, count);
+            for (int i = 0; i < count; i++) {
+                columns[i] = (int) (keys[i] >>> 32);
+                values[i] = unsortedValues[(int) keys[i]];
+            }
+            int unique = 0;
+            for (int i = 0; i < count; i++) {
+                if (unique > 0 && columns[unique - 1] == columns[i]) {
+                    values[unique - 1] = values[i];
+                } else {
+                    columns[unique] = columns[i];
+                    values[unique] = values[i];
+                    unique++;
+                }
+            }
+            this.rowCounts[row] = unique;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+/**
+ * Describes how the values of a {@link FloatMatrix} are stored, in memory as well as in the binary file format
+ * of {@link FloatMatrixIO}. Besides full 32-bit floats, two 16-bit encodings are available, which halve the
+ * memory and disk usage at the cost of precision:
+ * <ul>
+ *     <li>{@link Type#FLOAT16}: IEEE 754 half-precision floats, with about 3 significant decimal digits and a
+ *     maximum value of 65504 (larger values become infinity). Suitable for shares or values of a similar
+ *     magnitude, but not e.g. for travel times in seconds.</li>
+ *     <li>{@link Type#SCALED_UINT16}: unsigned 16-bit integers <code>u</code> representing the value
+ *     <code>offset + scale * u</code>, with a constant precision of <code>scale</code> over the whole range.
+ *     Two codes are reserved for positive infinity and NaN, values outside of the range are clamped to the
+ *     smallest or largest representable value. Suitable e.g. for travel times with a precision of one second.</li>
+ * </ul>
+ * The 16-bit encodings are decoded using a lookup table with all 65536 values.
+ *
+ * The encodings are meant for final values: matrices summing up values before averaging them should use
+ * FLOAT32 and only apply a 16-bit encoding when writing the result, as intermediate sums may exceed the range.
+ *
+ * @author mrieser / SBB
+ */
+public final class ValueEncoding {
+
+    public enum Type {
+        FLOAT32(0), FLOAT16(1), SCALED_UINT16(2);
+
+        final int code;
+
+        Type(int code) {
+            this.code = code;
+        }
+
+        static Type fromCode(int code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final ValueEncoding FLOAT32 = new ValueEncoding(Type.FLOAT32, 0.0f, 1.0f);
+    public static final ValueEncoding FLOAT16 = new ValueEncoding(Type.FLOAT16, 0.0f, 1.0f);
+
+    private final static int SCALED_MAX = 0xfffd;
+    private final static int SCALED_INFINITY = 0xfffe;
+    private final static int SCALED_NAN = 0xffff;
+
+    private final Type type;
+    private final float offset;
+    private final float scale;
+    private final float[] decodeTable;
+
+    private ValueEncoding(Type type, float offset, float scale) {
+        this.type = type;
+        this.offset = offset;
+        this.scale = scale;
+        if (type == Type.FLOAT32) {
+            this.decodeTable = null;
+        } else {
+            this.decodeTable = new float[1 << 16];
+            for (int i = 0; i < this.decodeTable.length; i++) {
+                this.decodeTable[i] = type == Type.FLOAT16 ? halfToFloat(i) : decodeScaled(i);
+            }
+        }
+    }
+
+    /**
+     * Creates an encoding storing values as unsigned 16-bit integers representing <code>offset + scale * u</code>.
+     */
+    public static ValueEncoding scaledUInt16(float offset, float scale) {
+        if (!(scale > 0) || Float.isInfinite(scale) || Float.isNaN(offset) || Float.isInfinite(offset)) {
+            throw new IllegalArgumentException("Invalid offset " + offset + " or scale " + scale);
+        }
+        return new ValueEncoding(Type.SCALED_UINT16, offset, scale);
+    }
+
+    /**
+     * Creates a scaled encoding covering the range from <code>min</code> to <code>max</code> with the best possible precision.
+     */
+    public static ValueEncoding scaledUInt16ForRange(float min, float max) {
+        return scaledUInt16(min, (max - min) / SCALED_MAX);
+    }
+
+    static ValueEncoding fromCode(int code, float offset, float scale) {
+        Type type = Type.fromCode(code);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown value encoding " + code);
+        }
+        switch (type) {
+            case FLOAT32: return FLOAT32;
+            case FLOAT16: return FLOAT16;
+            default: return scaledUInt16(offset, scale);
+        }
+    }
+
+    public Type getType() {
+        return this.type;
+    }
+
+    public float getOffset() {
+        return this.offset;
+    }
+
+    public float getScale() {
+        return this.scale;
+    }
+
+    public int getBytesPerValue() {
+        return this.type == Type.FLOAT32 ? Float.BYTES : Short.BYTES;
+    }
+
+    short encode(float value) {
+        if (this.type == Type.FLOAT16) {
+            return floatToHalf(value);
+        }
+        if (Float.isNaN(value)) {
+            return (short) SCALED_NAN;
+        }
+        if (value == Float.POSITIVE_INFINITY) {
+            return (short) SCALED_INFINITY;
+        }
+        int u = Math.round((value - this.offset) / this.scale);
+        return (short) Math.max(0, Math.min(SCALED_MAX, u));
+    }
+
+    float decode(short value) {
+        return this.decodeTable[value & 0xffff];
+    }
+
+    private float decodeScaled(int value) {
+        if (value == SCALED_NAN) {
+            return Float.NaN;
+        }
+        if (value == SCALED_INFINITY) {
+            return Float.POSITIVE_INFINITY;
+        }
+        return this.offset + this.scale * value;
+    }
+
+    /**
+     * Converts a float to half precision, rounding to the nearest value (ties to even).
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+        if (exponent == 0xff) {
+            // infinity or NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1f) {
+            return (short) (sign | 0x7c00); // too large, becomes infinity
+        }
+        int half;
+        int shift;
+        if (halfExponent <= 0) {
+            // subnormal half, value = m * 2^-24
+            if (halfExponent < -10) {
+                return (short) sign; // too small, becomes zero
+            }
+            mantissa |= 0x800000;
+            shift = 14 - halfExponent;
+            half = mantissa >> shift;
+        } else {
+            shift = 13;
+            half = (halfExponent << 10) | (mantissa >> shift);
+        }
+        int remainder = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+            half++; // a carry into the exponent results in the correct next larger value (or infinity)
+        }
+        return (short) (sign | half);
+    }
+
+    static float halfToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    @Override
+    public String toString() {
+        return this.type == Type.SCALED_UINT16 ? this.type + "[offset=" + this.offset + ", scale=" + this.scale + "]" : this.type.toString();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+/**
+ * Read access to a quadratic zone-to-zone matrix of float values, independent of how the values are stored.
+ * Implemented by the dense {@link FloatMatrix} and the {@link SparseFloatMatrix}.
+ *
+ * The zones are identified by arbitrary objects and have a fixed index from 0 to {@link #getZoneCount()} - 1,
+ * which can be used for faster access when many cells are read.
+ *
+ * @param <T> identifier type for matrix entries
+ *
+ * @author mrieser / SBB
+ */
+public interface ZoneMatrix<T> {
+
+    /**
+     * @return the number of zones, i.e. the number of rows and columns of the matrix.
+     */
+    int getZoneCount();
+
+    /**
+     * @return the index of the zone's row and column, or -1 if the zone is not part of this matrix.
+     */
+    int getIndex(T zone);
+
+    T getZone(int index);
+
+    float get(T from, T to);
+
+    float getByIndex(int fromIndex, int toIndex);
+}
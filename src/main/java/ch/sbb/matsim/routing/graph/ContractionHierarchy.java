@@ -0,0 +1,132 @@
+package ch.sbb.matsim.routing.graph;
+
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * A Contraction Hierarchy (CH) built upon a {@link Graph} for a static, time-independent metric.
+ *
+ * During preprocessing, the nodes of the graph are ordered by "importance" and contracted one
+ * after the other. When a node gets contracted, shortcut edges are added between its remaining
+ * neighbours if the node lies on the only shortest path between them. Afterwards, every shortest
+ * path in the graph can be found by two searches that only use edges leading to more important
+ * nodes: a forward search from the start node and a backward search from the target node. These
+ * upward searches only visit a tiny part of the network, which makes many-to-many queries (see
+ * {@link ManyToManyQuery}) orders of magnitudes faster than calculating full least-cost-path-trees.
+ *
+ * See Geisberger et al. (2008): Contraction Hierarchies: Faster and Simpler Hierarchical Routing
+ * in Road Networks.
+ *
+ * The costs are calculated once, using the given {@link TravelTime} and {@link TravelDisutility}
+ * at a fixed time. The hierarchy thus only returns correct results for metrics that do not depend
+ * on the time of day, like {@link org.matsim.core.trafficmonitoring.FreeSpeedTravelTime}.
+ * Along with the cost, the travel time and distance of each edge is stored, so these can be
+ * reported for the least-cost paths as well. Paths themselves (i.e. the links used) are not
+ * available.
+ *
+ * Once created, the hierarchy is immutable and can be used by multiple threads concurrently.
+ *
+ * @author mrieser / SBB
+ */
+public class ContractionHierarchy {
+
+    final Graph graph;
+    final int nodeCount;
+    final int[] ranks;
+
+    // upward edges for forward searches: edges (u -> v) with rank(v) > rank(u), grouped by u
+    final int[] fwOffsets;
+    final int[] fwNodes;
+    final double[] fwCosts;
+    final double[] fwTimes;
+    final double[] fwDistances;
+
+    // upward edges for backward searches: edges (v -> u) with rank(v) > rank(u), grouped by u, with v stored in bwNodes
+    final int[] bwOffsets;
+    final int[] bwNodes;
+    final double[] bwCosts;
+    final double[] bwTimes;
+    final double[] bwDistances;
+
+    ContractionHierarchy(Graph graph, int[] ranks, int edgeCount, int[] edgeFrom, int[] edgeTo, double[] edgeCosts, double[] edgeTimes, double[] edgeDistances) {
+        this.graph = graph;
+        this.nodeCount = graph.nodeCount;
+        this.ranks = ranks;
+
+        this.fwOffsets = new int[this.nodeCount + 1];
+        this.bwOffsets = new int[this.nodeCount + 1];
+
+        // count the edges per node
+        int fwCount = 0;
+        int bwCount = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            int from = edgeFrom[e];
+            int to = edgeTo[e];
+            if (ranks[from] < ranks[to]) {
+                this.fwOffsets[from + 1]++;
+                fwCount++;
+            } else {
+                this.bwOffsets[to + 1]++;
+                bwCount++;
+            }
+        }
+        for (int i = 0; i < this.nodeCount; i++) {
+            this.fwOffsets[i + 1] += this.fwOffsets[i];
+            this.bwOffsets[i + 1] += this.bwOffsets[i];
+        }
+
+        this.fwNodes = new int[fwCount];
+        this.fwCosts = new double[fwCount];
+        this.fwTimes = new double[fwCount];
+        this.fwDistances = new double[fwCount];
+        this.bwNodes = new int[bwCount];
+        this.bwCosts = new double[bwCount];
+        this.bwTimes = new double[bwCount];
+        this.bwDistances = new double[bwCount];
+
+        // fill in the edges
+        int[] fwNext = new int[this.nodeCount];
+        int[] bwNext = new int[this.nodeCount];
+        System.arraycopy(this.fwOffsets, 0, fwNext, 0, this.nodeCount);
+        System.arraycopy(this.bwOffsets, 0, bwNext, 0, this.nodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            int from = edgeFrom[e];
+            int to = edgeTo[e];
+            if (ranks[from] < ranks[to]) {
+                int i = fwNext[from]++;
+                this.fwNodes[i] = to;
+                this.fwCosts[i] = edgeCosts[e];
+                this.fwTimes[i] = edgeTimes[e];
+                this.fwDistances[i] = edgeDistances[e];
+            } else {
+                int i = bwNext[to]++;
+                this.bwNodes[i] = from;
+                this.bwCosts[i] = edgeCosts[e];
+                this.bwTimes[i] = edgeTimes[e];
+                this.bwDistances[i] = edgeDistances[e];
+            }
+        }
+    }
+
+    /**
+     * Creates a contraction hierarchy for the given graph. The costs and travel times
+     * of all links are evaluated once at the given time.
+     */
+    public static ContractionHierarchy create(Graph graph, TravelTime tt, TravelDisutility td, double time, Person person, Vehicle vehicle) {
+        return new ContractionHierarchyBuilder(graph, tt, td, time, person, vehicle).build();
+    }
+
+    public Graph getGraph() {
+        return this.graph;
+    }
+
+    public int getRank(int nodeIndex) {
+        return this.ranks[nodeIndex];
+    }
+
+    public int getUpwardEdgeCount() {
+        return this.fwNodes.length + this.bwNodes.length;
+    }
+}
@@ -0,0 +1,358 @@
+package ch.sbb.matsim.routing.graph;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * Performs the node contraction to create a {@link ContractionHierarchy}.
+ *
+ * The nodes are contracted in the order of their priority, which is calculated from
+ * the edge difference (number of required shortcuts minus number of removed edges),
+ * the number of already contracted neighbours and the level in the hierarchy.
+ * Priorities are updated lazily: when a node is polled from the queue, its priority
+ * is re-calculated, and if it is no longer the smallest one, it is put back into the
+ * queue. In addition, the priorities of all neighbours are updated after a node is
+ * contracted.
+ *
+ * To decide whether a shortcut is required, a local Dijkstra search (witness search)
+ * looks for an alternative path that does not use the node being contracted. The witness
+ * search is limited in the number of settled nodes. If the limit is reached, a shortcut
+ * is added even though it might not be required. This keeps the hierarchy correct, it only
+ * gets slightly larger.
+ *
+ * @author mrieser / SBB
+ */
+class ContractionHierarchyBuilder {
+
+    private final static int SIMULATION_SETTLED_LIMIT = 50;
+    private final static int CONTRACTION_SETTLED_LIMIT = 500;
+
+    private final Graph graph;
+    private final int nodeCount;
+
+    // all edges, original ones and shortcuts
+    private int edgeCount = 0;
+    private int[] edgeFrom;
+    private int[] edgeTo;
+    private double[] edgeCosts;
+    private double[] edgeTimes;
+    private double[] edgeDistances;
+
+    // adjacency lists per node, referencing edges
+    private final int[][] outEdges;
+    private final int[] outDegrees;
+    private final int[][] inEdges;
+    private final int[] inDegrees;
+
+    private final boolean[] contracted;
+    private final int[] contractedNeighbours;
+    private final int[] levels;
+    private final int[] ranks;
+
+    // witness search
+    private final NodeHeap witnessHeap;
+    private final double[] witnessCosts;
+    private final int[] witnessGenerations;
+    private final int[] witnessTargets;
+    private int witnessGeneration = 0;
+
+    ContractionHierarchyBuilder(Graph graph, TravelTime tt, TravelDisutility td, double time, Person person, Vehicle vehicle) {
+        this.graph = graph;
+        this.nodeCount = graph.nodeCount;
+
+        int initialCapacity = Math.max(16, graph.linkCount * 2);
+        this.edgeFrom = new int[initialCapacity];
+        this.edgeTo = new int[initialCapacity];
+        this.edgeCosts = new double[initialCapacity];
+        this.edgeTimes = new double[initialCapacity];
+        this.edgeDistances = new double[initialCapacity];
+
+        this.outEdges = new int[this.nodeCount][];
+        this.outDegrees = new int[this.nodeCount];
+        this.inEdges = new int[this.nodeCount][];
+        this.inDegrees = new int[this.nodeCount];
+
+        this.contracted = new boolean[this.nodeCount];
+        this.contractedNeighbours = new int[this.nodeCount];
+        this.levels = new int[this.nodeCount];
+        this.ranks = new int[this.nodeCount];
+
+        this.witnessHeap = new NodeHeap(this.nodeCount);
+        this.witnessCosts = new double[this.nodeCount];
+        this.witnessGenerations = new int[this.nodeCount];
+        this.witnessTargets = new int[this.nodeCount];
+
+        Graph.LinkIterator outLI = graph.getOutLinkIterator();
+        for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+            outLI.reset(nodeIdx);
+            while (outLI.next()) {
+                int toNode = outLI.getToNodeIndex();
+                if (toNode == nodeIdx) {
+                    continue; // loops are never part of a least-cost path
+                }
+                Link link = graph.getLink(outLI.getLinkIndex());
+                double cost = td.getLinkTravelDisutility(link, time, person, vehicle);
+                if (Double.isInfinite(cost) || Double.isNaN(cost)) {
+                    continue;
+                }
+                double travelTime = tt.getLinkTravelTime(link, time, person, vehicle);
+                addOrUpdateEdge(nodeIdx, toNode, cost, travelTime, outLI.getLength());
+            }
+        }
+    }
+
+    ContractionHierarchy build() {
+        NodeHeap queue = new NodeHeap(this.nodeCount);
+        for (int node = 0; node < this.nodeCount; node++) {
+            queue.insert(node, calcPriority(node));
+        }
+
+        int rank = 0;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            double priority = calcPriority(node);
+            if (!queue.isEmpty() && priority > queue.peekKey()) {
+                // the priority got worse in the meantime, try again later
+                queue.insert(node, priority);
+                continue;
+            }
+
+            contract(node, CONTRACTION_SETTLED_LIMIT, true);
+            this.contracted[node] = true;
+            this.ranks[node] = rank++;
+
+            // remove the edges of the contracted node from its neighbours' adjacency lists, they are no longer needed during contraction
+            for (int i = 0; i < this.outDegrees[node]; i++) {
+                int edge = this.outEdges[node][i];
+                removeInEdge(this.edgeTo[edge], edge);
+            }
+            for (int i = 0; i < this.inDegrees[node]; i++) {
+                int edge = this.inEdges[node][i];
+                removeOutEdge(this.edgeFrom[edge], edge);
+            }
+
+            // update the neighbours
+            for (int i = 0; i < this.outDegrees[node]; i++) {
+                updateNeighbour(queue, node, this.edgeTo[this.outEdges[node][i]]);
+            }
+            for (int i = 0; i < this.inDegrees[node]; i++) {
+                updateNeighbour(queue, node, this.edgeFrom[this.inEdges[node][i]]);
+            }
+        }
+
+        return new ContractionHierarchy(this.graph, this.ranks, this.edgeCount, this.edgeFrom, this.edgeTo, this.edgeCosts, this.edgeTimes, this.edgeDistances);
+    }
+
+    private void updateNeighbour(NodeHeap queue, int contractedNode, int neighbour) {
+        if (this.contracted[neighbour]) {
+            return;
+        }
+        this.contractedNeighbours[neighbour]++;
+        this.levels[neighbour] = Math.max(this.levels[neighbour], this.levels[contractedNode] + 1);
+        if (queue.contains(neighbour)) {
+            queue.insertOrUpdate(neighbour, calcPriority(neighbour));
+        }
+    }
+
+    private double calcPriority(int node) {
+        int shortcuts = contract(node, SIMULATION_SETTLED_LIMIT, false);
+        int removedEdges = 0;
+        for (int i = 0; i < this.outDegrees[node]; i++) {
+            if (!this.contracted[this.edgeTo[this.outEdges[node][i]]]) {
+                removedEdges++;
+            }
+        }
+        for (int i = 0; i < this.inDegrees[node]; i++) {
+            if (!this.contracted[this.edgeFrom[this.inEdges[node][i]]]) {
+                removedEdges++;
+            }
+        }
+        int edgeDifference = shortcuts - removedEdges;
+        return 2 * edgeDifference + this.contractedNeighbours[node] + this.levels[node];
+    }
+
+    /**
+     * Calculates the shortcuts required when contracting the given node.
+     *
+     * @param addShortcuts if <code>true</code>, the shortcuts are actually added, otherwise they are only counted.
+     * @return the number of required shortcuts.
+     */
+    private int contract(int node, int settledLimit, boolean addShortcuts) {
+        int shortcuts = 0;
+        int[] nodeInEdges = this.inEdges[node];
+        int[] nodeOutEdges = this.outEdges[node];
+        int inDegree = this.inDegrees[node];
+        int outDegree = this.outDegrees[node];
+        for (int i = 0; i < inDegree; i++) {
+            int inEdge = nodeInEdges[i];
+            int fromNode = this.edgeFrom[inEdge];
+            if (this.contracted[fromNode]) {
+                continue;
+            }
+            double inCost = this.edgeCosts[inEdge];
+
+            this.witnessGeneration++;
+            int targetCount = 0;
+            double maxCost = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < outDegree; j++) {
+                int outEdge = nodeOutEdges[j];
+                int toNode = this.edgeTo[outEdge];
+                if (toNode != fromNode && !this.contracted[toNode]) {
+                    maxCost = Math.max(maxCost, inCost + this.edgeCosts[outEdge]);
+                    if (this.witnessTargets[toNode] != this.witnessGeneration) {
+                        this.witnessTargets[toNode] = this.witnessGeneration;
+                        targetCount++;
+                    }
+                }
+            }
+            if (targetCount == 0) {
+                continue;
+            }
+
+            witnessSearch(fromNode, node, maxCost, targetCount, settledLimit);
+
+            for (int j = 0; j < outDegree; j++) {
+                int outEdge = nodeOutEdges[j];
+                int toNode = this.edgeTo[outEdge];
+                if (toNode == fromNode || this.contracted[toNode]) {
+                    continue;
+                }
+                double viaCost = inCost + this.edgeCosts[outEdge];
+                if (getWitnessCost(toNode) > viaCost) {
+                    shortcuts++;
+                    if (addShortcuts) {
+                        addOrUpdateEdge(fromNode, toNode, viaCost,
+                                this.edgeTimes[inEdge] + this.edgeTimes[outEdge],
+                                this.edgeDistances[inEdge] + this.edgeDistances[outEdge]);
+                    }
+                }
+            }
+        }
+        return shortcuts;
+    }
+
+    /**
+     * Searches for least-cost paths from the start node to all target nodes, avoiding the ignored node.
+     * The search stops as soon as all targets are settled, the maximum cost is exceeded or the limit of
+     * settled nodes is reached.
+     */
+    private void witnessSearch(int startNode, int ignoredNode, double maxCost, int targetCount, int settledLimit) {
+        this.witnessHeap.clear();
+        setWitnessCost(startNode, 0);
+        this.witnessHeap.insert(startNode, 0);
+        int settled = 0;
+        int remainingTargets = targetCount;
+        while (!this.witnessHeap.isEmpty()) {
+            int node = this.witnessHeap.poll();
+            double cost = this.witnessCosts[node];
+            if (cost > maxCost || settled >= settledLimit) {
+                break;
+            }
+            settled++;
+            if (this.witnessTargets[node] == this.witnessGeneration) {
+                remainingTargets--;
+                if (remainingTargets == 0) {
+                    break;
+                }
+            }
+            int[] edges = this.outEdges[node];
+            for (int i = 0, n = this.outDegrees[node]; i < n; i++) {
+                int edge = edges[i];
+                int toNode = this.edgeTo[edge];
+                if (toNode == ignoredNode || this.contracted[toNode]) {
+                    continue;
+                }
+                double newCost = cost + this.edgeCosts[edge];
+                if (newCost < getWitnessCost(toNode)) {
+                    setWitnessCost(toNode, newCost);
+                    this.witnessHeap.insertOrUpdate(toNode, newCost);
+                }
+            }
+        }
+    }
+
+    private double getWitnessCost(int node) {
+        if (this.witnessGenerations[node] != this.witnessGeneration) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return this.witnessCosts[node];
+    }
+
+    private void setWitnessCost(int node, double cost) {
+        this.witnessGenerations[node] = this.witnessGeneration;
+        this.witnessCosts[node] = cost;
+    }
+
+    private void addOrUpdateEdge(int fromNode, int toNode, double cost, double time, double distance) {
+        // if there is already an edge between the two nodes, keep only the cheaper one
+        int[] edges = this.outEdges[fromNode];
+        for (int i = 0, n = this.outDegrees[fromNode]; i < n; i++) {
+            int edge = edges[i];
+            if (this.edgeTo[edge] == toNode) {
+                if (cost < this.edgeCosts[edge]) {
+                    this.edgeCosts[edge] = cost;
+                    this.edgeTimes[edge] = time;
+                    this.edgeDistances[edge] = distance;
+                }
+                return;
+            }
+        }
+
+        if (this.edgeCount == this.edgeFrom.length) {
+            int newCapacity = this.edgeCount * 2;
+            this.edgeFrom = Arrays.copyOf(this.edgeFrom, newCapacity);
+            this.edgeTo = Arrays.copyOf(this.edgeTo, newCapacity);
+            this.edgeCosts = Arrays.copyOf(this.edgeCosts, newCapacity);
+            this.edgeTimes = Arrays.copyOf(this.edgeTimes, newCapacity);
+            this.edgeDistances = Arrays.copyOf(this.edgeDistances, newCapacity);
+        }
+        int edge = this.edgeCount++;
+        this.edgeFrom[edge] = fromNode;
+        this.edgeTo[edge] = toNode;
+        this.edgeCosts[edge] = cost;
+        this.edgeTimes[edge] = time;
+        this.edgeDistances[edge] = distance;
+
+        this.outEdges[fromNode] = append(this.outEdges[fromNode], this.outDegrees[fromNode]++, edge);
+        this.inEdges[toNode] = append(this.inEdges[toNode], this.inDegrees[toNode]++, edge);
+    }
+
+    private void removeOutEdge(int node, int edge) {
+        int[] edges = this.outEdges[node];
+        int last = this.outDegrees[node] - 1;
+        for (int i = 0; i <= last; i++) {
+            if (edges[i] == edge) {
+                edges[i] = edges[last];
+                this.outDegrees[node] = last;
+                return;
+            }
+        }
+    }
+
+    private void removeInEdge(int node, int edge) {
+        int[] edges = this.inEdges[node];
+        int last = this.inDegrees[node] - 1;
+        for (int i = 0; i <= last; i++) {
+            if (edges[i] == edge) {
+                edges[i] = edges[last];
+                this.inDegrees[node] = last;
+                return;
+            }
+        }
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (array == null) {
+            array = new int[4];
+        } else if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+}
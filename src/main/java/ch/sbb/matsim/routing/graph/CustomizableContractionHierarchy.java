@@ -0,0 +1,508 @@
+package ch.sbb.matsim.routing.graph;
+
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+import java.util.Arrays;
+
+/**
+ * A Customizable Contraction Hierarchy (CCH) splits the creation of a {@link ContractionHierarchy}
+ * into a metric-independent preprocessing and a fast, metric-dependent customization.
+ *
+ * The preprocessing only looks at the topology of the graph: the nodes are ordered by a nested
+ * dissection (recursive bisection of the network along the node coordinates, where the nodes
+ * separating the two halves get the higher ranks), and all nodes are contracted in this order
+ * without any witness searches. This results in a set of upward arcs that is valid for any metric.
+ *
+ * The customization then assigns costs, travel times and distances to all arcs for a specific
+ * metric by processing each node's lower triangles in rank order. This is much faster than
+ * building a new contraction hierarchy, which makes it possible to calculate many-to-many queries
+ * for multiple time slices of congested travel times with just one preprocessing.
+ *
+ * See Dibbelt, Strasser, Wagner (2016): Customizable Contraction Hierarchies.
+ *
+ * Note that the customized hierarchy uses the link costs at one specific time for the whole path,
+ * i.e. it calculates least-cost paths in a snapshot of the network at that time, while the
+ * {@link LeastCostPathTree} evaluates each link at the time it is actually entered.
+ *
+ * Once created, the instance is immutable and can be customized by multiple threads concurrently.
+ *
+ * @author mrieser / SBB
+ */
+public class CustomizableContractionHierarchy {
+
+    private final Graph graph;
+    private final int nodeCount;
+    private final int[] ranks; // for each node, its rank
+    private final int[] nodesByRank;
+
+    // upward arcs in rank space: for rank r, arcHeads[arcOffsets[r] .. arcOffsets[r+1]] contains the higher ranks r is connected to, sorted ascending
+    private final int[] arcOffsets;
+    private final int[] arcHeads;
+
+    // for each link, the arc it belongs to (or -1 for loops and non-existing links), and if it points upwards
+    private final int[] linkArcs;
+    private final boolean[] linkUpwards;
+
+    private CustomizableContractionHierarchy(Graph graph, int[] nodesByRank, int[][] upwardNeighbours) {
+        this.graph = graph;
+        this.nodeCount = graph.nodeCount;
+        this.nodesByRank = nodesByRank;
+        this.ranks = new int[this.nodeCount];
+        for (int rank = 0; rank < this.nodeCount; rank++) {
+            this.ranks[nodesByRank[rank]] = rank;
+        }
+
+        this.arcOffsets = new int[this.nodeCount + 1];
+        for (int rank = 0; rank < this.nodeCount; rank++) {
+            this.arcOffsets[rank + 1] = this.arcOffsets[rank] + upwardNeighbours[rank].length;
+        }
+        this.arcHeads = new int[this.arcOffsets[this.nodeCount]];
+        for (int rank = 0; rank < this.nodeCount; rank++) {
+            System.arraycopy(upwardNeighbours[rank], 0, this.arcHeads, this.arcOffsets[rank], upwardNeighbours[rank].length);
+        }
+
+        this.linkArcs = new int[graph.linkCount];
+        this.linkUpwards = new boolean[graph.linkCount];
+        Arrays.fill(this.linkArcs, -1);
+        Graph.LinkIterator outLI = graph.getOutLinkIterator();
+        for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+            outLI.reset(nodeIdx);
+            while (outLI.next()) {
+                int fromRank = this.ranks[nodeIdx];
+                int toRank = this.ranks[outLI.getToNodeIndex()];
+                if (fromRank == toRank) {
+                    continue;
+                }
+                int linkIdx = outLI.getLinkIndex();
+                this.linkUpwards[linkIdx] = fromRank < toRank;
+                this.linkArcs[linkIdx] = findArc(Math.min(fromRank, toRank), Math.max(fromRank, toRank));
+            }
+        }
+    }
+
+    /**
+     * Runs the metric-independent preprocessing for the given graph.
+     */
+    public static CustomizableContractionHierarchy create(Graph graph) {
+        int[] nodesByRank = new NestedDissection(graph).calcOrder();
+        int[][] upwardNeighbours = contract(graph, nodesByRank);
+        return new CustomizableContractionHierarchy(graph, nodesByRank, upwardNeighbours);
+    }
+
+    /**
+     * Contracts the nodes in the given order, only considering the topology of the graph. When a node
+     * is contracted, all its higher ranked neighbours must be connected with each other. It is enough
+     * to add them to the lowest ranked of these neighbours, as that node is contracted next among them
+     * and will in turn pass them on.
+     */
+    private static int[][] contract(Graph graph, int[] nodesByRank) {
+        int nodeCount = graph.nodeCount;
+        int[] ranks = new int[nodeCount];
+        for (int rank = 0; rank < nodeCount; rank++) {
+            ranks[nodesByRank[rank]] = rank;
+        }
+
+        int[][] neighbours = new int[nodeCount][];
+        int[] sizes = new int[nodeCount];
+        Graph.LinkIterator outLI = graph.getOutLinkIterator();
+        for (int nodeIdx = 0; nodeIdx < nodeCount; nodeIdx++) {
+            outLI.reset(nodeIdx);
+            while (outLI.next()) {
+                int fromRank = ranks[nodeIdx];
+                int toRank = ranks[outLI.getToNodeIndex()];
+                if (fromRank < toRank) {
+                    append(neighbours, sizes, fromRank, toRank);
+                } else if (toRank < fromRank) {
+                    append(neighbours, sizes, toRank, fromRank);
+                }
+            }
+        }
+
+        int[][] upwardNeighbours = new int[nodeCount][];
+        for (int rank = 0; rank < nodeCount; rank++) {
+            int[] upward = sortUnique(neighbours[rank], sizes[rank]);
+            upwardNeighbours[rank] = upward;
+            neighbours[rank] = null;
+            if (upward.length > 1) {
+                int parent = upward[0];
+                for (int i = 1; i < upward.length; i++) {
+                    append(neighbours, sizes, parent, upward[i]);
+                }
+            }
+        }
+        return upwardNeighbours;
+    }
+
+    private static void append(int[][] lists, int[] sizes, int index, int value) {
+        int[] list = lists[index];
+        int size = sizes[index];
+        if (list == null) {
+            list = new int[4];
+            lists[index] = list;
+        } else if (size == list.length) {
+            list = Arrays.copyOf(list, size * 2);
+            lists[index] = list;
+        }
+        list[size] = value;
+        sizes[index] = size + 1;
+    }
+
+    private static int[] sortUnique(int[] values, int size) {
+        if (size == 0) {
+            return new int[0];
+        }
+        Arrays.sort(values, 0, size);
+        int count = 1;
+        for (int i = 1; i < size; i++) {
+            if (values[i] != values[count - 1]) {
+                values[count++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private int findArc(int lowerRank, int higherRank) {
+        return Arrays.binarySearch(this.arcHeads, this.arcOffsets[lowerRank], this.arcOffsets[lowerRank + 1], higherRank);
+    }
+
+    /**
+     * Creates a contraction hierarchy for the given metric. The costs and travel times
+     * of all links are evaluated once at the given time.
+     */
+    public ContractionHierarchy customize(TravelTime tt, TravelDisutility td, double time, Person person, Vehicle vehicle) {
+        int arcCount = this.arcHeads.length;
+        // upward: from the lower to the higher ranked node, downward: the other way round
+        double[] upCosts = new double[arcCount];
+        double[] upTimes = new double[arcCount];
+        double[] upDistances = new double[arcCount];
+        double[] downCosts = new double[arcCount];
+        double[] downTimes = new double[arcCount];
+        double[] downDistances = new double[arcCount];
+        Arrays.fill(upCosts, Double.POSITIVE_INFINITY);
+        Arrays.fill(downCosts, Double.POSITIVE_INFINITY);
+
+        // assign the link costs to the arcs
+        Graph.LinkIterator outLI = this.graph.getOutLinkIterator();
+        for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+            outLI.reset(nodeIdx);
+            while (outLI.next()) {
+                int linkIdx = outLI.getLinkIndex();
+                int arc = this.linkArcs[linkIdx];
+                if (arc < 0) {
+                    continue;
+                }
+                Link link = this.graph.getLink(linkIdx);
+                double cost = td.getLinkTravelDisutility(link, time, person, vehicle);
+                if (Double.isNaN(cost)) {
+                    continue;
+                }
+                if (this.linkUpwards[linkIdx]) {
+                    if (cost < upCosts[arc]) {
+                        upCosts[arc] = cost;
+                        upTimes[arc] = tt.getLinkTravelTime(link, time, person, vehicle);
+                        upDistances[arc] = outLI.getLength();
+                    }
+                } else {
+                    if (cost < downCosts[arc]) {
+                        downCosts[arc] = cost;
+                        downTimes[arc] = tt.getLinkTravelTime(link, time, person, vehicle);
+                        downDistances[arc] = outLI.getLength();
+                    }
+                }
+            }
+        }
+
+        // lower triangle relaxation: for each pair of upward neighbours (u, w) of a node v, paths u -> v -> w and w -> v -> u might be shorter
+        for (int rank = 0; rank < this.nodeCount; rank++) {
+            int start = this.arcOffsets[rank];
+            int end = this.arcOffsets[rank + 1];
+            for (int i = start; i < end; i++) {
+                double downCostI = downCosts[i];
+                double upCostI = upCosts[i];
+                if (downCostI == Double.POSITIVE_INFINITY && upCostI == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                int u = this.arcHeads[i];
+                int searchStart = this.arcOffsets[u];
+                for (int j = i + 1; j < end; j++) {
+                    int w = this.arcHeads[j];
+                    int arc = Arrays.binarySearch(this.arcHeads, searchStart, this.arcOffsets[u + 1], w);
+                    searchStart = arc + 1; // the heads are sorted, so the next one can only be found afterwards
+                    double upCost = downCostI + upCosts[j];
+                    if (upCost < upCosts[arc]) {
+                        upCosts[arc] = upCost;
+                        upTimes[arc] = downTimes[i] + upTimes[j];
+                        upDistances[arc] = downDistances[i] + upDistances[j];
+                    }
+                    double downCost = downCosts[j] + upCostI;
+                    if (downCost < downCosts[arc]) {
+                        downCosts[arc] = downCost;
+                        downTimes[arc] = downTimes[j] + upTimes[i];
+                        downDistances[arc] = downDistances[j] + upDistances[i];
+                    }
+                }
+            }
+        }
+
+        // convert the arcs to edges between nodes
+        int edgeCount = 0;
+        for (int arc = 0; arc < arcCount; arc++) {
+            if (upCosts[arc] < Double.POSITIVE_INFINITY) {
+                edgeCount++;
+            }
+            if (downCosts[arc] < Double.POSITIVE_INFINITY) {
+                edgeCount++;
+            }
+        }
+        int[] edgeFrom = new int[edgeCount];
+        int[] edgeTo = new int[edgeCount];
+        double[] edgeCosts = new double[edgeCount];
+        double[] edgeTimes = new double[edgeCount];
+        double[] edgeDistances = new double[edgeCount];
+        int e = 0;
+        for (int rank = 0; rank < this.nodeCount; rank++) {
+            int lowerNode = this.nodesByRank[rank];
+            for (int arc = this.arcOffsets[rank], end = this.arcOffsets[rank + 1]; arc < end; arc++) {
+                int higherNode = this.nodesByRank[this.arcHeads[arc]];
+                if (upCosts[arc] < Double.POSITIVE_INFINITY) {
+                    edgeFrom[e] = lowerNode;
+                    edgeTo[e] = higherNode;
+                    edgeCosts[e] = upCosts[arc];
+                    edgeTimes[e] = upTimes[arc];
+                    edgeDistances[e] = upDistances[arc];
+                    e++;
+                }
+                if (downCosts[arc] < Double.POSITIVE_INFINITY) {
+                    edgeFrom[e] = higherNode;
+                    edgeTo[e] = lowerNode;
+                    edgeCosts[e] = downCosts[arc];
+                    edgeTimes[e] = downTimes[arc];
+                    edgeDistances[e] = downDistances[arc];
+                    e++;
+                }
+            }
+        }
+        return new ContractionHierarchy(this.graph, this.ranks, edgeCount, edgeFrom, edgeTo, edgeCosts, edgeTimes, edgeDistances);
+    }
+
+    public Graph getGraph() {
+        return this.graph;
+    }
+
+    public int getRank(int nodeIndex) {
+        return this.ranks[nodeIndex];
+    }
+
+    public int getArcCount() {
+        return this.arcHeads.length;
+    }
+
+    /**
+     * Calculates a nested dissection order of the nodes by recursively bisecting the nodes
+     * along the longer side of their bounding box. The nodes of one half that are connected
+     * to the other half form the separator and get the highest ranks of the current cell.
+     */
+    private static class NestedDissection {
+
+        private final static int MIN_CELL_SIZE = 4;
+
+        private final int nodeCount;
+        private final double[] xs;
+        private final double[] ys;
+        private final int[] neighbourOffsets;
+        private final int[] neighbours;
+        private final int[] nodesByRank;
+        private final int[] cells;
+        private int cellCounter = 0;
+        private int nextRank;
+
+        NestedDissection(Graph graph) {
+            this.nodeCount = graph.nodeCount;
+            this.xs = new double[this.nodeCount];
+            this.ys = new double[this.nodeCount];
+            this.nodesByRank = new int[this.nodeCount];
+            this.cells = new int[this.nodeCount];
+
+            // undirected adjacency of all nodes
+            this.neighbourOffsets = new int[this.nodeCount + 1];
+            Graph.LinkIterator outLI = graph.getOutLinkIterator();
+            for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+                outLI.reset(nodeIdx);
+                while (outLI.next()) {
+                    this.neighbourOffsets[nodeIdx + 1]++;
+                    this.neighbourOffsets[outLI.getToNodeIndex() + 1]++;
+                }
+            }
+            for (int i = 0; i < this.nodeCount; i++) {
+                this.neighbourOffsets[i + 1] += this.neighbourOffsets[i];
+            }
+            this.neighbours = new int[this.neighbourOffsets[this.nodeCount]];
+            int[] next = Arrays.copyOf(this.neighbourOffsets, this.nodeCount);
+            for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+                outLI.reset(nodeIdx);
+                while (outLI.next()) {
+                    int toNode = outLI.getToNodeIndex();
+                    this.neighbours[next[nodeIdx]++] = toNode;
+                    this.neighbours[next[toNode]++] = nodeIdx;
+                    Link link = graph.getLink(outLI.getLinkIndex());
+                    setCoord(nodeIdx, link.getFromNode().getCoord());
+                    setCoord(toNode, link.getToNode().getCoord());
+                }
+            }
+        }
+
+        private void setCoord(int nodeIdx, Coord coord) {
+            this.xs[nodeIdx] = coord.getX();
+            this.ys[nodeIdx] = coord.getY();
+        }
+
+        int[] calcOrder() {
+            int[] nodes = new int[this.nodeCount];
+            int connectedCount = 0;
+            int unconnectedCount = 0;
+            for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+                if (this.neighbourOffsets[nodeIdx + 1] > this.neighbourOffsets[nodeIdx]) {
+                    nodes[connectedCount++] = nodeIdx;
+                } else {
+                    // isolated nodes of the network (without any links) get the lowest ranks
+                    this.nodesByRank[unconnectedCount++] = nodeIdx;
+                }
+            }
+            this.nextRank = this.nodeCount - 1;
+            dissect(nodes, 0, connectedCount);
+            return this.nodesByRank;
+        }
+
+        private void dissect(int[] nodes, int from, int to) {
+            int size = to - from;
+            if (size <= MIN_CELL_SIZE) {
+                for (int i = from; i < to; i++) {
+                    this.nodesByRank[this.nextRank--] = nodes[i];
+                }
+                return;
+            }
+
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                int node = nodes[i];
+                minX = Math.min(minX, this.xs[node]);
+                maxX = Math.max(maxX, this.xs[node]);
+                minY = Math.min(minY, this.ys[node]);
+                maxY = Math.max(maxY, this.ys[node]);
+            }
+            double[] coords = (maxX - minX) >= (maxY - minY) ? this.xs : this.ys;
+            int mid = from + size / 2;
+            select(nodes, from, to, mid, coords);
+
+            int leftCell = ++this.cellCounter;
+            int rightCell = ++this.cellCounter;
+            for (int i = from; i < mid; i++) {
+                this.cells[nodes[i]] = leftCell;
+            }
+            for (int i = mid; i < to; i++) {
+                this.cells[nodes[i]] = rightCell;
+            }
+            int leftBoundary = countBoundary(nodes, from, mid, rightCell);
+            int rightBoundary = countBoundary(nodes, mid, to, leftCell);
+
+            // move the separator nodes to the end of their half and assign them the highest ranks
+            if (leftBoundary <= rightBoundary) {
+                int separatorStart = moveBoundaryToEnd(nodes, from, mid, rightCell);
+                assignRanks(nodes, separatorStart, mid);
+                dissect(nodes, mid, to);
+                dissect(nodes, from, separatorStart);
+            } else {
+                int separatorStart = moveBoundaryToEnd(nodes, mid, to, leftCell);
+                assignRanks(nodes, separatorStart, to);
+                dissect(nodes, mid, separatorStart);
+                dissect(nodes, from, mid);
+            }
+        }
+
+        private boolean isBoundary(int node, int otherCell) {
+            for (int i = this.neighbourOffsets[node], end = this.neighbourOffsets[node + 1]; i < end; i++) {
+                if (this.cells[this.neighbours[i]] == otherCell) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int countBoundary(int[] nodes, int from, int to, int otherCell) {
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                if (isBoundary(nodes[i], otherCell)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int moveBoundaryToEnd(int[] nodes, int from, int to, int otherCell) {
+            int end = to;
+            int i = from;
+            while (i < end) {
+                if (isBoundary(nodes[i], otherCell)) {
+                    end--;
+                    int tmp = nodes[i];
+                    nodes[i] = nodes[end];
+                    nodes[end] = tmp;
+                } else {
+                    i++;
+                }
+            }
+            return end;
+        }
+
+        private void assignRanks(int[] nodes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                this.nodesByRank[this.nextRank--] = nodes[i];
+            }
+        }
+
+        /**
+         * Partially sorts the nodes such that the node at position k is the one that would be there
+         * if the nodes were sorted by the given coordinates, all nodes before it have smaller or equal
+         * coordinates and all nodes after it larger or equal ones.
+         */
+        private static void select(int[] nodes, int from, int to, int k, double[] coords) {
+            int lo = from;
+            int hi = to - 1;
+            while (lo < hi) {
+                double pivot = coords[nodes[(lo + hi) >>> 1]];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (coords[nodes[i]] < pivot) {
+                        i++;
+                    }
+                    while (coords[nodes[j]] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = nodes[i];
+                        nodes[i] = nodes[j];
+                        nodes[j] = tmp;
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) {
+                    hi = j;
+                } else if (k >= i) {
+                    lo = i;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ch.sbb.matsim.routing.graph;
 
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
@@ -12,18 +13,28 @@ import java.util.Arrays;
  * Optimized to use as little memory as possible, and thus to fit as much memory as
  * possible into CPU caches for high performance.
  *
- * Inspired by GraphHopper's Graph data structure as described in
- * https://github.com/graphhopper/graphhopper/blob/master/docs/core/technical.md.
- * GraphHopper uses bi-directional links, while MATSim uses uni-directional links.
- * Thus, instead of having nodeA and nodeB, we always have from- and to-node. This
- * implies that one `node-row` requires two link-ids: one for the first in-link,
- * and one for the first out-link.
+ * The links are stored in a compressed sparse row (CSR) layout: all out-links of a
+ * node are stored contiguously, sorted by their from-node, and the position of each
+ * node's first out-link is stored in an offset array. The in-links of a node are
+ * stored as a contiguous list of references to the out-link data. Within a node, the
+ * links are stored in the order they are returned by the network. The graph is thus
+ * built in linear time, and iterating over the links of a node reads consecutive memory.
+ *
+ * The nodes can optionally be re-ordered (see {@link NodeOrdering}) so that nodes that
+ * are close to each other in the network also get similar indices. This improves cache
+ * locality during routing.
+ *
+ * Nodes and links are indexed from 0 to the number of nodes or links in the network,
+ * independent of the index of their Ids. Thus, the size of the graph (and of the data
+ * structures of the routing algorithms using it) only depends on the network, and not
+ * on how many Ids were created in the JVM, e.g. for other networks. Use
+ * {@link #getNodeIndex(Node)} and {@link #getLinkIndex(Link)} to get the index of a
+ * node or link in the graph.
  *
  * We use simple int-arrays (int[]) to store the data. This should provide fast
- * and thread-safe read-only access, but limits the number of nodes and links in
- * the network to (Integer.MAX_VALUE/2 = 1.073.741.823) nodes and
- * (Integer.MAX_VALUE/6 = 357.913.941) links. I hope that for the foreseeable future,
- * these limits are high enough.
+ * and thread-safe read-only access, but limits the number of links in the network
+ * to (Integer.MAX_VALUE/4 = 536.870.911) links. I hope that for the foreseeable future,
+ * this limit is high enough.
  *
  * This class is thread-safe, allowing a single graph to be used by multiple threads.
  *
@@ -33,95 +44,253 @@ public class Graph {
 
     /*
      * memory consumption:
-     * - nodeData:
-     *   - 1 int: next out-link index
-     *   - 1 int: next in-link index
-     *   = total 2 int = 8 bytes per node
-     * - linkData
-     *   - 1 int: next out-link index for from-node
-     *   - 1 int: next in-link index for to-node
+     * - nodes
+     *   - 1 int: offset of the first out-link
+     *   - 1 int: offset of the first in-link
+     *   - 1 object-pointer to the node
+     *   = total 2 int + 1 pointer = 12 or 16 bytes per node
+     * - outLinkData
      *   - 1 int: from-node index
      *   - 1 int: to-node index
      *   - 1 int: link length * 100
      *   - 1 int: freespeed-traveltime * 100
-     *   = total 6 int per link = 24 bytes per link
+     *   = total 4 int per link = 16 bytes per link
+     * - inLinks
+     *   - 1 int: index of the link
+     *   = 4 bytes per link
      * - links
      *   - 1 object-pointer per link
      *   = 1 int or 1 long per link (depending on 32 or 64bit JVM) = 4 or 8 bytes per link
+     * - mapping from Id-indices to node and link indices
+     *   - 1 int per node-Id and link-Id created in the JVM
      *
-     *   So, a network-graph with 1 Mio nodes and 2 Mio links should consume between 64 and 72 MB RAM only.
+     *   So, a network-graph with 1 Mio nodes and 2 Mio links should consume between 60 and 70 MB RAM,
+     *   plus 4 bytes per Id for the mapping.
      */
 
-    private final static int NODE_SIZE = 2;
-    private final static int LINK_SIZE = 6;
+    private final static int LINK_SIZE = 4;
+
+    /**
+     * The order in which the nodes are stored in the graph.
+     */
+    public enum NodeOrdering {
+        /** nodes are stored in the order they are returned by the network. */
+        NONE,
+        /** nodes are ordered by a breadth-first-search through the network, ignoring the link directions. */
+        BFS,
+        /** nodes are ordered along a Hilbert curve over their coordinates. */
+        HILBERT
+    }
 
     final int nodeCount;
     final int linkCount;
-    private final int[] nodeData;
-    private final int[] linkData;
+    private final int[] outOffsets;
+    private final int[] inOffsets;
+    private final int[] outLinkData;
+    private final int[] inLinks;
+    private final Node[] nodes;
     private final Link[] links;
+    private final int[] nodeIndices; // for each Id-index, the node index in the graph, or -1
+    private final int[] linkIndices; // for each Id-index, the link index in the graph, or -1
 
     public Graph(Network network) {
-        this.nodeCount = Id.getNumberOfIds(Node.class);
-        this.linkCount = Id.getNumberOfIds(Link.class);
+        this(network, NodeOrdering.NONE);
+    }
 
-        this.nodeData = new int[nodeCount * NODE_SIZE];
-        this.linkData = new int[linkCount * LINK_SIZE];
-        this.links = new Link[linkCount];
+    public Graph(Network network, NodeOrdering nodeOrdering) {
+        this.nodes = calcNodeOrder(network, nodeOrdering);
+        this.nodeCount = this.nodes.length;
+        this.nodeIndices = new int[Id.getNumberOfIds(Node.class)];
+        Arrays.fill(this.nodeIndices, -1);
+        for (int nodeIdx = 0; nodeIdx < this.nodeCount; nodeIdx++) {
+            this.nodeIndices[this.nodes[nodeIdx].getId().index()] = nodeIdx;
+        }
 
-        Arrays.fill(this.nodeData, -1);
-        Arrays.fill(this.linkData, -1);
+        Link[] linksInOrder = network.getLinks().values().toArray(new Link[0]);
+        this.linkCount = linksInOrder.length;
+        this.links = new Link[this.linkCount];
+        this.linkIndices = new int[Id.getNumberOfIds(Link.class)];
+        Arrays.fill(this.linkIndices, -1);
+        this.outOffsets = new int[this.nodeCount + 1];
+        this.inOffsets = new int[this.nodeCount + 1];
+        this.outLinkData = new int[this.linkCount * LINK_SIZE];
+        this.inLinks = new int[this.linkCount];
+
+        // count the links per node
+        for (Link link : linksInOrder) {
+            this.outOffsets[getNodeIndex(link.getFromNode()) + 1]++;
+            this.inOffsets[getNodeIndex(link.getToNode()) + 1]++;
+        }
+        for (int i = 0; i < this.nodeCount; i++) {
+            this.outOffsets[i + 1] += this.outOffsets[i];
+            this.inOffsets[i + 1] += this.inOffsets[i];
+        }
 
-        for (Link link : network.getLinks().values()) {
-            addLink(link);
+        // fill in the links, keeping the order of the network. The index of a link is its position in the out-link data.
+        int[] outNext = Arrays.copyOf(this.outOffsets, this.nodeCount);
+        int[] inNext = Arrays.copyOf(this.inOffsets, this.nodeCount);
+        for (Link link : linksInOrder) {
+            int fromNodeIdx = getNodeIndex(link.getFromNode());
+            int toNodeIdx = getNodeIndex(link.getToNode());
+            int linkIdx = outNext[fromNodeIdx]++;
+
+            int base = linkIdx * LINK_SIZE;
+            this.outLinkData[base] = fromNodeIdx;
+            this.outLinkData[base + 1] = toNodeIdx;
+            this.outLinkData[base + 2] = (int) Math.round(link.getLength() * 100.0);
+            this.outLinkData[base + 3] = (int) Math.round(link.getLength() / link.getFreespeed() * 100.0);
+
+            this.inLinks[inNext[toNodeIdx]++] = linkIdx;
+            this.links[linkIdx] = link;
+            this.linkIndices[link.getId().index()] = linkIdx;
         }
     }
 
-    private void addLink(Link link) {
-        int fromNodeIdx = link.getFromNode().getId().index();
-        int toNodeIdx = link.getToNode().getId().index();
-        int linkIdx = link.getId().index();
+    private static Node[] calcNodeOrder(Network network, NodeOrdering nodeOrdering) {
+        Node[] nodes = network.getNodes().values().toArray(new Node[0]);
+        if (nodeOrdering == NodeOrdering.BFS) {
+            return calcBfsOrder(network, nodes);
+        }
+        if (nodeOrdering == NodeOrdering.HILBERT) {
+            return calcHilbertOrder(nodes);
+        }
+        return nodes;
+    }
 
-        int base = linkIdx * LINK_SIZE;
-        this.linkData[base + 2] = fromNodeIdx;
-        this.linkData[base + 3] = toNodeIdx;
-        this.linkData[base + 4] = (int) Math.round(link.getLength() * 100.0);
-        this.linkData[base + 5] = (int) Math.round(link.getLength() / link.getFreespeed() * 100.0);
+    private static Node[] calcBfsOrder(Network network, Node[] nodes) {
+        int[] positions = new int[Id.getNumberOfIds(Node.class)];
+        for (int i = 0; i < nodes.length; i++) {
+            positions[nodes[i].getId().index()] = i;
+        }
 
-        setOutLink(fromNodeIdx, linkIdx);
-        setInLink(toNodeIdx, linkIdx);
+        // undirected adjacency, by position in the nodes array
+        int[] offsets = new int[nodes.length + 1];
+        for (Link link : network.getLinks().values()) {
+            offsets[positions[link.getFromNode().getId().index()] + 1]++;
+            offsets[positions[link.getToNode().getId().index()] + 1]++;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] neighbours = new int[offsets[nodes.length]];
+        int[] next = Arrays.copyOf(offsets, nodes.length);
+        for (Link link : network.getLinks().values()) {
+            int fromPos = positions[link.getFromNode().getId().index()];
+            int toPos = positions[link.getToNode().getId().index()];
+            neighbours[next[fromPos]++] = toPos;
+            neighbours[next[toPos]++] = fromPos;
+        }
 
-        this.links[linkIdx] = link;
+        int[] order = new int[nodes.length];
+        boolean[] visited = new boolean[nodes.length];
+        int head = 0;
+        int tail = 0;
+        for (int start = 0; start < nodes.length; start++) {
+            if (visited[start]) {
+                continue;
+            }
+            visited[start] = true;
+            order[tail++] = start;
+            while (head < tail) {
+                int pos = order[head++];
+                for (int i = offsets[pos], end = offsets[pos + 1]; i < end; i++) {
+                    int neighbour = neighbours[i];
+                    if (!visited[neighbour]) {
+                        visited[neighbour] = true;
+                        order[tail++] = neighbour;
+                    }
+                }
+            }
+        }
+        Node[] ordered = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ordered[i] = nodes[order[i]];
+        }
+        return ordered;
     }
 
-    private void setOutLink(int fromNodeIdx, int linkIdx) {
-        final int nodeI = fromNodeIdx * NODE_SIZE;
-        int outLinkIdx = this.nodeData[nodeI];
-        if (outLinkIdx < 0) {
-            this.nodeData[nodeI] = linkIdx;
-            return;
+    private static Node[] calcHilbertOrder(Node[] nodes) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Node node : nodes) {
+            Coord c = node.getCoord();
+            minX = Math.min(minX, c.getX());
+            minY = Math.min(minY, c.getY());
+            maxX = Math.max(maxX, c.getX());
+            maxY = Math.max(maxY, c.getY());
         }
-        int lastLinkIdx;
-        do {
-            lastLinkIdx = outLinkIdx;
-            outLinkIdx = this.linkData[lastLinkIdx * LINK_SIZE];
-        } while (outLinkIdx >= 0);
-        this.linkData[lastLinkIdx * LINK_SIZE] = linkIdx;
+        final int hilbertOrder = 16;
+        final int maxCell = (1 << hilbertOrder) - 1;
+        double scale = maxCell / Math.max(1e-9, Math.max(maxX - minX, maxY - minY));
+
+        // sort by hilbert value (upper bits), the position in the nodes array is stored in the lower bits
+        long[] keys = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            Coord c = nodes[i].getCoord();
+            int x = (int) ((c.getX() - minX) * scale);
+            int y = (int) ((c.getY() - minY) * scale);
+            long d = hilbertIndex(hilbertOrder, Math.min(x, maxCell), Math.min(y, maxCell));
+            keys[i] = (d << 31) | i;
+        }
+        Arrays.sort(keys);
+        Node[] ordered = new Node[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ordered[i] = nodes[(int) (keys[i] & Integer.MAX_VALUE)];
+        }
+        return ordered;
     }
 
-    private void setInLink(int toNodeIdx, int linkIdx) {
-        final int nodeI = toNodeIdx * NODE_SIZE + 1;
-        int inLinkIdx = this.nodeData[nodeI];
-        if (inLinkIdx < 0) {
-            this.nodeData[nodeI] = linkIdx;
-            return;
+    /**
+     * Calculates the distance of the cell (x, y) along a Hilbert curve filling a square of 2^order x 2^order cells.
+     */
+    public static long hilbertIndex(int order, int x, int y) {
+        long d = 0;
+        for (int s = 1 << (order - 1); s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
         }
-        int lastLinkIdx;
-        do {
-            lastLinkIdx = inLinkIdx;
-            inLinkIdx = this.linkData[lastLinkIdx * LINK_SIZE + 1];
-        } while (inLinkIdx >= 0);
-        this.linkData[lastLinkIdx * LINK_SIZE + 1] = linkIdx;
+        return d;
+    }
+
+    public int getNodeCount() {
+        return this.nodeCount;
+    }
+
+    public int getLinkCount() {
+        return this.linkCount;
+    }
+
+    /**
+     * @return the index of the given node in this graph, or -1 if the node is not part of the graph.
+     */
+    public int getNodeIndex(Node node) {
+        int idIndex = node.getId().index();
+        return idIndex < this.nodeIndices.length ? this.nodeIndices[idIndex] : -1;
+    }
+
+    /**
+     * @return the index of the given link in this graph, or -1 if the link is not part of the graph.
+     */
+    public int getLinkIndex(Link link) {
+        int idIndex = link.getId().index();
+        return idIndex < this.linkIndices.length ? this.linkIndices[idIndex] : -1;
+    }
+
+    public Node getNode(int nodeIndex) {
+        return this.nodes[nodeIndex];
     }
 
     public LinkIterator getOutLinkIterator() {
@@ -149,7 +318,8 @@ public class Graph {
     private static abstract class AbstractLinkIterator implements LinkIterator {
 
         final Graph graph;
-        int nodeIdx = -1;
+        int pos = -1;
+        int end = -1;
         int linkIdx = -1;
 
         AbstractLinkIterator(Graph graph) {
@@ -157,10 +327,7 @@ public class Graph {
         }
 
         @Override
-        final public void reset(int nodeIdx) {
-            this.nodeIdx = nodeIdx;
-            this.linkIdx = -1;
-        }
+        abstract public void reset(int nodeIdx);
 
         @Override
         abstract public boolean next();
@@ -172,22 +339,22 @@ public class Graph {
 
         @Override
         final public int getFromNodeIndex() {
-            return this.graph.linkData[this.linkIdx * LINK_SIZE + 2];
+            return this.graph.outLinkData[this.linkIdx * LINK_SIZE];
         }
 
         @Override
         final public int getToNodeIndex() {
-            return this.graph.linkData[this.linkIdx * LINK_SIZE + 3];
+            return this.graph.outLinkData[this.linkIdx * LINK_SIZE + 1];
         }
 
         @Override
         final public double getLength() {
-            return this.graph.linkData[this.linkIdx * LINK_SIZE + 4] / 100.0;
+            return this.graph.outLinkData[this.linkIdx * LINK_SIZE + 2] / 100.0;
         }
 
         @Override
         final public double getFreespeedTravelTime() {
-            return this.graph.linkData[this.linkIdx * LINK_SIZE + 5] / 100.0;
+            return this.graph.outLinkData[this.linkIdx * LINK_SIZE + 3] / 100.0;
         }
     }
 
@@ -197,20 +364,20 @@ public class Graph {
             super(graph);
         }
 
+        @Override
+        public void reset(int nodeIdx) {
+            this.pos = this.graph.outOffsets[nodeIdx] - 1;
+            this.end = this.graph.outOffsets[nodeIdx + 1];
+        }
+
         @Override
         public boolean next() {
-            if (this.nodeIdx < 0) {
-                return false;
-            }
-            if (this.linkIdx < 0) {
-                this.linkIdx = graph.nodeData[this.nodeIdx * NODE_SIZE];
-            } else {
-                this.linkIdx = graph.linkData[this.linkIdx * LINK_SIZE];
-            }
-            if (this.linkIdx < 0) {
-                this.nodeIdx = -1;
+            this.pos++;
+            if (this.pos >= this.end) {
+                this.pos = this.end;
                 return false;
             }
+            this.linkIdx = this.pos;
             return true;
         }
     }
@@ -221,20 +388,20 @@ public class Graph {
             super(graph);
         }
 
+        @Override
+        public void reset(int nodeIdx) {
+            this.pos = this.graph.inOffsets[nodeIdx] - 1;
+            this.end = this.graph.inOffsets[nodeIdx + 1];
+        }
+
         @Override
         public boolean next() {
-            if (this.nodeIdx < 0) {
-                return false;
-            }
-            if (this.linkIdx < 0) {
-                this.linkIdx = graph.nodeData[this.nodeIdx * NODE_SIZE + 1];
-            } else {
-                this.linkIdx = graph.linkData[this.linkIdx * LINK_SIZE + 1];
-            }
-            if (this.linkIdx < 0) {
-                this.nodeIdx = -1;
+            this.pos++;
+            if (this.pos >= this.end) {
+                this.pos = this.end;
                 return false;
             }
+            this.linkIdx = this.graph.inLinks[this.pos];
             return true;
         }
     }
@@ -0,0 +1,105 @@
+package ch.sbb.matsim.routing.graph;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed least costs from and to a small set of landmark nodes, used to calculate
+ * lower bounds for the remaining cost in A*-searches with landmarks (ALT). For any nodes
+ * v and t and any landmark L, the triangle inequality results in the lower bounds
+ * d(v,t) &gt;= d(L,t) - d(L,v) and d(v,t) &gt;= d(v,L) - d(t,L).
+ *
+ * See Goldberg, Harrelson (2005): Computing the Shortest Path: A* Search Meets Graph Theory.
+ *
+ * The landmarks are selected with the "farthest" heuristic: starting with the node farthest
+ * away from an arbitrary node, each further landmark is the node farthest away from all
+ * landmarks selected so far. The costs are calculated with {@link LeastCostPathTree}s on
+ * a {@link TravelCostSnapshot} with a single time bin, so they are consistent with the
+ * costs used in {@link LeastCostPathQuery}.
+ *
+ * Once created, the landmarks are immutable and can be used by multiple threads concurrently.
+ *
+ * @author mrieser / SBB
+ */
+public final class Landmarks {
+
+    final int landmarkCount;
+    final int[] landmarkNodes;
+    // for each node, the costs from (resp. to) all landmarks: index = node * landmarkCount + landmark
+    final double[] costsFromLandmarks;
+    final double[] costsToLandmarks;
+
+    private Landmarks(int[] landmarkNodes, double[] costsFromLandmarks, double[] costsToLandmarks) {
+        this.landmarkCount = landmarkNodes.length;
+        this.landmarkNodes = landmarkNodes;
+        this.costsFromLandmarks = costsFromLandmarks;
+        this.costsToLandmarks = costsToLandmarks;
+    }
+
+    public static Landmarks create(TravelCostSnapshot snapshot, int landmarkCount) {
+        if (snapshot.getBinCount() != 1) {
+            throw new IllegalArgumentException("Landmarks require a snapshot with a single time bin.");
+        }
+        Graph graph = snapshot.getGraph();
+        int nodeCount = graph.nodeCount;
+        landmarkCount = Math.min(landmarkCount, nodeCount);
+        int[] landmarkNodes = new int[landmarkCount];
+        double[] costsFromLandmarks = new double[nodeCount * landmarkCount];
+        double[] costsToLandmarks = new double[nodeCount * landmarkCount];
+        if (landmarkCount == 0) {
+            return new Landmarks(landmarkNodes, costsFromLandmarks, costsToLandmarks);
+        }
+
+        LeastCostPathTree lcpTree = new LeastCostPathTree(snapshot);
+        double[] minCosts = new double[nodeCount]; // for each node, the minimal cost from any landmark selected so far
+        Arrays.fill(minCosts, Double.POSITIVE_INFINITY);
+
+        lcpTree.calculate(0, 0, null, null);
+        int nextLandmark = findFarthestNode(lcpTree, nodeCount, null);
+
+        for (int l = 0; l < landmarkCount; l++) {
+            int landmark = nextLandmark;
+            landmarkNodes[l] = landmark;
+
+            lcpTree.calculateBackwards(landmark, 0, null, null);
+            for (int node = 0; node < nodeCount; node++) {
+                costsToLandmarks[node * landmarkCount + l] = lcpTree.getCost(node);
+            }
+
+            lcpTree.calculate(landmark, 0, null, null);
+            for (int node = 0; node < nodeCount; node++) {
+                double cost = lcpTree.getCost(node);
+                costsFromLandmarks[node * landmarkCount + l] = cost;
+                if (cost < minCosts[node]) {
+                    minCosts[node] = cost;
+                }
+            }
+            nextLandmark = findFarthestNode(lcpTree, nodeCount, minCosts);
+        }
+        return new Landmarks(landmarkNodes, costsFromLandmarks, costsToLandmarks);
+    }
+
+    /**
+     * Finds the node with the highest finite cost, either in the tree or in the given costs.
+     * Nodes that are not reachable at all are ignored, so every landmark can reach a part of the network.
+     */
+    private static int findFarthestNode(LeastCostPathTree lcpTree, int nodeCount, double[] costs) {
+        int farthestNode = 0;
+        double maxCost = -1;
+        for (int node = 0; node < nodeCount; node++) {
+            double cost = costs == null ? lcpTree.getCost(node) : costs[node];
+            if (cost < Double.POSITIVE_INFINITY && cost > maxCost) {
+                maxCost = cost;
+                farthestNode = node;
+            }
+        }
+        return farthestNode;
+    }
+
+    public int getLandmarkCount() {
+        return this.landmarkCount;
+    }
+
+    public int getLandmarkNode(int landmark) {
+        return this.landmarkNodes[landmark];
+    }
+}
@@ -0,0 +1,263 @@
+package ch.sbb.matsim.routing.graph;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the least-cost path between two nodes of a {@link Graph}, using a bidirectional
+ * Dijkstra search: one search starts at the start node and follows the out-links, another one
+ * starts at the target node and follows the in-links, until the two searches meet.
+ *
+ * If {@link Landmarks} are given, both searches are additionally guided towards each other
+ * using the landmarks' lower bounds of the remaining costs (A* with landmarks, ALT). To keep
+ * the potentials of the two searches consistent with each other, the average of the forward
+ * and backward potentials is used.
+ *
+ * The link costs are read from a {@link TravelCostSnapshot} with a single time bin, i.e. the
+ * costs of all links are static and do not depend on the time a link is entered. This allows
+ * the backward search to start without knowing the arrival time.
+ *
+ * The number of nodes settled by both searches together is reported after each query
+ * (see {@link #getSettledNodeCount()}), e.g. to compare the efficiency of the different
+ * variants against a full {@link LeastCostPathTree}.
+ *
+ * The implementation does not allocate any memory in the {@link #calculate(int, int)} method.
+ * All required memory is pre-allocated in the constructor. This makes the implementation
+ * NOT thread-safe, use one instance per thread.
+ *
+ * @author mrieser / SBB
+ */
+public class LeastCostPathQuery {
+
+    private final Graph graph;
+    private final TravelCostSnapshot snapshot;
+    private final Landmarks landmarks;
+    private final Graph.LinkIterator outLI;
+    private final Graph.LinkIterator inLI;
+
+    private final NodeHeap forwardPQ;
+    private final NodeHeap backwardPQ;
+    private final double[] forwardData; // 3 entries per node: cost, time, distance
+    private final double[] backwardData;
+    private final int[] forwardGenerations;
+    private final int[] backwardGenerations;
+    private final double[] potentials;
+    private final int[] potentialGenerations;
+    private int currentGeneration = 0;
+
+    // landmark costs of the current start and target node
+    private final double[] startFromLandmarks;
+    private final double[] startToLandmarks;
+    private final double[] targetFromLandmarks;
+    private final double[] targetToLandmarks;
+
+    private double bestCost;
+    private int meetingNode;
+    private int settledNodeCount;
+
+    public LeastCostPathQuery(TravelCostSnapshot snapshot) {
+        this(snapshot, null);
+    }
+
+    public LeastCostPathQuery(TravelCostSnapshot snapshot, Landmarks landmarks) {
+        if (snapshot.getBinCount() != 1) {
+            throw new IllegalArgumentException("LeastCostPathQuery requires a snapshot with a single time bin.");
+        }
+        this.graph = snapshot.getGraph();
+        this.snapshot = snapshot;
+        this.landmarks = landmarks;
+        this.outLI = this.graph.getOutLinkIterator();
+        this.inLI = this.graph.getInLinkIterator();
+
+        int nodeCount = this.graph.nodeCount;
+        this.forwardPQ = new NodeHeap(nodeCount);
+        this.backwardPQ = new NodeHeap(nodeCount);
+        this.forwardData = new double[nodeCount * 3];
+        this.backwardData = new double[nodeCount * 3];
+        this.forwardGenerations = new int[nodeCount];
+        this.backwardGenerations = new int[nodeCount];
+        this.potentials = new double[nodeCount];
+        this.potentialGenerations = new int[nodeCount];
+
+        int landmarkCount = landmarks == null ? 0 : landmarks.landmarkCount;
+        this.startFromLandmarks = new double[landmarkCount];
+        this.startToLandmarks = new double[landmarkCount];
+        this.targetFromLandmarks = new double[landmarkCount];
+        this.targetToLandmarks = new double[landmarkCount];
+    }
+
+    /**
+     * Calculates the least-cost path from the start node to the target node.
+     * The results can be retrieved with {@link #getCost()}, {@link #getTravelTime()}
+     * and {@link #getDistance()}.
+     */
+    public void calculate(int startNode, int targetNode) {
+        startNextGeneration();
+        prepareLandmarks(startNode, targetNode);
+
+        setData(this.forwardData, this.forwardGenerations, startNode, 0, 0, 0);
+        this.forwardPQ.insert(startNode, getForwardPotential(startNode));
+        setData(this.backwardData, this.backwardGenerations, targetNode, 0, 0, 0);
+        this.backwardPQ.insert(targetNode, -getForwardPotential(targetNode));
+        if (startNode == targetNode) {
+            this.bestCost = 0;
+            this.meetingNode = startNode;
+        }
+
+        final int binOffset = this.snapshot.getBinOffset(0);
+        while (!this.forwardPQ.isEmpty() && !this.backwardPQ.isEmpty()) {
+            // with consistent potentials, no shorter path can be found once the keys of the two searches add up to the best cost found so far
+            if (this.forwardPQ.peekKey() + this.backwardPQ.peekKey() >= this.bestCost) {
+                break;
+            }
+            if (this.forwardPQ.size() <= this.backwardPQ.size()) {
+                int node = this.forwardPQ.poll();
+                this.settledNodeCount++;
+                expand(node, this.outLI, binOffset, this.forwardData, this.forwardGenerations, this.forwardPQ, this.backwardData, this.backwardGenerations, 1.0);
+            } else {
+                int node = this.backwardPQ.poll();
+                this.settledNodeCount++;
+                expand(node, this.inLI, binOffset, this.backwardData, this.backwardGenerations, this.backwardPQ, this.forwardData, this.forwardGenerations, -1.0);
+            }
+        }
+    }
+
+    private void expand(int node, Graph.LinkIterator li, int binOffset, double[] data, int[] generations, NodeHeap pq, double[] otherData, int[] otherGenerations, double potentialFactor) {
+        final boolean forward = potentialFactor > 0;
+        double cost = data[node * 3];
+        double time = data[node * 3 + 1];
+        double distance = data[node * 3 + 2];
+
+        li.reset(node);
+        while (li.next()) {
+            int linkIdx = li.getLinkIndex();
+            int nextNode = forward ? li.getToNodeIndex() : li.getFromNodeIndex();
+            double newCost = cost + this.snapshot.travelDisutilities[binOffset + linkIdx];
+            if (generations[nextNode] == this.currentGeneration && newCost >= data[nextNode * 3]) {
+                continue;
+            }
+            double newTime = time + this.snapshot.travelTimes[binOffset + linkIdx];
+            double newDistance = distance + li.getLength();
+            setData(data, generations, nextNode, newCost, newTime, newDistance);
+            pq.insertOrUpdate(nextNode, newCost + potentialFactor * getForwardPotential(nextNode));
+
+            if (otherGenerations[nextNode] == this.currentGeneration) {
+                double totalCost = newCost + otherData[nextNode * 3];
+                if (totalCost < this.bestCost) {
+                    this.bestCost = totalCost;
+                    this.meetingNode = nextNode;
+                }
+            }
+        }
+    }
+
+    private void startNextGeneration() {
+        this.currentGeneration++;
+        if (this.currentGeneration == Integer.MAX_VALUE) {
+            Arrays.fill(this.forwardGenerations, 0);
+            Arrays.fill(this.backwardGenerations, 0);
+            Arrays.fill(this.potentialGenerations, 0);
+            this.currentGeneration = 1;
+        }
+        this.forwardPQ.clear();
+        this.backwardPQ.clear();
+        this.bestCost = Double.POSITIVE_INFINITY;
+        this.meetingNode = -1;
+        this.settledNodeCount = 0;
+    }
+
+    private void prepareLandmarks(int startNode, int targetNode) {
+        if (this.landmarks == null) {
+            return;
+        }
+        int count = this.landmarks.landmarkCount;
+        System.arraycopy(this.landmarks.costsFromLandmarks, startNode * count, this.startFromLandmarks, 0, count);
+        System.arraycopy(this.landmarks.costsToLandmarks, startNode * count, this.startToLandmarks, 0, count);
+        System.arraycopy(this.landmarks.costsFromLandmarks, targetNode * count, this.targetFromLandmarks, 0, count);
+        System.arraycopy(this.landmarks.costsToLandmarks, targetNode * count, this.targetToLandmarks, 0, count);
+    }
+
+    /**
+     * The potential of the forward search, (lowerBound(v, target) - lowerBound(start, v)) / 2.
+     * The backward search uses the negated value.
+     */
+    private double getForwardPotential(int node) {
+        if (this.landmarks == null) {
+            return 0;
+        }
+        if (this.potentialGenerations[node] == this.currentGeneration) {
+            return this.potentials[node];
+        }
+        int count = this.landmarks.landmarkCount;
+        double[] fromLandmarks = this.landmarks.costsFromLandmarks;
+        double[] toLandmarks = this.landmarks.costsToLandmarks;
+        double toTarget = 0;
+        double fromStart = 0;
+        for (int l = 0, i = node * count; l < count; l++, i++) {
+            double fromL = fromLandmarks[i];
+            double toL = toLandmarks[i];
+            // infinite costs (unreachable nodes) cannot provide a bound, they would result in NaN or infinite potentials
+            if (fromL < Double.POSITIVE_INFINITY) {
+                if (this.targetFromLandmarks[l] < Double.POSITIVE_INFINITY) {
+                    toTarget = Math.max(toTarget, this.targetFromLandmarks[l] - fromL);
+                }
+                if (this.startFromLandmarks[l] < Double.POSITIVE_INFINITY) {
+                    fromStart = Math.max(fromStart, fromL - this.startFromLandmarks[l]);
+                }
+            }
+            if (toL < Double.POSITIVE_INFINITY) {
+                if (this.targetToLandmarks[l] < Double.POSITIVE_INFINITY) {
+                    toTarget = Math.max(toTarget, toL - this.targetToLandmarks[l]);
+                }
+                if (this.startToLandmarks[l] < Double.POSITIVE_INFINITY) {
+                    fromStart = Math.max(fromStart, this.startToLandmarks[l] - toL);
+                }
+            }
+        }
+        double potential = (toTarget - fromStart) / 2;
+        this.potentials[node] = potential;
+        this.potentialGenerations[node] = this.currentGeneration;
+        return potential;
+    }
+
+    private void setData(double[] data, int[] generations, int node, double cost, double time, double distance) {
+        generations[node] = this.currentGeneration;
+        int index = node * 3;
+        data[index] = cost;
+        data[index + 1] = time;
+        data[index + 2] = distance;
+    }
+
+    /**
+     * @return the cost of the least-cost path, or infinity if the target node cannot be reached.
+     */
+    public double getCost() {
+        return this.bestCost;
+    }
+
+    /**
+     * @return the travel time along the least-cost path, or infinity if the target node cannot be reached.
+     */
+    public double getTravelTime() {
+        if (this.meetingNode < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return this.forwardData[this.meetingNode * 3 + 1] + this.backwardData[this.meetingNode * 3 + 1];
+    }
+
+    /**
+     * @return the distance along the least-cost path, or infinity if the target node cannot be reached.
+     */
+    public double getDistance() {
+        if (this.meetingNode < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return this.forwardData[this.meetingNode * 3 + 2] + this.backwardData[this.meetingNode * 3 + 2];
+    }
+
+    /**
+     * @return the number of nodes settled by the forward and backward search in the last query.
+     */
+    public int getSettledNodeCount() {
+        return this.settledNodeCount;
+    }
+}
@@ -24,24 +24,50 @@ import java.util.NoSuchElementException;
  * {@link #calculate(int, double, Person, Vehicle)} method. All required
  * memory is pre-allocated in the constructor. This makes the implementation
  * NOT thread-safe.
+ *
+ * The data of a previous calculation is not cleared when a new calculation
+ * starts. Instead, each calculation increases a generation counter and every
+ * node remembers the generation in which its data was last written. Data from
+ * older generations is treated as unset. Thus, the cost of a calculation only
+ * depends on the number of nodes it visits, and not on the size of the network,
+ * which is especially useful for short searches using a {@link StopCriterion}.
+ *
+ * Instead of a {@link TravelTime} and {@link TravelDisutility}, the tree can also
+ * use a {@link TravelCostSnapshot}. In this case, the routing only reads the
+ * snapshot's primitive arrays and the graph's link lengths, without accessing any
+ * {@link Link} objects. The person and vehicle passed to the <code>calculate</code>-methods
+ * are ignored then, as the snapshot was already created for a specific person and vehicle.
  */
 public class LeastCostPathTree {
 
     private final Graph graph;
     private final TravelTime tt;
     private final TravelDisutility td;
+    private final TravelCostSnapshot snapshot;
     private final double[] data; // 3 entries per node: time, cost, distance
     private final int[] comingFrom;
+    private final int[] generations; // the generation in which the data of each node was last set
+    private int currentGeneration = 0;
     private final Graph.LinkIterator outLI;
     private final Graph.LinkIterator inLI;
     private final NodeMinHeap pq;
 
     public LeastCostPathTree(Graph graph, TravelTime tt, TravelDisutility td) {
+        this(graph, tt, td, null);
+    }
+
+    public LeastCostPathTree(TravelCostSnapshot snapshot) {
+        this(snapshot.getGraph(), null, null, snapshot);
+    }
+
+    private LeastCostPathTree(Graph graph, TravelTime tt, TravelDisutility td, TravelCostSnapshot snapshot) {
         this.graph = graph;
         this.tt = tt;
         this.td = td;
+        this.snapshot = snapshot;
         this.data = new double[graph.nodeCount * 3];
         this.comingFrom = new int[graph.nodeCount];
+        this.generations = new int[graph.nodeCount];
         this.pq = new NodeMinHeap();
         this.outLI = graph.getOutLinkIterator();
         this.inLI = graph.getInLinkIterator();
@@ -52,14 +78,53 @@ public class LeastCostPathTree {
     }
 
     public void calculate(int startNode, double startTime, Person person, Vehicle vehicle, StopCriterion stopCriterion) {
-        Arrays.fill(this.data, Double.POSITIVE_INFINITY);
-        Arrays.fill(this.comingFrom, -1);
+        startNextGeneration();
 
-        setData(startNode, 0, startTime, 0);
+        addStartNode(startNode, 0, startTime);
+        expandForward(startTime, person, vehicle, stopCriterion);
+    }
 
-        this.pq.clear();
-        this.pq.insert(startNode);
+    public void calculate(int[] startNodes, double[] startCosts, double startTime, Person person, Vehicle vehicle) {
+        this.calculate(startNodes, startCosts, startTime, person, vehicle, (node, arrTime, cost, distance, depTime) -> false);
+    }
+
+    /**
+     * Calculates a single tree starting at multiple nodes at once (multi-source search).
+     * Each node in the resulting tree is reached from the start node resulting in the
+     * least cost. This is equivalent to calculating one tree per start node and taking
+     * the minimum per node, but requires only one search.
+     *
+     * @param startNodes the indices of the nodes to start from. The same node may be
+     *                   contained multiple times, in which case the smallest start cost is used.
+     * @param startCosts the cost already incurred when starting at the corresponding node,
+     *                   e.g. to account for an access leg. May be <code>null</code>, in which
+     *                   case all start nodes have a start cost of 0.
+     * @param startTime the time at which the search starts at every start node.
+     */
+    public void calculate(int[] startNodes, double[] startCosts, double startTime, Person person, Vehicle vehicle, StopCriterion stopCriterion) {
+        startNextGeneration();
+
+        for (int i = 0; i < startNodes.length; i++) {
+            double startCost = startCosts == null ? 0 : startCosts[i];
+            addStartNode(startNodes[i], startCost, startTime);
+        }
+        expandForward(startTime, person, vehicle, stopCriterion);
+    }
+
+    private void addStartNode(int startNode, double startCost, double startTime) {
+        double oldCost = getCost(startNode);
+        if (Double.isFinite(oldCost)) {
+            if (startCost < oldCost) {
+                this.pq.decreaseKey(startNode, startCost);
+                setData(startNode, startCost, startTime, 0, -1);
+            }
+        } else {
+            setData(startNode, startCost, startTime, 0, -1);
+            this.pq.insert(startNode);
+        }
+    }
 
+    private void expandForward(double startTime, Person person, Vehicle vehicle, StopCriterion stopCriterion) {
         while (!pq.isEmpty()) {
             final int nodeIdx = pq.poll();
             double currTime = getTime(nodeIdx);
@@ -70,43 +135,50 @@ public class LeastCostPathTree {
                 break;
             }
 
+            int binOffset = this.snapshot == null ? 0 : this.snapshot.getBinOffset(currTime);
             outLI.reset(nodeIdx);
             while (outLI.next()) {
                 int linkIdx = outLI.getLinkIndex();
-                Link link = this.graph.getLink(linkIdx);
                 int toNode = outLI.getToNodeIndex();
 
-                double travelTime = this.tt.getLinkTravelTime(link, currTime, person, vehicle);
+                double travelTime;
+                double linkCost;
+                double length;
+                if (this.snapshot != null) {
+                    travelTime = this.snapshot.travelTimes[binOffset + linkIdx];
+                    linkCost = this.snapshot.travelDisutilities[binOffset + linkIdx];
+                    length = outLI.getLength();
+                } else {
+                    Link link = this.graph.getLink(linkIdx);
+                    travelTime = this.tt.getLinkTravelTime(link, currTime, person, vehicle);
+                    linkCost = this.td.getLinkTravelDisutility(link, currTime, person, vehicle);
+                    length = link.getLength();
+                }
                 double newTime = currTime + travelTime;
-                double newCost = currCost + this.td.getLinkTravelDisutility(link, currTime, person, vehicle);
+                double newCost = currCost + linkCost;
 
                 double oldCost = getCost(toNode);
                 if (Double.isFinite(oldCost)) {
                     if (newCost < oldCost) {
                         pq.decreaseKey(toNode, newCost);
-                        setData(toNode, newCost, newTime, currDistance + link.getLength());
-                        this.comingFrom[toNode] = nodeIdx;
+                        setData(toNode, newCost, newTime, currDistance + length, nodeIdx);
                     }
                 } else {
-                    setData(toNode, newCost, newTime, currDistance + link.getLength());
+                    setData(toNode, newCost, newTime, currDistance + length, nodeIdx);
                     pq.insert(toNode);
-                    this.comingFrom[toNode] = nodeIdx;
                 }
             }
         }
     }
 
     public void calculateBackwards(int arrivalNode, double arrivalTime, Person person, Vehicle vehicle) {
-        this.calculate(arrivalNode, arrivalTime, person, vehicle, (node, arrTime, cost, distance, depTime) -> false);
+        this.calculateBackwards(arrivalNode, arrivalTime, person, vehicle, (node, arrTime, cost, distance, depTime) -> false);
     }
 
     public void calculateBackwards(int arrivalNode, double arrivalTime, Person person, Vehicle vehicle, StopCriterion stopCriterion) {
-        Arrays.fill(this.data, Double.POSITIVE_INFINITY);
-        Arrays.fill(this.comingFrom, -1);
-
-        setData(arrivalNode, 0, arrivalTime, 0);
+        startNextGeneration();
 
-        this.pq.clear();
+        setData(arrivalNode, 0, arrivalTime, 0, -1);
         this.pq.insert(arrivalNode);
 
         while (!pq.isEmpty()) {
@@ -119,37 +191,63 @@ public class LeastCostPathTree {
                 break;
             }
 
+            int binOffset = this.snapshot == null ? 0 : this.snapshot.getBinOffset(currTime);
             inLI.reset(nodeIdx);
             while (inLI.next()) {
                 int linkIdx = inLI.getLinkIndex();
-                Link link = this.graph.getLink(linkIdx);
                 int fromNode = inLI.getFromNodeIndex();
 
-                double travelTime = this.tt.getLinkTravelTime(link, currTime, person, vehicle);
+                double travelTime;
+                double linkCost;
+                double length;
+                if (this.snapshot != null) {
+                    travelTime = this.snapshot.travelTimes[binOffset + linkIdx];
+                    linkCost = this.snapshot.travelDisutilities[binOffset + linkIdx];
+                    length = inLI.getLength();
+                } else {
+                    Link link = this.graph.getLink(linkIdx);
+                    travelTime = this.tt.getLinkTravelTime(link, currTime, person, vehicle);
+                    linkCost = this.td.getLinkTravelDisutility(link, currTime, person, vehicle);
+                    length = link.getLength();
+                }
                 double newTime = currTime - travelTime;
-                double newCost = currCost + this.td.getLinkTravelDisutility(link, currTime, person, vehicle);
+                double newCost = currCost + linkCost;
 
                 double oldCost = getCost(fromNode);
                 if (Double.isFinite(oldCost)) {
                     if (newCost < oldCost) {
                         pq.decreaseKey(fromNode, newCost);
-                        setData(fromNode, newCost, newTime, currDistance + link.getLength());
-                        this.comingFrom[fromNode] = nodeIdx;
+                        setData(fromNode, newCost, newTime, currDistance + length, nodeIdx);
                     }
                 } else {
-                    setData(fromNode, newCost, newTime, currDistance + link.getLength());
+                    setData(fromNode, newCost, newTime, currDistance + length, nodeIdx);
                     pq.insert(fromNode);
-                    this.comingFrom[fromNode] = nodeIdx;
                 }
             }
         }
     }
 
+    private void startNextGeneration() {
+        this.currentGeneration++;
+        if (this.currentGeneration == Integer.MAX_VALUE) {
+            // the generation counter would overflow, so really clear the data once
+            Arrays.fill(this.generations, 0);
+            this.currentGeneration = 1;
+        }
+        this.pq.clear();
+    }
+
     public double getCost(int nodeIndex) {
+        if (this.generations[nodeIndex] != this.currentGeneration) {
+            return Double.POSITIVE_INFINITY;
+        }
         return this.data[nodeIndex * 3];
     }
 
     public double getTime(int nodeIndex) {
+        if (this.generations[nodeIndex] != this.currentGeneration) {
+            return Time.getUndefinedTime();
+        }
         double time = this.data[nodeIndex * 3 + 1];
         if (Double.isInfinite(time)) {
             return Time.getUndefinedTime();
@@ -158,6 +256,9 @@ public class LeastCostPathTree {
     }
 
     public double getDistance(int nodeIndex) {
+        if (this.generations[nodeIndex] != this.currentGeneration) {
+            return Double.POSITIVE_INFINITY;
+        }
         return this.data[nodeIndex * 3 + 2];
     }
 
@@ -165,7 +266,9 @@ public class LeastCostPathTree {
         this.data[nodeIndex * 3] = cost;
     }
 
-    private void setData(int nodeIndex, double cost, double time, double distance) {
+    private void setData(int nodeIndex, double cost, double time, double distance, int comingFrom) {
+        this.generations[nodeIndex] = this.currentGeneration;
+        this.comingFrom[nodeIndex] = comingFrom;
         int index = nodeIndex * 3;
         this.data[index] = cost;
         this.data[index + 1] = time;
@@ -173,71 +276,66 @@ public class LeastCostPathTree {
     }
 
     public int getComingFrom(int nodeIndex) {
+        if (this.generations[nodeIndex] != this.currentGeneration) {
+            return -1;
+        }
         return this.comingFrom[nodeIndex];
     }
 
+    /**
+     * A binary min-heap of node indices, ordered by the cost stored in the tree's data.
+     * In addition to the heap itself, the position of each node within the heap is
+     * tracked, so {@link #decreaseKey(int, double)} can find a node in constant time
+     * instead of scanning the whole heap. Both arrays are pre-allocated for the worst
+     * case (every node part of the heap), so no memory gets allocated during routing.
+     */
     private class NodeMinHeap {
-        private final int heap[];
+        private final int[] heap;
+        private final int[] pos; // position of each node in the heap, -1 if the node is not part of the heap
         private int size = 0;
 
         NodeMinHeap() {
             this.heap = new int[graph.nodeCount]; // worst case: every node is part of the heap
+            this.pos = new int[graph.nodeCount];
+            Arrays.fill(this.pos, -1);
         }
 
         void insert(int node) {
             int i = this.size;
-            heap[i] = node;
             this.size++;
-
-            int parent = parent(i);
-
-            while (parent != i && getCost(heap[i]) < getCost(heap[parent])) {
-                swap(i, parent);
-                i = parent;
-                parent = parent(i);
-            }
+            this.heap[i] = node;
+            this.pos[node] = i;
+            siftUp(i);
         }
 
         void decreaseKey(int node, double cost) {
-            int i;
-            for (i = 0; i < size; i++) {
-                if (this.heap[i] == node) {
-                    break;
-                }
+            int i = this.pos[node];
+            if (i < 0) {
+                throw new NoSuchElementException("node is not part of the heap.");
             }
-            if (getCost(heap[i]) < cost) {
+            if (getCost(node) < cost) {
                 throw new IllegalArgumentException("existing cost is already smaller than new cost.");
             }
 
             setCost(node, cost);
-            int parent = parent(i);
-
-            // sift up
-            while (i > 0 && getCost(heap[parent]) > getCost(heap[i])) {
-                swap(i, parent);
-                i = parent;
-                parent = parent(parent);
-            }
+            siftUp(i);
         }
 
         int poll() {
             if (this.size == 0) {
                 throw new NoSuchElementException("heap is empty");
             }
-            if (this.size == 1) {
-                this.size--;
-                return this.heap[0];
-            }
-
             int root = this.heap[0];
-
-            // remove the last item, set it as new root
-            int lastNode = this.heap[this.size - 1];
+            this.pos[root] = -1;
             this.size--;
-            this.heap[0] = lastNode;
 
-            // sift down
-            minHeapify(0);
+            if (this.size > 0) {
+                // remove the last item, set it as new root
+                int lastNode = this.heap[this.size];
+                this.heap[0] = lastNode;
+                this.pos[lastNode] = 0;
+                siftDown(0);
+            }
 
             return root;
         }
@@ -258,28 +356,57 @@ public class LeastCostPathTree {
         }
 
         void clear() {
+            // only reset the nodes still in the heap, all others are already marked as removed
+            for (int i = 0; i < this.size; i++) {
+                this.pos[this.heap[i]] = -1;
+            }
             this.size = 0;
         }
 
-        private void minHeapify(int i) {
-            int left = left(i);
-            int right = right(i);
-            int smallest = i;
-
-            if (left <= (size - 1) && getCost(heap[left]) < getCost(heap[i])) {
-                smallest = left;
-            }
-            if (right <= (size - 1) && getCost(heap[right]) < getCost(heap[smallest])) {
-                smallest = right;
-            }
-            if (smallest != i) {
-                swap(i, smallest);
-                minHeapify(smallest);
+        private void siftUp(int i) {
+            int node = this.heap[i];
+            double cost = getCost(node);
+            while (i > 0) {
+                int parent = parent(i);
+                int parentNode = this.heap[parent];
+                if (getCost(parentNode) <= cost) {
+                    break;
+                }
+                this.heap[i] = parentNode;
+                this.pos[parentNode] = i;
+                i = parent;
             }
+            this.heap[i] = node;
+            this.pos[node] = i;
         }
 
-        private int right(int i) {
-            return 2 * i + 2;
+        private void siftDown(int i) {
+            int node = this.heap[i];
+            double cost = getCost(node);
+            while (true) {
+                int smallest = left(i);
+                if (smallest >= this.size) {
+                    break;
+                }
+                int right = smallest + 1;
+                double smallestCost = getCost(this.heap[smallest]);
+                if (right < this.size) {
+                    double rightCost = getCost(this.heap[right]);
+                    if (rightCost < smallestCost) {
+                        smallest = right;
+                        smallestCost = rightCost;
+                    }
+                }
+                if (smallestCost >= cost) {
+                    break;
+                }
+                int smallestNode = this.heap[smallest];
+                this.heap[i] = smallestNode;
+                this.pos[smallestNode] = i;
+                i = smallest;
+            }
+            this.heap[i] = node;
+            this.pos[node] = i;
         }
 
         private int left(int i) {
@@ -289,12 +416,6 @@ public class LeastCostPathTree {
         private int parent(int i) {
             return (i - 1) / 2;
         }
-
-        private void swap(int i, int parent) {
-            int tmp = this.heap[parent];
-            this.heap[parent] = this.heap[i];
-            this.heap[i] = tmp;
-        }
     }
 
     public interface StopCriterion {
@@ -0,0 +1,301 @@
+package ch.sbb.matsim.routing.graph;
+
+import java.util.Arrays;
+
+/**
+ * Calculates least-cost paths from single (or multiple) start nodes to a fixed set of
+ * target nodes, using a {@link ContractionHierarchy}.
+ *
+ * The algorithm is bucket-based (see Knopp et al. (2007): Computing Many-to-Many Shortest
+ * Paths Using Highway Hierarchies): For each target node, a backward upward search is run
+ * once, and each node settled in this search stores an entry (target, cost) in its bucket.
+ * This is done in {@link #prepareTargets(ContractionHierarchy, int[])}, the resulting
+ * {@link Targets} are immutable and can be shared by multiple threads. Afterwards, for each
+ * start node only a forward upward search is required, scanning the buckets of all settled
+ * nodes to find the least cost to every target.
+ *
+ * The implementation does not allocate any memory in the <code>calculate</code>-methods.
+ * All required memory is pre-allocated in the constructor. This makes the implementation
+ * NOT thread-safe, use one instance per thread.
+ *
+ * @author mrieser / SBB
+ */
+public class ManyToManyQuery {
+
+    private final ContractionHierarchy ch;
+    private final Targets targets;
+    private final NodeHeap pq;
+    private final double[] data; // 3 entries per node: cost, time, distance
+    private final int[] generations;
+    private int currentGeneration = 0;
+
+    private final double[] targetCosts;
+    private final double[] targetTimes;
+    private final double[] targetDistances;
+
+    public ManyToManyQuery(ContractionHierarchy ch, Targets targets) {
+        this.ch = ch;
+        this.targets = targets;
+        this.pq = new NodeHeap(ch.nodeCount);
+        this.data = new double[ch.nodeCount * 3];
+        this.generations = new int[ch.nodeCount];
+        int targetCount = targets.targetNodes.length;
+        this.targetCosts = new double[targetCount];
+        this.targetTimes = new double[targetCount];
+        this.targetDistances = new double[targetCount];
+    }
+
+    /**
+     * Runs the backward searches from all target nodes and stores the results in buckets.
+     */
+    public static Targets prepareTargets(ContractionHierarchy ch, int[] targetNodes) {
+        return new Targets(ch, targetNodes);
+    }
+
+    public void calculate(int startNode) {
+        startNextGeneration();
+        addStartNode(startNode);
+        expand();
+    }
+
+    /**
+     * Calculates the least cost to every target from any of the given start nodes,
+     * i.e. each target is reached from the start node resulting in the least cost.
+     */
+    public void calculate(int[] startNodes) {
+        startNextGeneration();
+        for (int startNode : startNodes) {
+            addStartNode(startNode);
+        }
+        expand();
+    }
+
+    private void startNextGeneration() {
+        this.currentGeneration++;
+        if (this.currentGeneration == Integer.MAX_VALUE) {
+            Arrays.fill(this.generations, 0);
+            this.currentGeneration = 1;
+        }
+        this.pq.clear();
+        Arrays.fill(this.targetCosts, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.targetTimes, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.targetDistances, Double.POSITIVE_INFINITY);
+    }
+
+    private void addStartNode(int startNode) {
+        if (this.generations[startNode] != this.currentGeneration) {
+            setData(startNode, 0, 0, 0);
+            this.pq.insert(startNode, 0);
+        }
+    }
+
+    private void expand() {
+        final ContractionHierarchy ch = this.ch;
+        final Targets targets = this.targets;
+        while (!this.pq.isEmpty()) {
+            int node = this.pq.poll();
+            int index = node * 3;
+            double cost = this.data[index];
+            double time = this.data[index + 1];
+            double distance = this.data[index + 2];
+
+            if (isStalled(node, cost)) {
+                continue;
+            }
+
+            // scan the bucket
+            for (int b = targets.bucketOffsets[node], end = targets.bucketOffsets[node + 1]; b < end; b++) {
+                int target = targets.bucketTargets[b];
+                double totalCost = cost + targets.bucketCosts[b];
+                if (totalCost < this.targetCosts[target]) {
+                    this.targetCosts[target] = totalCost;
+                    this.targetTimes[target] = time + targets.bucketTimes[b];
+                    this.targetDistances[target] = distance + targets.bucketDistances[b];
+                }
+            }
+
+            // relax upward edges
+            for (int e = ch.fwOffsets[node], end = ch.fwOffsets[node + 1]; e < end; e++) {
+                int toNode = ch.fwNodes[e];
+                double newCost = cost + ch.fwCosts[e];
+                if (this.generations[toNode] != this.currentGeneration || newCost < this.data[toNode * 3]) {
+                    setData(toNode, newCost, time + ch.fwTimes[e], distance + ch.fwDistances[e]);
+                    this.pq.insertOrUpdate(toNode, newCost);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stall-on-demand: if a more important node already reached has a downward edge to this node
+     * that results in lower costs, the current cost of the node is not optimal and the search does
+     * not need to continue from it.
+     */
+    private boolean isStalled(int node, double cost) {
+        final ContractionHierarchy ch = this.ch;
+        for (int e = ch.bwOffsets[node], end = ch.bwOffsets[node + 1]; e < end; e++) {
+            int fromNode = ch.bwNodes[e];
+            if (this.generations[fromNode] == this.currentGeneration && this.data[fromNode * 3] + ch.bwCosts[e] < cost) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setData(int node, double cost, double time, double distance) {
+        this.generations[node] = this.currentGeneration;
+        int index = node * 3;
+        this.data[index] = cost;
+        this.data[index + 1] = time;
+        this.data[index + 2] = distance;
+    }
+
+    /**
+     * @return the index of the node within the targets, or -1 if the node is not a target.
+     */
+    public int getTargetIndex(int nodeIndex) {
+        return this.targets.targetIndices[nodeIndex];
+    }
+
+    /**
+     * @return the cost to reach the target with the given index, or infinity if it cannot be reached.
+     */
+    public double getCost(int targetIndex) {
+        return this.targetCosts[targetIndex];
+    }
+
+    /**
+     * @return the travel time to reach the target with the given index, or infinity if it cannot be reached.
+     */
+    public double getTravelTime(int targetIndex) {
+        return this.targetTimes[targetIndex];
+    }
+
+    /**
+     * @return the distance to reach the target with the given index, or infinity if it cannot be reached.
+     */
+    public double getDistance(int targetIndex) {
+        return this.targetDistances[targetIndex];
+    }
+
+    /**
+     * The buckets of a set of target nodes. Immutable once created, thus thread-safe.
+     *
+     * To reduce memory consumption, the bucket entries only store float values. The buckets of
+     * 10'000s of targets easily result in millions of entries.
+     */
+    public static final class Targets {
+        final int[] targetNodes;
+        final int[] targetIndices; // for each node, the index in targetNodes, or -1
+        final int[] bucketOffsets;
+        final int[] bucketTargets;
+        final float[] bucketCosts;
+        final float[] bucketTimes;
+        final float[] bucketDistances;
+
+        Targets(ContractionHierarchy ch, int[] targetNodes) {
+            this.targetNodes = targetNodes.clone();
+            this.targetIndices = new int[ch.nodeCount];
+            Arrays.fill(this.targetIndices, -1);
+            for (int i = 0; i < targetNodes.length; i++) {
+                if (this.targetIndices[targetNodes[i]] >= 0) {
+                    throw new IllegalArgumentException("target node " + targetNodes[i] + " is contained multiple times.");
+                }
+                this.targetIndices[targetNodes[i]] = i;
+            }
+
+            // run the backward searches, collecting the entries in the order they are found
+            int capacity = Math.max(16, targetNodes.length * 64);
+            int[] entryNodes = new int[capacity];
+            int[] entryTargets = new int[capacity];
+            float[] entryCosts = new float[capacity];
+            float[] entryTimes = new float[capacity];
+            float[] entryDistances = new float[capacity];
+            int entryCount = 0;
+
+            NodeHeap pq = new NodeHeap(ch.nodeCount);
+            double[] data = new double[ch.nodeCount * 3];
+            int[] generations = new int[ch.nodeCount];
+            for (int target = 0; target < targetNodes.length; target++) {
+                int generation = target + 1;
+                pq.clear();
+                int targetNode = targetNodes[target];
+                generations[targetNode] = generation;
+                data[targetNode * 3] = 0;
+                data[targetNode * 3 + 1] = 0;
+                data[targetNode * 3 + 2] = 0;
+                pq.insert(targetNode, 0);
+                while (!pq.isEmpty()) {
+                    int node = pq.poll();
+                    double cost = data[node * 3];
+                    double time = data[node * 3 + 1];
+                    double distance = data[node * 3 + 2];
+
+                    boolean stalled = false;
+                    for (int e = ch.fwOffsets[node], end = ch.fwOffsets[node + 1]; e < end; e++) {
+                        int toNode = ch.fwNodes[e];
+                        if (generations[toNode] == generation && data[toNode * 3] + ch.fwCosts[e] < cost) {
+                            stalled = true;
+                            break;
+                        }
+                    }
+                    if (stalled) {
+                        continue;
+                    }
+
+                    if (entryCount == entryNodes.length) {
+                        int newCapacity = entryCount * 2;
+                        entryNodes = Arrays.copyOf(entryNodes, newCapacity);
+                        entryTargets = Arrays.copyOf(entryTargets, newCapacity);
+                        entryCosts = Arrays.copyOf(entryCosts, newCapacity);
+                        entryTimes = Arrays.copyOf(entryTimes, newCapacity);
+                        entryDistances = Arrays.copyOf(entryDistances, newCapacity);
+                    }
+                    entryNodes[entryCount] = node;
+                    entryTargets[entryCount] = target;
+                    entryCosts[entryCount] = (float) cost;
+                    entryTimes[entryCount] = (float) time;
+                    entryDistances[entryCount] = (float) distance;
+                    entryCount++;
+
+                    for (int e = ch.bwOffsets[node], end = ch.bwOffsets[node + 1]; e < end; e++) {
+                        int fromNode = ch.bwNodes[e];
+                        double newCost = cost + ch.bwCosts[e];
+                        if (generations[fromNode] != generation || newCost < data[fromNode * 3]) {
+                            generations[fromNode] = generation;
+                            data[fromNode * 3] = newCost;
+                            data[fromNode * 3 + 1] = time + ch.bwTimes[e];
+                            data[fromNode * 3 + 2] = distance + ch.bwDistances[e];
+                            pq.insertOrUpdate(fromNode, newCost);
+                        }
+                    }
+                }
+            }
+
+            // sort the entries by node (counting sort)
+            this.bucketOffsets = new int[ch.nodeCount + 1];
+            for (int i = 0; i < entryCount; i++) {
+                this.bucketOffsets[entryNodes[i] + 1]++;
+            }
+            for (int i = 0; i < ch.nodeCount; i++) {
+                this.bucketOffsets[i + 1] += this.bucketOffsets[i];
+            }
+            this.bucketTargets = new int[entryCount];
+            this.bucketCosts = new float[entryCount];
+            this.bucketTimes = new float[entryCount];
+            this.bucketDistances = new float[entryCount];
+            int[] next = Arrays.copyOf(this.bucketOffsets, ch.nodeCount);
+            for (int i = 0; i < entryCount; i++) {
+                int pos = next[entryNodes[i]]++;
+                this.bucketTargets[pos] = entryTargets[i];
+                this.bucketCosts[pos] = entryCosts[i];
+                this.bucketTimes[pos] = entryTimes[i];
+                this.bucketDistances[pos] = entryDistances[i];
+            }
+        }
+
+        public int size() {
+            return this.targetNodes.length;
+        }
+    }
+}
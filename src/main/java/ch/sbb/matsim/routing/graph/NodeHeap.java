@@ -0,0 +1,161 @@
+package ch.sbb.matsim.routing.graph;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min-heap of node indices with a double key per node. The position of
+ * each node in the heap is tracked, so keys can be updated in O(log n) without
+ * searching the node first.
+ *
+ * In contrast to the heap in {@link LeastCostPathTree}, which reads the keys directly
+ * from the tree's data, this heap stores the keys itself. This makes it usable by
+ * algorithms that keep their node data differently, e.g. the contraction of a
+ * {@link ContractionHierarchy} or the searches in a {@link ManyToManyQuery}.
+ *
+ * All memory is allocated in the constructor, the heap itself does not allocate any
+ * memory afterwards. This makes the implementation NOT thread-safe.
+ *
+ * @author mrieser / SBB
+ */
+final class NodeHeap {
+
+    private final int[] heap;
+    private final int[] pos; // position of each node in the heap, -1 if the node is not part of the heap
+    private final double[] keys;
+    private int size = 0;
+
+    NodeHeap(int nodeCount) {
+        this.heap = new int[nodeCount];
+        this.pos = new int[nodeCount];
+        this.keys = new double[nodeCount];
+        Arrays.fill(this.pos, -1);
+    }
+
+    void insert(int node, double key) {
+        int i = this.size;
+        this.size++;
+        this.heap[i] = node;
+        this.pos[node] = i;
+        this.keys[node] = key;
+        siftUp(i);
+    }
+
+    /**
+     * Inserts the node if it is not yet part of the heap, or changes its key otherwise.
+     * The key may be decreased as well as increased.
+     */
+    void insertOrUpdate(int node, double key) {
+        int i = this.pos[node];
+        if (i < 0) {
+            insert(node, key);
+            return;
+        }
+        double oldKey = this.keys[node];
+        this.keys[node] = key;
+        if (key < oldKey) {
+            siftUp(i);
+        } else if (key > oldKey) {
+            siftDown(i);
+        }
+    }
+
+    boolean contains(int node) {
+        return this.pos[node] >= 0;
+    }
+
+    double getKey(int node) {
+        return this.keys[node];
+    }
+
+    int poll() {
+        if (this.size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        int root = this.heap[0];
+        this.pos[root] = -1;
+        this.size--;
+        if (this.size > 0) {
+            int lastNode = this.heap[this.size];
+            this.heap[0] = lastNode;
+            this.pos[lastNode] = 0;
+            siftDown(0);
+        }
+        return root;
+    }
+
+    int peek() {
+        if (this.size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        return this.heap[0];
+    }
+
+    double peekKey() {
+        if (this.size == 0) {
+            throw new NoSuchElementException("heap is empty");
+        }
+        return this.keys[this.heap[0]];
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    void clear() {
+        for (int i = 0; i < this.size; i++) {
+            this.pos[this.heap[i]] = -1;
+        }
+        this.size = 0;
+    }
+
+    private void siftUp(int i) {
+        int node = this.heap[i];
+        double key = this.keys[node];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            int parentNode = this.heap[parent];
+            if (this.keys[parentNode] <= key) {
+                break;
+            }
+            this.heap[i] = parentNode;
+            this.pos[parentNode] = i;
+            i = parent;
+        }
+        this.heap[i] = node;
+        this.pos[node] = i;
+    }
+
+    private void siftDown(int i) {
+        int node = this.heap[i];
+        double key = this.keys[node];
+        while (true) {
+            int smallest = 2 * i + 1;
+            if (smallest >= this.size) {
+                break;
+            }
+            int right = smallest + 1;
+            double smallestKey = this.keys[this.heap[smallest]];
+            if (right < this.size) {
+                double rightKey = this.keys[this.heap[right]];
+                if (rightKey < smallestKey) {
+                    smallest = right;
+                    smallestKey = rightKey;
+                }
+            }
+            if (smallestKey >= key) {
+                break;
+            }
+            int smallestNode = this.heap[smallest];
+            this.heap[i] = smallestNode;
+            this.pos[smallestNode] = i;
+            i = smallest;
+        }
+        this.heap[i] = node;
+        this.pos[node] = i;
+    }
+}
@@ -0,0 +1,108 @@
+package ch.sbb.matsim.routing.graph;
+
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+
+/**
+ * Stores the travel times and travel disutilities of all links in a {@link Graph}
+ * in dense float-arrays, optionally for multiple time bins.
+ *
+ * Evaluating {@link TravelTime} and {@link TravelDisutility} for every link relaxed
+ * during routing requires (often megamorphic) virtual calls and access to the
+ * {@link Link} objects. With a snapshot, these are only evaluated once per link and
+ * time bin, and the routing itself only reads primitive arrays (see
+ * {@link LeastCostPathTree#LeastCostPathTree(TravelCostSnapshot)}).
+ *
+ * The values are sampled at the start of each time bin. If the bins are aligned with
+ * the time bins of the TravelTime (e.g. the ones of a TravelTimeCalculator), the snapshot
+ * returns the same values as the TravelTime itself. Times before the first bin use the
+ * first bin, times after the last bin use the last bin.
+ *
+ * Once created, the snapshot is immutable and can be used by multiple threads concurrently.
+ *
+ * @author mrieser / SBB
+ */
+public class TravelCostSnapshot {
+
+    private final Graph graph;
+    private final double startTime;
+    private final double binSize;
+    private final int binCount;
+    private final int linkCount;
+    final float[] travelTimes; // per bin and link: index = bin * linkCount + linkIndex
+    final float[] travelDisutilities;
+
+    private TravelCostSnapshot(Graph graph, double startTime, double binSize, int binCount) {
+        this.graph = graph;
+        this.startTime = startTime;
+        this.binSize = binSize;
+        this.binCount = binCount;
+        this.linkCount = graph.linkCount;
+        this.travelTimes = new float[binCount * this.linkCount];
+        this.travelDisutilities = new float[binCount * this.linkCount];
+    }
+
+    /**
+     * Creates a snapshot with a single time bin, i.e. the values are evaluated at the given time
+     * and used for all times afterwards.
+     */
+    public static TravelCostSnapshot create(Graph graph, TravelTime tt, TravelDisutility td, double time, Person person, Vehicle vehicle) {
+        return create(graph, tt, td, time, time, 1, person, vehicle);
+    }
+
+    /**
+     * Creates a snapshot with time bins of the given size, covering the time from <code>startTime</code>
+     * up to (and including) <code>endTime</code>. The time bins are aligned to multiples of the bin size.
+     */
+    public static TravelCostSnapshot create(Graph graph, TravelTime tt, TravelDisutility td, double startTime, double endTime, double binSize, Person person, Vehicle vehicle) {
+        if (binSize <= 0) {
+            throw new IllegalArgumentException("binSize must be positive, but is " + binSize);
+        }
+        double alignedStartTime = Math.floor(startTime / binSize) * binSize;
+        int binCount = Math.max(1, (int) Math.floor((endTime - alignedStartTime) / binSize) + 1);
+        TravelCostSnapshot snapshot = new TravelCostSnapshot(graph, alignedStartTime, binSize, binCount);
+        for (int bin = 0; bin < binCount; bin++) {
+            double time = alignedStartTime + bin * binSize;
+            int offset = bin * snapshot.linkCount;
+            for (int linkIndex = 0; linkIndex < snapshot.linkCount; linkIndex++) {
+                Link link = graph.getLink(linkIndex);
+                snapshot.travelTimes[offset + linkIndex] = (float) tt.getLinkTravelTime(link, time, person, vehicle);
+                snapshot.travelDisutilities[offset + linkIndex] = (float) td.getLinkTravelDisutility(link, time, person, vehicle);
+            }
+        }
+        return snapshot;
+    }
+
+    public Graph getGraph() {
+        return this.graph;
+    }
+
+    public int getBinCount() {
+        return this.binCount;
+    }
+
+    /**
+     * @return the offset of the time bin containing the given time in the data arrays. Adding the
+     * link index to the offset results in the array index of the link's data.
+     */
+    int getBinOffset(double time) {
+        int bin = (int) ((time - this.startTime) / this.binSize);
+        if (bin < 0) {
+            bin = 0;
+        } else if (bin >= this.binCount) {
+            bin = this.binCount - 1;
+        }
+        return bin * this.linkCount;
+    }
+
+    public double getLinkTravelTime(int linkIndex, double time) {
+        return this.travelTimes[getBinOffset(time) + linkIndex];
+    }
+
+    public double getLinkTravelDisutility(int linkIndex, double time) {
+        return this.travelDisutilities[getBinOffset(time) + linkIndex];
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.matsim.api.core.v01.Coord;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author mrieser / SBB
+ */
+public class ColumnarSkimsIOTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        SkimCube<String> cube = new SkimCube<>(zoneIds, 2, SkimCube.Layout.CELL_MAJOR);
+        float value = 1.0f;
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                cube.getLayer(0).set(fromZoneId, toZoneId, value);
+                cube.getLayer(1).set(fromZoneId, toZoneId, -value);
+                value++;
+            }
+        }
+        // zone b has no coordinate and is not written
+        Map<String, Coord> coords = new HashMap<>();
+        coords.put("a", new Coord(1000.5, 2000.25));
+        coords.put("c", new Coord(3000, 4000));
+
+        String filename = this.tmpFolder.newFile("skims.bin").getAbsolutePath();
+        ColumnarSkimsIO.write(cube, new String[] { "TRAVELTIME", "DISTANCE" }, coords, filename);
+
+        ColumnarSkimsIO.Columns<String> columns = ColumnarSkimsIO.open(filename, id -> id);
+        Assert.assertEquals(Arrays.asList("a", "c"), columns.getZones());
+        Assert.assertEquals(Arrays.asList("TRAVELTIME", "DISTANCE"), columns.getColumnNames());
+        Assert.assertEquals(1000.5, columns.getCoord("a").getX(), 0.0);
+        Assert.assertEquals(2000.25, columns.getCoord("a").getY(), 0.0);
+        Assert.assertEquals(4000, columns.getCoord(1).getY(), 0.0);
+        Assert.assertNull(columns.getCoord("b"));
+
+        FloatMatrix<String> distances = columns.getColumn("DISTANCE");
+        Assert.assertEquals(2, distances.getZoneCount());
+        Assert.assertEquals(-1.0f, distances.get("a", "a"), 0.0f);
+        Assert.assertEquals(-3.0f, distances.get("a", "c"), 0.0f);
+        Assert.assertEquals(-7.0f, distances.get("c", "a"), 0.0f);
+        Assert.assertEquals(-9.0f, distances.get("c", "c"), 0.0f);
+        FloatMatrix<String> travelTimes = columns.getColumn("TRAVELTIME");
+        Assert.assertEquals(3.0f, travelTimes.get("a", "c"), 0.0f);
+
+        try {
+            columns.getColumn("COST");
+            Assert.fail("Expected exception due to unknown column.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -5,19 +5,36 @@
 package ch.sbb.matsim.analysis.skims;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author mrieser / SBB
  */
 public class FloatMatrixIOTest {
 
+    @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
     @Test
     public void testIO() throws IOException {
         Set<String> zoneIds = new HashSet<>();
@@ -56,4 +73,305 @@ public class FloatMatrixIOTest {
         Assert.assertEquals(27.0f, matrix2.get("tres", "dos"), epsilon);
         Assert.assertEquals(64.0f, matrix2.get("tres", "tres"), epsilon);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBinaryIO() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("un", "dos", "tres", "quatre"));
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+        float value = 1.0f;
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                matrix.set(fromZoneId, toZoneId, value);
+                value *= -1.5f;
+            }
+        }
+        matrix.set("dos", "tres", Float.NaN);
+
+        String filename = this.tmpFolder.newFile("matrix.bin").getAbsolutePath();
+        FloatMatrixIO.writeAsBinary(matrix, filename);
+
+        FloatMatrix<String> matrix2 = FloatMatrixIO.readAsBinary(filename, id -> id);
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                Assert.assertEquals(matrix.get(fromZoneId, toZoneId), matrix2.get(fromZoneId, toZoneId), 0.0f);
+            }
+        }
+
+        // read into a matrix with the zones in a different order and an additional zone
+        Set<String> zoneIds3 = new LinkedHashSet<>(Arrays.asList("cinq", "tres", "un", "quatre", "dos"));
+        FloatMatrix<String> matrix3 = new FloatMatrix<>(zoneIds3, -1.0f);
+        FloatMatrixIO.readAsBinary(matrix3, filename, id -> id);
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                Assert.assertEquals(matrix.get(fromZoneId, toZoneId), matrix3.get(fromZoneId, toZoneId), 0.0f);
+            }
+            Assert.assertEquals(-1.0f, matrix3.get(fromZoneId, "cinq"), 0.0f);
+            Assert.assertEquals(-1.0f, matrix3.get("cinq", fromZoneId), 0.0f);
+        }
+
+        // map the file as storage of the matrix
+        FloatMatrix<String> matrix4 = FloatMatrixIO.openAsBinary(filename, id -> id);
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                Assert.assertEquals(matrix.get(fromZoneId, toZoneId), matrix4.get(fromZoneId, toZoneId), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryIO_checksum() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("un", "dos"));
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 2.0f);
+        String filename = this.tmpFolder.newFile("matrix.bin").getAbsolutePath();
+        FloatMatrixIO.writeAsBinary(matrix, filename);
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            file.seek(file.length() - 8);
+            file.write(0x42);
+        }
+        try {
+            FloatMatrixIO.readAsBinary(filename, id -> id);
+            Assert.fail("expected IOException due to checksum mismatch.");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testParallelCSV() throws IOException {
+        // use enough zones so the matrix is split into multiple blocks
+        Set<String> zoneIds = new LinkedHashSet<>();
+        for (int i = 0; i < 300; i++) {
+            zoneIds.add("z" + i);
+        }
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+        int i = 0;
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                matrix.set(fromZoneId, toZoneId, (i++) * 0.25f);
+            }
+        }
+
+        ByteArrayOutputStream serialStream = new ByteArrayOutputStream();
+        FloatMatrixIO.writeAsCSV(matrix, serialStream);
+
+        String filename = this.tmpFolder.newFile("matrix.csv").getAbsolutePath();
+        FloatMatrixIO.writeAsCSV(matrix, filename, 3);
+        Assert.assertArrayEquals(serialStream.toByteArray(), Files.readAllBytes(Paths.get(filename)));
+
+        String gzFilename = this.tmpFolder.newFile("matrix.csv.gz").getAbsolutePath();
+        FloatMatrixIO.writeAsCSV(matrix, gzFilename, 3);
+        FloatMatrix<String> matrix2 = new FloatMatrix<>(zoneIds, Float.NaN);
+        try (InputStream inStream = new GZIPInputStream(new FileInputStream(gzFilename))) {
+            FloatMatrixIO.readAsCSV(matrix2, inStream, id -> id);
+        }
+        for (String fromZoneId : zoneIds) {
+            for (String toZoneId : zoneIds) {
+                Assert.assertEquals(matrix.get(fromZoneId, toZoneId), matrix2.get(fromZoneId, toZoneId), 0.0f);
+            }
+        }
+
+        try {
+            FloatMatrixIO.writeAsCSV(matrix, filename, 0);
+            Assert.fail("Expected exception due to invalid number of threads.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testOrderedBlockWriter_errorInWorker() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            OrderedBlockWriter.write(out, 20, false, 3, (block, blockOut) -> {
+                if (block == 5) {
+                    throw new AssertionError("simulated error in block " + block);
+                }
+                blockOut.write(block);
+            });
+            Assert.fail("Expected exception due to the error in a worker.");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getCause() instanceof AssertionError);
+        }
+    }
+
+    @Test
+    public void testParallelCSVReader() throws IOException {
+        // use enough zones so the file is split into multiple chunks
+        Set<String> zoneIds = new LinkedHashSet<>();
+        for (int i = 0; i < 600; i++) {
+            zoneIds.add("z" + i);
+        }
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+        Random r = new Random(20190522);
+        float[] specialValues = { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE, -0.0f, 1e-10f, 123456789f };
+        for (int fromIndex = 0; fromIndex < matrix.getZoneCount(); fromIndex++) {
+            for (int toIndex = 0; toIndex < matrix.getZoneCount(); toIndex++) {
+                float value;
+                switch (r.nextInt(4)) {
+                    case 0: value = r.nextInt(10000) / 100.0f; break;
+                    case 1: value = r.nextFloat() * 100000; break;
+                    case 2: value = Float.intBitsToFloat(r.nextInt()); break;
+                    default: value = specialValues[r.nextInt(specialValues.length)];
+                }
+                matrix.setByIndex(fromIndex, toIndex, value);
+            }
+        }
+
+        String filename = this.tmpFolder.newFile("matrix.csv").getAbsolutePath();
+        String gzFilename = this.tmpFolder.newFile("matrix.csv.gz").getAbsolutePath();
+        FloatMatrixIO.writeAsCSV(matrix, filename, 2);
+        FloatMatrixIO.writeAsCSV(matrix, gzFilename, 2);
+
+        for (String file : new String[] { filename, gzFilename }) {
+            FloatMatrix<String> matrix2 = new FloatMatrix<>(zoneIds, -1.0f);
+            FloatMatrixIO.readAsCSV(matrix2, file, id -> id, 3);
+            for (int fromIndex = 0; fromIndex < matrix.getZoneCount(); fromIndex++) {
+                for (int toIndex = 0; toIndex < matrix.getZoneCount(); toIndex++) {
+                    Assert.assertEquals(Float.floatToIntBits(matrix.getByIndex(fromIndex, toIndex)), Float.floatToIntBits(matrix2.getByIndex(fromIndex, toIndex)));
+                }
+            }
+        }
+
+        // Windows line breaks and additional columns
+        String csv = "FROM;TO;VALUE\r\nA;B;1.5\r\nB;A;2.0;comment\r\nB;B;3\r\n";
+        FloatMatrix<String> matrix3 = new FloatMatrix<>(new HashSet<>(Arrays.asList("A", "B")), 0.0f);
+        FloatMatrixIO.readAsCSV(matrix3, new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), id -> id, 2);
+        Assert.assertEquals(0.0f, matrix3.get("A", "A"), 0.0f);
+        Assert.assertEquals(1.5f, matrix3.get("A", "B"), 0.0f);
+        Assert.assertEquals(2.0f, matrix3.get("B", "A"), 0.0f);
+        Assert.assertEquals(3.0f, matrix3.get("B", "B"), 0.0f);
+
+        try {
+            String unknownZone = "FROM;TO;VALUE\nA;C;1.5\n";
+            FloatMatrixIO.readAsCSV(matrix3, new ByteArrayInputStream(unknownZone.getBytes(StandardCharsets.UTF_8)), id -> id, 2);
+            Assert.fail("Expected exception due to unknown zone.");
+        } catch (IOException expected) {
+        }
+
+        try {
+            FloatMatrixIO.readAsCSV(matrix3, new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), id -> id, 0);
+            Assert.fail("Expected exception due to invalid number of threads.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParseFloat() {
+        Random r = new Random(20190523);
+        for (int i = 0; i < 1000000; i++) {
+            float value = (i % 2 == 0) ? Float.intBitsToFloat(r.nextInt()) : r.nextInt(1000000) / 1000.0f;
+            String formatted = Float.toString(value);
+            byte[] bytes = formatted.getBytes(StandardCharsets.US_ASCII);
+            float parsed = FloatMatrixCSVReader.parseFloat(bytes, 0, bytes.length);
+            Assert.assertEquals(formatted, Float.floatToIntBits(Float.parseFloat(formatted)), Float.floatToIntBits(parsed));
+        }
+        for (String formatted : new String[] { "0", "-0.0", "1", "+2.5", "3.", ".5", "1e3", "1.25E-5", "123456789", "1234567890", "0.000000001", "-7.0E-45" }) {
+            byte[] bytes = formatted.getBytes(StandardCharsets.US_ASCII);
+            Assert.assertEquals(formatted, Float.floatToIntBits(Float.parseFloat(formatted)), Float.floatToIntBits(FloatMatrixCSVReader.parseFloat(bytes, 0, bytes.length)));
+        }
+    }
+
+    @Test
+    public void testSparseIO() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>();
+        for (int i = 0; i < 100; i++) {
+            zoneIds.add("z" + i);
+        }
+        SparseFloatMatrix.Builder<String> builder = new SparseFloatMatrix.Builder<>(zoneIds, Float.NaN);
+        for (int from = 0; from < 100; from++) {
+            for (int to = Math.max(0, from - 2); to <= Math.min(99, from + 2); to++) {
+                builder.setByIndex(from, to, from * 100 + to);
+            }
+        }
+        SparseFloatMatrix<String> matrix = builder.build();
+
+        String filename = this.tmpFolder.newFile("matrix.fspm").getAbsolutePath();
+        FloatMatrixIO.writeAsBinary(matrix, filename);
+        SparseFloatMatrix<String> matrix2 = FloatMatrixIO.readAsSparseBinary(filename, id -> id);
+        assertSameValues(matrix, matrix2);
+        Assert.assertEquals(matrix.getStoredCellCount(), matrix2.getStoredCellCount());
+
+        // via CSV, which contains all cells
+        String csvFilename = this.tmpFolder.newFile("matrix.csv").getAbsolutePath();
+        FloatMatrixIO.writeAsCSV(matrix, csvFilename);
+        SparseFloatMatrix<String> matrix3 = FloatMatrixIO.readAsSparseCSV(zoneIds, Float.NaN, csvFilename, id -> id);
+        assertSameValues(matrix, matrix3);
+        Assert.assertEquals(matrix.getStoredCellCount(), matrix3.getStoredCellCount());
+
+        // the dense reader can read the sparse format's CSV too
+        FloatMatrix<String> dense = new FloatMatrix<>(zoneIds, 0.0f);
+        FloatMatrixIO.readAsCSV(dense, csvFilename, id -> id);
+        assertSameValues(matrix, dense);
+
+        try {
+            FloatMatrixIO.readAsBinary(filename, id -> id);
+            Assert.fail("Expected exception due to wrong magic number.");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testEncodedBinaryIO() throws IOException {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, Float.POSITIVE_INFINITY);
+        matrix.set("a", "b", 600.4f);
+        matrix.set("b", "a", 0.0f);
+        matrix.set("c", "a", Float.NaN);
+
+        ValueEncoding seconds = ValueEncoding.scaledUInt16(0.0f, 1.0f);
+        String filename = this.tmpFolder.newFile("matrix.fmtx").getAbsolutePath();
+        FloatMatrixIO.writeAsBinary(matrix, filename, seconds);
+        Assert.assertEquals(48 + 9 * Short.BYTES + Integer.BYTES, Files.size(Paths.get(filename))); // header and zone table padded to 48 bytes
+
+        FloatMatrix<String> matrix2 = FloatMatrixIO.readAsBinary(filename, id -> id);
+        Assert.assertEquals(ValueEncoding.Type.SCALED_UINT16, matrix2.getEncoding().getType());
+        Assert.assertEquals(1.0f, matrix2.getEncoding().getScale(), 0.0f);
+        Assert.assertEquals(600.0f, matrix2.get("a", "b"), 0.0f);
+        Assert.assertEquals(0.0f, matrix2.get("b", "a"), 0.0f);
+        Assert.assertTrue(Float.isNaN(matrix2.get("c", "a")));
+        Assert.assertEquals(Float.POSITIVE_INFINITY, matrix2.get("c", "c"), 0.0f);
+
+        // the encoded matrix is written with its own encoding, copying the codes
+        String filename2 = this.tmpFolder.newFile("matrix2.fmtx").getAbsolutePath();
+        FloatMatrixIO.writeAsBinary(matrix2, filename2);
+        Assert.assertArrayEquals(Files.readAllBytes(Paths.get(filename)), Files.readAllBytes(Paths.get(filename2)));
+
+        FloatMatrix<String> mapped = FloatMatrixIO.openAsBinary(filename, id -> id);
+        Assert.assertEquals(600.0f, mapped.get("a", "b"), 0.0f);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, mapped.get("a", "a"), 0.0f);
+
+        // read into an existing float matrix with a different zone order
+        FloatMatrix<String> matrix3 = new FloatMatrix<>(new LinkedHashSet<>(Arrays.asList("c", "b", "a")), -1.0f);
+        FloatMatrixIO.readAsBinary(matrix3, filename, id -> id);
+        Assert.assertEquals(ValueEncoding.Type.FLOAT32, matrix3.getEncoding().getType());
+        Assert.assertEquals(600.0f, matrix3.get("a", "b"), 0.0f);
+    }
+
+    @Test
+    public void testBinaryIO_version1() throws IOException {
+        // header without the encoding fields, followed by 1 float and the checksum
+        ByteBuffer buffer = ByteBuffer.allocate(16 + 8 + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x58544d46).putInt(1).putInt(1).putInt(5);
+        buffer.putInt(1).put((byte) 'z').put(new byte[3]);
+        buffer.putFloat(42.5f);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        String filename = this.tmpFolder.newFile("matrix_v1.fmtx").getAbsolutePath();
+        Files.write(Paths.get(filename), buffer.array());
+
+        FloatMatrix<String> matrix = FloatMatrixIO.readAsBinary(filename, id -> id);
+        Assert.assertEquals(ValueEncoding.Type.FLOAT32, matrix.getEncoding().getType());
+        Assert.assertEquals(42.5f, matrix.get("z", "z"), 0.0f);
+    }
+
+    private static void assertSameValues(ZoneMatrix<String> expected, ZoneMatrix<String> actual) {
+        Assert.assertEquals(expected.getZoneCount(), actual.getZoneCount());
+        for (int from = 0; from < expected.getZoneCount(); from++) {
+            for (int to = 0; to < expected.getZoneCount(); to++) {
+                String fromZoneId = expected.getZone(from);
+                String toZoneId = expected.getZone(to);
+                Assert.assertEquals(fromZoneId + "-" + toZoneId, expected.getByIndex(from, to), actual.get(fromZoneId, toZoneId), 0.0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author mrieser / SBB
+ */
+public class FloatMatrixTest {
+
+    @Test
+    public void testStorageTypes() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        for (FloatMatrix.StorageType storageType : FloatMatrix.StorageType.values()) {
+            FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 1.5f, storageType);
+            Assert.assertEquals(storageType.name(), 1.5f, matrix.get("c", "a"), 0.0f);
+            Assert.assertEquals(1.5f, matrix.set("a", "b", 2.0f), 0.0f);
+            Assert.assertEquals(5.0f, matrix.add("a", "b", 3.0f), 0.0f);
+            Assert.assertEquals(10.0f, matrix.multiply("a", "b", 2.0f), 0.0f);
+            matrix.multiply(0.5f);
+            Assert.assertEquals(5.0f, matrix.get("a", "b"), 0.0f);
+            Assert.assertEquals(0.75f, matrix.get("b", "a"), 0.0f);
+        }
+    }
+
+    @Test
+    public void testIndexAccess() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, 0.0f);
+        Assert.assertEquals(3, matrix.getZoneCount());
+        Assert.assertEquals(-1, matrix.getIndex("x"));
+        int a = matrix.getIndex("a");
+        int c = matrix.getIndex("c");
+        Assert.assertEquals("c", matrix.getZone(c));
+
+        matrix.setByIndex(a, c, 2.0f);
+        Assert.assertEquals(2.0f, matrix.get("a", "c"), 0.0f);
+        Assert.assertEquals(3.0f, matrix.addByIndex(a, c, 1.0f), 0.0f);
+        Assert.assertEquals(6.0f, matrix.multiplyByIndex(a, c, 2.0f), 0.0f);
+        Assert.assertEquals(6.0f, matrix.getByIndex(a, c), 0.0f);
+
+        FloatMatrix.Row row = matrix.getRow(c);
+        Assert.assertEquals(3, row.size());
+        row.set(a, 4.0f);
+        Assert.assertEquals(5.0f, row.add(a, 1.0f), 0.0f);
+        Assert.assertEquals(5.0f, matrix.get("c", "a"), 0.0f);
+        Assert.assertEquals(0.0f, matrix.get("a", "a"), 0.0f);
+        row.fill(7.0f);
+        Assert.assertEquals(7.0f, matrix.get("c", "b"), 0.0f);
+        Assert.assertEquals(6.0f, matrix.get("a", "c"), 0.0f);
+    }
+
+    @Test
+    public void testSegmentedStorage() {
+        // use tiny segments so the values span several of them
+        FloatStorage storage = FloatStorage.Segmented.allocateDirect(1000, 4);
+        Assert.assertEquals(1000, storage.size());
+        for (int i = 0; i < 1000; i++) {
+            storage.set(i, i);
+        }
+        Assert.assertEquals(15.0f, storage.get(15), 0.0f);
+        Assert.assertEquals(16.0f, storage.get(16), 0.0f);
+        Assert.assertEquals(999.0f, storage.get(999), 0.0f);
+
+        float[] values = new float[40];
+        storage.get(10, values, 0, 40);
+        for (int i = 0; i < 40; i++) {
+            Assert.assertEquals(10 + i, values[i], 0.0f);
+        }
+        Arrays.fill(values, -1.0f);
+        storage.set(30, values, 5, 20);
+        Assert.assertEquals(29.0f, storage.get(29), 0.0f);
+        Assert.assertEquals(-1.0f, storage.get(30), 0.0f);
+        Assert.assertEquals(-1.0f, storage.get(49), 0.0f);
+        Assert.assertEquals(50.0f, storage.get(50), 0.0f);
+
+        storage.multiply(2.0f);
+        Assert.assertEquals(1998.0f, storage.get(999), 0.0f);
+        storage.fill(3.0f);
+        Assert.assertEquals(3.0f, storage.get(0), 0.0f);
+        Assert.assertEquals(3.0f, storage.get(999), 0.0f);
+    }
+}
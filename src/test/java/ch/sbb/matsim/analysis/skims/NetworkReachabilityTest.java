@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author mrieser / SBB
+ */
+public class NetworkReachabilityTest {
+
+    @Test
+    public void testCalculateReachability() {
+        // a line of 6 nodes, 1000m apart, 100 seconds of travel time between neighbouring nodes.
+        // zones 0-4 are located at nodes 0-4, zone 5 consists of points at nodes 0 and 5.
+        int nodeCount = 6;
+        Network network = NetworkUtils.createNetwork();
+        Network xy2lNetwork = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node[] nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = nf.createNode(Id.create(i, Node.class), new Coord(i * 1000, 0));
+            network.addNode(nodes[i]);
+
+            // the xy2l network only contains links leading to the routing network's nodes
+            Node xy2lFromNode = nf.createNode(Id.create("xy2l_" + i, Node.class), new Coord(i * 1000, 500));
+            Node xy2lToNode = nf.createNode(Id.create(i, Node.class), new Coord(i * 1000, 0));
+            xy2lNetwork.addNode(xy2lFromNode);
+            xy2lNetwork.addNode(xy2lToNode);
+            xy2lNetwork.addLink(createLink(nf, "xy2l_" + i, xy2lFromNode, xy2lToNode));
+        }
+        for (int i = 1; i < nodeCount; i++) {
+            network.addLink(createLink(nf, (i - 1) + "_" + i, nodes[i - 1], nodes[i]));
+            network.addLink(createLink(nf, i + "_" + (i - 1), nodes[i], nodes[i - 1]));
+        }
+
+        Map<String, Coord[]> coordsPerZone = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            coordsPerZone.put("z" + i, new Coord[] { new Coord(i * 1000, 0) });
+        }
+        coordsPerZone.put("z5", new Coord[] { new Coord(0, 0), new Coord(5000, 0) });
+
+        TravelTime tt = new FreeSpeedTravelTime();
+        double[] thresholds = { 150, 250 };
+        NetworkReachability.Reachability<String> reachability = NetworkReachability.calculateReachability(
+                xy2lNetwork, network, coordsPerZone, thresholds, 7*3600, tt, new OnlyTimeDependentTravelDisutility(tt), 2);
+
+        Assert.assertEquals(6, reachability.getZones().size());
+
+        // from z2: z1, z2, z3 within 150 seconds, additionally z0, z4 and z5 (through its point at node 0) within 250 seconds
+        assertReachable(reachability, "z2", 0, "z1", "z2", "z3");
+        assertReachable(reachability, "z2", 1, "z0", "z1", "z2", "z3", "z4", "z5");
+
+        // from z0: only z0, z5 (sharing the same node) and z1 within 150 seconds, additionally z2 within 250 seconds
+        assertReachable(reachability, "z0", 0, "z0", "z1", "z5");
+        assertReachable(reachability, "z0", 1, "z0", "z1", "z2", "z5");
+
+        // z5 starts at both of its points
+        assertReachable(reachability, "z5", 0, "z0", "z1", "z4", "z5");
+        assertReachable(reachability, "z5", 1, "z0", "z1", "z2", "z3", "z4", "z5");
+        Assert.assertTrue(reachability.isReachable("z4", "z5", 0));
+        Assert.assertEquals(4, reachability.getReachableZoneCount("z4", 1));
+    }
+
+    private static void assertReachable(NetworkReachability.Reachability<String> reachability, String fromZone, int thresholdIndex, String... expectedZones) {
+        BitSet reachableZones = reachability.getReachableZones(fromZone, thresholdIndex);
+        Assert.assertEquals(expectedZones.length, reachableZones.cardinality());
+        for (String toZone : expectedZones) {
+            Assert.assertTrue(fromZone + " -> " + toZone, reachableZones.get(reachability.getZoneIndex(toZone)));
+        }
+    }
+
+    private static Link createLink(NetworkFactory nf, String id, Node fromNode, Node toNode) {
+        Link link = nf.createLink(Id.create(id, Link.class), fromNode, toNode);
+        link.setLength(1000);
+        link.setFreespeed(10);
+        link.setCapacity(2000);
+        link.setNumberOfLanes(1);
+        return link;
+    }
+}
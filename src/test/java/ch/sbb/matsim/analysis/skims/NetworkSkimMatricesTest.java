@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+import org.opengis.feature.simple.SimpleFeature;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author mrieser / SBB
+ */
+public class NetworkSkimMatricesTest {
+
+    @Test
+    public void testContractionHierarchy_sameAsDijkstra() {
+        int width = 12;
+        int height = 10;
+        Random r = new Random(20190815);
+
+        // a grid network with randomized link lengths and freespeeds, so there are no paths with the same cost
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node[][] nodes = new Node[width][height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                nodes[x][y] = nf.createNode(Id.create(x + "_" + y, Node.class), new Coord(x * 1000, y * 1000));
+                network.addNode(nodes[x][y]);
+            }
+        }
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                if (x > 0) {
+                    network.addLink(createLink(nf, nodes[x - 1][y], nodes[x][y], r));
+                    network.addLink(createLink(nf, nodes[x][y], nodes[x - 1][y], r));
+                }
+                if (y > 0) {
+                    network.addLink(createLink(nf, nodes[x][y - 1], nodes[x][y], r));
+                    network.addLink(createLink(nf, nodes[x][y], nodes[x][y - 1], r));
+                }
+            }
+        }
+
+        // 15 zones with 3 points each
+        Map<String, SimpleFeature> zones = new HashMap<>();
+        Map<String, Coord[]> coordsPerZone = new HashMap<>();
+        for (int i = 0; i < 15; i++) {
+            Coord[] coords = new Coord[3];
+            for (int p = 0; p < coords.length; p++) {
+                coords[p] = nodes[r.nextInt(width)][r.nextInt(height)].getCoord();
+            }
+            zones.put("z" + i, null);
+            coordsPerZone.put("z" + i, coords);
+        }
+
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        double time = 8 * 3600;
+
+        NetworkSkimMatrices.NetworkIndicators<String> dijkstra = NetworkSkimMatrices.calculateSkimMatrices(network, network, zones, coordsPerZone, time, tt, td, 2,
+                NetworkSkimMatrices.PointAggregation.AVERAGE, NetworkSkimMatrices.RoutingAlgorithm.DIJKSTRA);
+        NetworkSkimMatrices.NetworkIndicators<String> ch = NetworkSkimMatrices.calculateSkimMatrices(network, network, zones, coordsPerZone, time, tt, td, 2,
+                NetworkSkimMatrices.PointAggregation.AVERAGE, NetworkSkimMatrices.RoutingAlgorithm.CONTRACTION_HIERARCHY);
+
+        for (String fromZoneId : zones.keySet()) {
+            for (String toZoneId : zones.keySet()) {
+                float expectedTravelTime = dijkstra.travelTimeMatrix.get(fromZoneId, toZoneId);
+                Assert.assertTrue(expectedTravelTime > 0 || fromZoneId.equals(toZoneId));
+                Assert.assertEquals(fromZoneId + " > " + toZoneId, expectedTravelTime, ch.travelTimeMatrix.get(fromZoneId, toZoneId), 1e-1);
+                Assert.assertEquals(fromZoneId + " > " + toZoneId, dijkstra.distanceMatrix.get(fromZoneId, toZoneId), ch.distanceMatrix.get(fromZoneId, toZoneId), 1e-1);
+            }
+        }
+    }
+
+    private static Link createLink(NetworkFactory nf, Node fromNode, Node toNode, Random r) {
+        Link link = nf.createLink(Id.create(fromNode.getId() + "-" + toNode.getId(), Link.class), fromNode, toNode);
+        link.setLength(1000 + r.nextInt(500));
+        link.setFreespeed((30 + r.nextInt(90)) / 3.6);
+        link.setCapacity(2000);
+        link.setNumberOfLanes(1);
+        link.setAllowedModes(Collections.singleton("car"));
+        return link;
+    }
+}
@@ -164,4 +164,89 @@ public class RooftopUtilsTest {
         Assert.assertEquals(20.0/60.0, shares.get(c7), 1e-7);
         Assert.assertEquals(2.0/60.0, shares.get(c5), 1e-7);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConnectionBuffer() {
+        RooftopUtils.ConnectionBuffer<String> connections = new RooftopUtils.ConnectionBuffer<>(2);
+
+        // some garbage from a previous OD-relation, to make sure the buffer can be re-used
+        connections.add(Time.parseTime("10:00:00"), 100, 10, 10, 0, "garbage");
+        connections.clear();
+        Assert.assertTrue(connections.isEmpty());
+
+        // the same connections as in testCalcConnectionShares, in random order and more than the initial capacity
+        connections.add(Time.parseTime("08:35:00"), 600, 60, 150, 0, "c3");
+        connections.add(Time.parseTime("08:22:00"), 300, 60, 150, 0, "c6");
+        connections.add(Time.parseTime("07:50:00"), 600, 60, 150, 0, "c0");
+        connections.add(Time.parseTime("09:05:00"), 600, 60, 150, 0, "c5");
+        connections.add(Time.parseTime("08:20:00"), 600, 60, 150, 0, "c2");
+        connections.add(Time.parseTime("08:05:00"), 600, 60, 150, 0, "c1");
+        connections.add(Time.parseTime("08:48:00"), 300, 60, 150, 0, "c7", 7);
+        connections.add(Time.parseTime("08:50:00"), 600, 60, 150, 0, "c4", 4);
+
+        RooftopUtils.sortAndFilterConnections(connections, 9*3600);
+        Assert.assertEquals(6, connections.size());
+        String[] expected = {"c0", "c1", "c6", "c3", "c7", "c5"};
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], connections.getHandle(i));
+        }
+        Assert.assertEquals(Time.parseTime("08:22:00"), connections.getDepartureTime(2), 0.0);
+        Assert.assertEquals(300, connections.getTravelTime(2), 0.0);
+        Assert.assertEquals(510, connections.totalTravelTime(2), 0.0);
+        Assert.assertEquals(-1, connections.getHandleIndex(2));
+        Assert.assertEquals(7, connections.getHandleIndex(4));
+
+        RooftopUtils.calcConnectionShares(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
+        Assert.assertEquals(0.0/60.0, connections.getShare(0), 1e-7);
+        Assert.assertEquals(10.0/60.0, connections.getShare(1), 1e-7);
+        Assert.assertEquals(20.0/60.0, connections.getShare(2), 1e-7);
+        Assert.assertEquals(8.0/60.0, connections.getShare(3), 1e-7);
+        Assert.assertEquals(20.0/60.0, connections.getShare(4), 1e-7);
+        Assert.assertEquals(2.0/60.0, connections.getShare(5), 1e-7);
+
+        // a connection departing before the time window and followed by another one before the window has no share
+        connections.clear();
+        connections.add(Time.parseTime("07:30:00"), 600, 60, 150, 0, "early");
+        connections.add(Time.parseTime("07:45:00"), 600, 60, 150, 0, "c0");
+        connections.add(Time.parseTime("08:15:00"), 600, 60, 150, 0, "c1");
+        RooftopUtils.calcConnectionShares(connections, Time.parseTime("08:00:00"), Time.parseTime("09:00:00"));
+        Assert.assertTrue(Double.isNaN(connections.getShare(0)));
+        Assert.assertFalse(Double.isNaN(connections.getShare(1)));
+    }
+
+    @Test
+    public void testConnectionBuffer_sortManyConnections() {
+        RooftopUtils.ConnectionBuffer<String> connections = new RooftopUtils.ConnectionBuffer<>(4);
+        // several ascending runs (like one per departure stop) interleaved, with duplicate start times
+        int runs = 7;
+        int perRun = 23;
+        for (int run = 0; run < runs; run++) {
+            for (int k = 0; k < perRun; k++) {
+                double startTime = 7 * 3600 + k * 300 + (run % 3) * 60;
+                connections.add(startTime + 120 + run, 600, 120 + run, 150, run, run + "_" + k, run * perRun + k);
+            }
+        }
+        connections.sortByDepartureTime();
+
+        Assert.assertEquals(runs * perRun, connections.size());
+        boolean[] seen = new boolean[runs * perRun];
+        for (int i = 0; i < connections.size(); i++) {
+            int index = connections.getHandleIndex(i);
+            int run = index / perRun;
+            Assert.assertFalse(seen[index]);
+            seen[index] = true;
+            Assert.assertEquals(run + "_" + (index % perRun), connections.getHandle(i));
+            Assert.assertEquals(120 + run, connections.getAccessTime(i), 0.0);
+            Assert.assertEquals(run, connections.getTransferCount(i), 0.0);
+            if (i > 0) {
+                double prevStartTime = connections.getStartTime(i - 1);
+                double startTime = connections.getStartTime(i);
+                Assert.assertTrue(prevStartTime <= startTime);
+                if (prevStartTime == startTime) {
+                    // stable: connections with the same start time keep their insertion order
+                    Assert.assertTrue(connections.getHandleIndex(i - 1) < index);
+                }
+            }
+        }
+    }
+}
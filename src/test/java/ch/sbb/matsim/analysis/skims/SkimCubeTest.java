@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author mrieser / SBB
+ */
+public class SkimCubeTest {
+
+    @Test
+    public void testLayers() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        for (SkimCube.Layout layout : SkimCube.Layout.values()) {
+            SkimCube<String> cube = new SkimCube<>(zoneIds, 3, layout);
+            Assert.assertEquals(3, cube.getLayerCount());
+            FloatMatrix<String> values1 = cube.getLayer(0);
+            FloatMatrix<String> values2 = cube.getLayer(1);
+            FloatMatrix<String> counts = cube.getLayer(2);
+
+            for (String fromZoneId : zoneIds) {
+                for (String toZoneId : zoneIds) {
+                    values1.set(fromZoneId, toZoneId, 6.0f);
+                    values2.set(fromZoneId, toZoneId, 12.0f);
+                }
+            }
+            counts.set("a", "b", 2.0f);
+            counts.set("c", "a", 3.0f);
+
+            cube.divideByLayer(2, 0, 1);
+            cube.fillWhereZero(2, Float.POSITIVE_INFINITY, 1);
+
+            String message = layout.name();
+            Assert.assertEquals(message, 3.0f, values1.get("a", "b"), 0.0f);
+            Assert.assertEquals(message, 6.0f, values2.get("a", "b"), 0.0f);
+            Assert.assertEquals(message, 2.0f, values1.get("c", "a"), 0.0f);
+            Assert.assertEquals(message, 4.0f, values2.get("c", "a"), 0.0f);
+            Assert.assertEquals(message, 6.0f, values1.get("b", "b"), 0.0f);
+            Assert.assertEquals(message, Float.POSITIVE_INFINITY, values2.get("b", "b"), 0.0f);
+            Assert.assertEquals(message, 2.0f, counts.get("a", "b"), 0.0f);
+
+            cube.multiply(0, 0.5f);
+            Assert.assertEquals(message, 1.5f, values1.get("a", "b"), 0.0f);
+            Assert.assertEquals(message, 6.0f, values2.get("a", "b"), 0.0f);
+
+            // the layers share the zone index
+            Assert.assertEquals(values1.getIndex("c"), counts.getIndex("c"));
+            FloatMatrix.Row row = values2.getRow(values2.getIndex("c"));
+            float[] rowValues = new float[3];
+            row.copyTo(rowValues);
+            Assert.assertEquals(message, 4.0f, rowValues[values2.getIndex("a")], 0.0f);
+        }
+    }
+
+    @Test
+    public void testLayerRows() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c", "d"));
+        for (SkimCube.Layout layout : SkimCube.Layout.values()) {
+            for (FloatMatrix.StorageType storageType : FloatMatrix.StorageType.values()) {
+                String message = layout.name() + " " + storageType.name();
+                SkimCube<String> cube = new SkimCube<>(zoneIds, 3, layout, storageType);
+                for (int layer = 0; layer < 3; layer++) {
+                    FloatMatrix<String> matrix = cube.getLayer(layer);
+                    for (int fromIndex = 0; fromIndex < 4; fromIndex++) {
+                        FloatMatrix.Row row = matrix.getRow(fromIndex);
+                        for (int toIndex = 0; toIndex < 4; toIndex++) {
+                            row.set(toIndex, layer * 100 + fromIndex * 10 + toIndex);
+                            Assert.assertEquals(message, layer * 100 + fromIndex * 10 + toIndex + 0.5f, row.add(toIndex, 0.5f), 0.0f);
+                        }
+                    }
+                }
+                // the rows write to the correct cells of the cube
+                for (int layer = 0; layer < 3; layer++) {
+                    FloatMatrix<String> matrix = cube.getLayer(layer);
+                    for (int fromIndex = 0; fromIndex < 4; fromIndex++) {
+                        for (int toIndex = 0; toIndex < 4; toIndex++) {
+                            Assert.assertEquals(message, layer * 100 + fromIndex * 10 + toIndex + 0.5f, matrix.getByIndex(fromIndex, toIndex), 0.0f);
+                        }
+                    }
+                }
+                FloatMatrix.Row row = cube.getLayer(1).getRow(2);
+                row.fill(-1.0f);
+                Assert.assertEquals(message, -1.0f, cube.getLayer(1).getByIndex(2, 3), 0.0f);
+                Assert.assertEquals(message, 23.5f, cube.getLayer(0).getByIndex(2, 3), 0.0f);
+                Assert.assertEquals(message, 223.5f, cube.getLayer(2).getByIndex(2, 3), 0.0f);
+                Assert.assertEquals(message, 133.5f, cube.getLayer(1).getByIndex(3, 3), 0.0f);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author mrieser / SBB
+ */
+public class SparseFloatMatrixTest {
+
+    @Test
+    public void testBuilder() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c", "d"));
+        SparseFloatMatrix.Builder<String> builder = new SparseFloatMatrix.Builder<>(zoneIds, Float.POSITIVE_INFINITY);
+        builder.set("a", "a", 0.0f);
+        builder.set("a", "d", 4.0f);
+        builder.set("a", "b", 2.0f); // not in column order
+        builder.set("c", "b", 5.0f);
+        builder.set("c", "b", 6.0f); // replaces the previous value
+        builder.setByIndex(builder.getIndex("d"), builder.getIndex("c"), 7.0f);
+        SparseFloatMatrix<String> matrix = builder.build();
+
+        Assert.assertEquals(4, matrix.getZoneCount());
+        Assert.assertEquals(5, matrix.getStoredCellCount());
+        Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.getDefaultValue(), 0.0f);
+        Assert.assertEquals(0.0f, matrix.get("a", "a"), 0.0f);
+        Assert.assertEquals(2.0f, matrix.get("a", "b"), 0.0f);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.get("a", "c"), 0.0f);
+        Assert.assertEquals(4.0f, matrix.get("a", "d"), 0.0f);
+        Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.get("b", "b"), 0.0f);
+        Assert.assertEquals(6.0f, matrix.get("c", "b"), 0.0f);
+        Assert.assertEquals(7.0f, matrix.getByIndex(matrix.getIndex("d"), matrix.getIndex("c")), 0.0f);
+        Assert.assertEquals(-1, matrix.getIndex("x"));
+        Assert.assertEquals("c", matrix.getZone(2));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.analysis.skims;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * @author mrieser / SBB
+ */
+public class ValueEncodingTest {
+
+    @Test
+    public void testFloat16() {
+        Assert.assertEquals(0x3c00, ValueEncoding.floatToHalf(1.0f));
+        Assert.assertEquals((short) 0xc000, ValueEncoding.floatToHalf(-2.0f));
+        Assert.assertEquals(0x7bff, ValueEncoding.floatToHalf(65504f));
+        Assert.assertEquals(0x7c00, ValueEncoding.floatToHalf(65520f)); // rounds up to infinity
+        Assert.assertEquals(0x7c00, ValueEncoding.floatToHalf(Float.POSITIVE_INFINITY));
+        Assert.assertEquals(0x2e66, ValueEncoding.floatToHalf(0.1f));
+        Assert.assertEquals(0x0001, ValueEncoding.floatToHalf(0x1p-24f)); // smallest subnormal
+        Assert.assertEquals(0x0000, ValueEncoding.floatToHalf(0x1p-26f));
+        Assert.assertEquals(0x3c00, ValueEncoding.floatToHalf(1.0f + 0x1p-11f)); // tie, rounds to even
+        Assert.assertEquals(0x3c02, ValueEncoding.floatToHalf(1.0f + 0x3p-11f)); // tie, rounds to even
+        Assert.assertTrue(Float.isNaN(ValueEncoding.halfToFloat(ValueEncoding.floatToHalf(Float.NaN))));
+
+        // every half value except NaN survives a round trip
+        for (int half = 0; half < (1 << 16); half++) {
+            float value = ValueEncoding.halfToFloat(half);
+            if (!Float.isNaN(value)) {
+                Assert.assertEquals(Integer.toHexString(half), (short) half, ValueEncoding.floatToHalf(value));
+                Assert.assertEquals(value, ValueEncoding.FLOAT16.decode((short) half), 0.0f);
+            }
+        }
+    }
+
+    @Test
+    public void testScaledUInt16() {
+        ValueEncoding encoding = ValueEncoding.scaledUInt16(0.0f, 2.0f);
+        Assert.assertEquals(10.0f, encoding.decode(encoding.encode(10.0f)), 0.0f);
+        Assert.assertEquals(12.0f, encoding.decode(encoding.encode(11.2f)), 0.0f);
+        Assert.assertEquals(0.0f, encoding.decode(encoding.encode(-5.0f)), 0.0f); // clamped
+        Assert.assertEquals(2.0f * 0xfffd, encoding.decode(encoding.encode(1e9f)), 0.0f); // clamped
+        Assert.assertEquals(Float.POSITIVE_INFINITY, encoding.decode(encoding.encode(Float.POSITIVE_INFINITY)), 0.0f);
+        Assert.assertTrue(Float.isNaN(encoding.decode(encoding.encode(Float.NaN))));
+
+        ValueEncoding shares = ValueEncoding.scaledUInt16ForRange(0.0f, 1.0f);
+        for (int i = 0; i <= 1000; i++) {
+            float share = i / 1000.0f;
+            Assert.assertEquals(share, shares.decode(shares.encode(share)), shares.getScale() / 2);
+        }
+    }
+
+    @Test
+    public void testEncodedMatrix() {
+        Set<String> zoneIds = new LinkedHashSet<>(Arrays.asList("a", "b", "c"));
+        for (FloatMatrix.StorageType storageType : FloatMatrix.StorageType.values()) {
+            FloatMatrix<String> matrix = new FloatMatrix<>(zoneIds, Float.POSITIVE_INFINITY, storageType, ValueEncoding.scaledUInt16(0.0f, 1.0f));
+            Assert.assertEquals(ValueEncoding.Type.SCALED_UINT16, matrix.getEncoding().getType());
+            Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.get("a", "b"), 0.0f);
+            matrix.set("a", "b", 600.4f);
+            Assert.assertEquals(600.0f, matrix.get("a", "b"), 0.0f);
+            matrix.add("a", "b", 60.0f);
+            Assert.assertEquals(660.0f, matrix.get("a", "b"), 0.0f);
+            matrix.multiply(0.5f);
+            Assert.assertEquals(330.0f, matrix.get("a", "b"), 0.0f);
+            Assert.assertEquals(Float.POSITIVE_INFINITY, matrix.get("c", "c"), 0.0f);
+
+            FloatMatrix<String> halfMatrix = new FloatMatrix<>(zoneIds, 0.0f, storageType, ValueEncoding.FLOAT16);
+            halfMatrix.set("c", "a", 0.25f);
+            Assert.assertEquals(0.25f, halfMatrix.get("c", "a"), 0.0f);
+            Assert.assertEquals(0.0f, halfMatrix.get("a", "c"), 0.0f);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ch.sbb.matsim.routing.graph;
+
+import ch.sbb.matsim.routing.graph.LeastCostPathTreeTest.GridFixture;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+/**
+ * @author mrieser / SBB
+ */
+public class ContractionHierarchyTest {
+
+    @Test
+    public void testManyToMany_sameAsLeastCostPathTree() {
+        GridFixture f = new GridFixture(25, 20, 42);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+
+        ContractionHierarchy ch = ContractionHierarchy.create(graph, tt, td, 8*3600, null, null);
+
+        Node[] nodes = f.network.getNodes().values().toArray(new Node[0]);
+        int[] targetNodes = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            targetNodes[i] = graph.getNodeIndex(nodes[i]);
+        }
+        ManyToManyQuery.Targets targets = ManyToManyQuery.prepareTargets(ch, targetNodes);
+        ManyToManyQuery query = new ManyToManyQuery(ch, targets);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        for (Node startNode : new Node[] { f.nodes[0][0], f.nodes[12][7], f.nodes[24][19], f.nodes[3][18] }) {
+            int startIndex = graph.getNodeIndex(startNode);
+            query.calculate(startIndex);
+            lcpTree.calculate(startIndex, 8*3600, null, null);
+
+            for (int nodeIndex : targetNodes) {
+                int targetIndex = query.getTargetIndex(nodeIndex);
+                Assert.assertEquals(lcpTree.getCost(nodeIndex), query.getCost(targetIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getTime(nodeIndex) - 8*3600, query.getTravelTime(targetIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getDistance(nodeIndex), query.getDistance(targetIndex), 1e-1);
+            }
+        }
+    }
+
+    @Test
+    public void testManyToMany_multipleStartNodes() {
+        GridFixture f = new GridFixture(15, 15, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+
+        ContractionHierarchy ch = ContractionHierarchy.create(graph, tt, td, 8*3600, null, null);
+
+        int[] targetNodes = { graph.getNodeIndex(f.nodes[14][14]), graph.getNodeIndex(f.nodes[0][14]), graph.getNodeIndex(f.nodes[7][7]) };
+        ManyToManyQuery query = new ManyToManyQuery(ch, ManyToManyQuery.prepareTargets(ch, targetNodes));
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        int[] startNodes = { graph.getNodeIndex(f.nodes[1][2]), graph.getNodeIndex(f.nodes[13][1]) };
+        query.calculate(startNodes);
+        lcpTree.calculate(startNodes, null, 8*3600, null, null);
+
+        for (int i = 0; i < targetNodes.length; i++) {
+            Assert.assertEquals(lcpTree.getCost(targetNodes[i]), query.getCost(i), 1e-2);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ch.sbb.matsim.routing.graph;
+
+import ch.sbb.matsim.routing.graph.LeastCostPathTreeTest.GridFixture;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+/**
+ * @author mrieser / SBB
+ */
+public class CustomizableContractionHierarchyTest {
+
+    @Test
+    public void testCustomize_sameAsLeastCostPathTree() {
+        GridFixture f = new GridFixture(25, 20, 42);
+        Graph graph = new Graph(f.network);
+        CustomizableContractionHierarchy cch = CustomizableContractionHierarchy.create(graph);
+
+        TravelTime freespeedTT = new FreeSpeedTravelTime();
+        // a second metric, where all links in the east-west direction are congested
+        TravelTime congestedTT = (link, time, person, vehicle) -> {
+            double tt = link.getLength() / link.getFreespeed();
+            return link.getFromNode().getCoord().getY() == link.getToNode().getCoord().getY() ? tt * 3 : tt;
+        };
+
+        for (TravelTime tt : new TravelTime[] { freespeedTT, congestedTT }) {
+            TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+            ContractionHierarchy ch = cch.customize(tt, td, 8*3600, null, null);
+            assertSameAsLeastCostPathTree(f, graph, ch, tt, td);
+        }
+    }
+
+    private static void assertSameAsLeastCostPathTree(GridFixture f, Graph graph, ContractionHierarchy ch, TravelTime tt, TravelDisutility td) {
+        Node[] nodes = f.network.getNodes().values().toArray(new Node[0]);
+        int[] targetNodes = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            targetNodes[i] = graph.getNodeIndex(nodes[i]);
+        }
+        ManyToManyQuery query = new ManyToManyQuery(ch, ManyToManyQuery.prepareTargets(ch, targetNodes));
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        for (Node startNode : new Node[] { f.nodes[0][0], f.nodes[12][7], f.nodes[24][19], f.nodes[3][18] }) {
+            int startIndex = graph.getNodeIndex(startNode);
+            query.calculate(startIndex);
+            lcpTree.calculate(startIndex, 8*3600, null, null);
+
+            for (int nodeIndex : targetNodes) {
+                int targetIndex = query.getTargetIndex(nodeIndex);
+                Assert.assertEquals(lcpTree.getCost(nodeIndex), query.getCost(targetIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getTime(nodeIndex) - 8*3600, query.getTravelTime(targetIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getDistance(nodeIndex), query.getDistance(targetIndex), 1e-1);
+            }
+        }
+    }
+}
@@ -29,57 +29,57 @@ public class GraphTest {
 
         // test out-links node 1
 
-        li.reset(f.node1.getId().index());
+        li.reset(graph.getNodeIndex(f.node1));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link12);
+        assertLink(graph, li, f.link12);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link13);
+        assertLink(graph, li, f.link13);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link14);
+        assertLink(graph, li, f.link14);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test out-links node 2
 
-        li.reset(f.node2.getId().index());
+        li.reset(graph.getNodeIndex(f.node2));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link21);
+        assertLink(graph, li, f.link21);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test out-links node 3
 
-        li.reset(f.node3.getId().index());
+        li.reset(graph.getNodeIndex(f.node3));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link34);
+        assertLink(graph, li, f.link34);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link35);
+        assertLink(graph, li, f.link35);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test out-links node 4
 
-        li.reset(f.node4.getId().index());
+        li.reset(graph.getNodeIndex(f.node4));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link46);
+        assertLink(graph, li, f.link46);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test out-links node 5
 
-        li.reset(f.node5.getId().index());
+        li.reset(graph.getNodeIndex(f.node5));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link56);
+        assertLink(graph, li, f.link56);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test out-links node 6
 
-        li.reset(f.node6.getId().index());
+        li.reset(graph.getNodeIndex(f.node6));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link65);
+        assertLink(graph, li, f.link65);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link62);
+        assertLink(graph, li, f.link62);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
@@ -89,65 +89,140 @@ public class GraphTest {
 
         // test in-links node 1
 
-        li.reset(f.node1.getId().index());
+        li.reset(graph.getNodeIndex(f.node1));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link21);
+        assertLink(graph, li, f.link21);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test in-links node 2
 
-        li.reset(f.node2.getId().index());
+        li.reset(graph.getNodeIndex(f.node2));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link12);
+        assertLink(graph, li, f.link12);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link62);
+        assertLink(graph, li, f.link62);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test in-links node 3
 
-        li.reset(f.node3.getId().index());
+        li.reset(graph.getNodeIndex(f.node3));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link13);
+        assertLink(graph, li, f.link13);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test in-links node 4
 
-        li.reset(f.node4.getId().index());
+        li.reset(graph.getNodeIndex(f.node4));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link14);
+        assertLink(graph, li, f.link14);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link34);
+        assertLink(graph, li, f.link34);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test in-links node 5
 
-        li.reset(f.node5.getId().index());
+        li.reset(graph.getNodeIndex(f.node5));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link35);
+        assertLink(graph, li, f.link35);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link65);
+        assertLink(graph, li, f.link65);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
 
         // test in-links node 6
 
-        li.reset(f.node6.getId().index());
+        li.reset(graph.getNodeIndex(f.node6));
         Assert.assertTrue(li.next());
-        assertLink(li, f.link46);
+        assertLink(graph, li, f.link46);
         Assert.assertTrue(li.next());
-        assertLink(li, f.link56);
+        assertLink(graph, li, f.link56);
         Assert.assertFalse(li.next());
         Assert.assertFalse(li.next());
     }
 
-    private void assertLink(LinkIterator li, Link link) {
-        Assert.assertEquals(link.getId().index(), li.getLinkIndex());
-        Assert.assertEquals(link.getFromNode().getId().index(), li.getFromNodeIndex());
-        Assert.assertEquals(link.getToNode().getId().index(), li.getToNodeIndex());
+    @Test
+    public void testConstruction_compactIndices() {
+        // create some more Ids that are not part of the network
+        for (int i = 0; i < 100; i++) {
+            Id.create("otherNode" + i, Node.class);
+            Id.create("otherLink" + i, Link.class);
+        }
+        Fixture f = new Fixture();
+        Graph graph = new Graph(f.network);
+
+        Assert.assertEquals(6, graph.getNodeCount());
+        Assert.assertEquals(10, graph.getLinkCount());
+        for (Node node : f.network.getNodes().values()) {
+            int nodeIndex = graph.getNodeIndex(node);
+            Assert.assertTrue(nodeIndex >= 0 && nodeIndex < 6);
+            Assert.assertSame(node, graph.getNode(nodeIndex));
+        }
+        for (Link link : f.network.getLinks().values()) {
+            int linkIndex = graph.getLinkIndex(link);
+            Assert.assertTrue(linkIndex >= 0 && linkIndex < 10);
+            Assert.assertSame(link, graph.getLink(linkIndex));
+        }
+        Node otherNode = f.network.getFactory().createNode(Id.create("otherNode0", Node.class), new Coord(0, 0));
+        Assert.assertEquals(-1, graph.getNodeIndex(otherNode));
+    }
+
+    @Test
+    public void testConstruction_nodeOrdering() {
+        Fixture f = new Fixture();
+        Network network = f.network;
+
+        for (Graph.NodeOrdering ordering : Graph.NodeOrdering.values()) {
+            Graph graph = new Graph(network, ordering);
+
+            // every node gets a distinct index
+            boolean[] used = new boolean[graph.nodeCount];
+            for (Node node : network.getNodes().values()) {
+                int nodeIndex = graph.getNodeIndex(node);
+                Assert.assertFalse(used[nodeIndex]);
+                used[nodeIndex] = true;
+            }
+
+            // every link can be found from its from-node and its to-node
+            LinkIterator outLI = graph.getOutLinkIterator();
+            LinkIterator inLI = graph.getInLinkIterator();
+            for (Link link : network.getLinks().values()) {
+                int fromNodeIndex = graph.getNodeIndex(link.getFromNode());
+                int toNodeIndex = graph.getNodeIndex(link.getToNode());
+
+                boolean found = false;
+                outLI.reset(fromNodeIndex);
+                while (outLI.next()) {
+                    if (outLI.getLinkIndex() == graph.getLinkIndex(link)) {
+                        Assert.assertEquals(fromNodeIndex, outLI.getFromNodeIndex());
+                        Assert.assertEquals(toNodeIndex, outLI.getToNodeIndex());
+                        Assert.assertEquals(link.getLength(), outLI.getLength(), 1e-2);
+                        found = true;
+                    }
+                }
+                Assert.assertTrue(found);
+
+                found = false;
+                inLI.reset(toNodeIndex);
+                while (inLI.next()) {
+                    if (inLI.getLinkIndex() == graph.getLinkIndex(link)) {
+                        Assert.assertEquals(fromNodeIndex, inLI.getFromNodeIndex());
+                        Assert.assertEquals(toNodeIndex, inLI.getToNodeIndex());
+                        found = true;
+                    }
+                }
+                Assert.assertTrue(found);
+            }
+        }
+    }
+
+    private void assertLink(Graph graph, LinkIterator li, Link link) {
+        Assert.assertEquals(graph.getLinkIndex(link), li.getLinkIndex());
+        Assert.assertEquals(graph.getNodeIndex(link.getFromNode()), li.getFromNodeIndex());
+        Assert.assertEquals(graph.getNodeIndex(link.getToNode()), li.getToNodeIndex());
         Assert.assertEquals(link.getLength(), li.getLength(), 1e-2);
         Assert.assertEquals(link.getLength() / link.getFreespeed(), li.getFreespeedTravelTime(), 1e-2);
     }
@@ -0,0 +1,65 @@
+package ch.sbb.matsim.routing.graph;
+
+import ch.sbb.matsim.routing.graph.LeastCostPathTreeTest.GridFixture;
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import java.util.Random;
+
+/**
+ * @author mrieser / SBB
+ */
+public class LeastCostPathQueryTest {
+
+    @Test
+    public void testCalculate_sameAsLeastCostPathTree() {
+        GridFixture f = new GridFixture(30, 30, 4711);
+        Graph graph = new Graph(f.network, Graph.NodeOrdering.HILBERT);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        TravelCostSnapshot snapshot = TravelCostSnapshot.create(graph, tt, td, 8*3600, null, null);
+
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+        LeastCostPathQuery dijkstraQuery = new LeastCostPathQuery(snapshot);
+        LeastCostPathQuery altQuery = new LeastCostPathQuery(snapshot, Landmarks.create(snapshot, 8));
+
+        Random r = new Random(20191115);
+        int dijkstraSettled = 0;
+        int altSettled = 0;
+        for (int i = 0; i < 50; i++) {
+            int startNode = graph.getNodeIndex(f.nodes[r.nextInt(30)][r.nextInt(30)]);
+            int targetNode = graph.getNodeIndex(f.nodes[r.nextInt(30)][r.nextInt(30)]);
+            lcpTree.calculate(startNode, 8*3600, null, null);
+            dijkstraQuery.calculate(startNode, targetNode);
+            altQuery.calculate(startNode, targetNode);
+
+            for (LeastCostPathQuery query : new LeastCostPathQuery[] { dijkstraQuery, altQuery }) {
+                Assert.assertEquals(lcpTree.getCost(targetNode), query.getCost(), 1e-2);
+                Assert.assertEquals(lcpTree.getTime(targetNode) - 8*3600, query.getTravelTime(), 1e-2);
+                Assert.assertEquals(lcpTree.getDistance(targetNode), query.getDistance(), 1e-1);
+            }
+            dijkstraSettled += dijkstraQuery.getSettledNodeCount();
+            altSettled += altQuery.getSettledNodeCount();
+        }
+        Assert.assertTrue("landmarks should reduce the search space: " + altSettled + " vs " + dijkstraSettled, altSettled < dijkstraSettled);
+    }
+
+    @Test
+    public void testCalculate_sameNode() {
+        GridFixture f = new GridFixture(5, 5, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelCostSnapshot snapshot = TravelCostSnapshot.create(graph, tt, new OnlyTimeDependentTravelDisutility(tt), 8*3600, null, null);
+        LeastCostPathQuery query = new LeastCostPathQuery(snapshot, Landmarks.create(snapshot, 2));
+
+        int node = graph.getNodeIndex(f.nodes[2][3]);
+        query.calculate(node, node);
+        Assert.assertEquals(0, query.getCost(), 0.0);
+        Assert.assertEquals(0, query.getTravelTime(), 0.0);
+        Assert.assertEquals(0, query.getDistance(), 0.0);
+    }
+}
@@ -0,0 +1,226 @@
+package ch.sbb.matsim.routing.graph;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.trafficmonitoring.FreeSpeedTravelTime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * @author mrieser / SBB
+ */
+public class LeastCostPathTreeTest {
+
+    @Test
+    public void testCalculate_grid() {
+        GridFixture f = new GridFixture(20, 20, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        // use the same tree multiple times to make sure it gets correctly reset in-between
+        for (Node startNode : new Node[] { f.nodes[0][0], f.nodes[7][13], f.nodes[19][19], f.nodes[0][0] }) {
+            lcpTree.calculate(graph.getNodeIndex(startNode), 7*3600, null, null);
+            Map<Node, Double> expected = calcReferenceCosts(f.network, startNode);
+            for (Node node : f.network.getNodes().values()) {
+                int nodeIndex = graph.getNodeIndex(node);
+                Assert.assertEquals(expected.get(node), lcpTree.getCost(nodeIndex), 1e-6);
+                Assert.assertEquals(7*3600 + expected.get(node), lcpTree.getTime(nodeIndex), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testCalculate_multipleStartNodes() {
+        GridFixture f = new GridFixture(20, 20, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        Node[] startNodes = { f.nodes[2][3], f.nodes[15][4], f.nodes[9][17], f.nodes[2][3] };
+        double[] startCosts = { 300, 0, 120, 60 };
+
+        int[] startNodeIndices = new int[startNodes.length];
+        for (int i = 0; i < startNodes.length; i++) {
+            startNodeIndices[i] = graph.getNodeIndex(startNodes[i]);
+        }
+        lcpTree.calculate(startNodeIndices, startCosts, 7*3600, null, null);
+
+        Map<Node, Double> expected = new HashMap<>();
+        for (int i = 0; i < startNodes.length; i++) {
+            Map<Node, Double> costs = calcReferenceCosts(f.network, startNodes[i]);
+            for (Map.Entry<Node, Double> e : costs.entrySet()) {
+                expected.merge(e.getKey(), e.getValue() + startCosts[i], Math::min);
+            }
+        }
+        for (Node node : f.network.getNodes().values()) {
+            Assert.assertEquals(expected.get(node), lcpTree.getCost(graph.getNodeIndex(node)), 1e-6);
+        }
+        for (Node startNode : startNodes) {
+            Assert.assertEquals(-1, lcpTree.getComingFrom(graph.getNodeIndex(startNode)));
+        }
+        Assert.assertEquals(7*3600, lcpTree.getTime(graph.getNodeIndex(startNodes[0])), 1e-6);
+    }
+
+    @Test
+    public void testCalculate_stopCriterionAfterFullTree() {
+        GridFixture f = new GridFixture(20, 20, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        Node startNode = f.nodes[10][10];
+        lcpTree.calculate(graph.getNodeIndex(f.nodes[0][0]), 7*3600, null, null);
+        lcpTree.calculate(graph.getNodeIndex(startNode), 7*3600, null, null, new LeastCostPathTree.TravelTimeStopCriterion(300));
+
+        // data from the first, full tree must not be visible after the second, bounded calculation
+        Map<Node, Double> expected = calcReferenceCosts(f.network, startNode);
+        int reachedCount = 0;
+        for (Node node : f.network.getNodes().values()) {
+            int nodeIndex = graph.getNodeIndex(node);
+            double cost = lcpTree.getCost(nodeIndex);
+            if (Double.isFinite(cost)) {
+                reachedCount++;
+                Assert.assertTrue(expected.get(node) <= cost + 1e-6);
+            } else {
+                Assert.assertEquals(-1, lcpTree.getComingFrom(nodeIndex));
+                Assert.assertTrue(Double.isInfinite(lcpTree.getDistance(nodeIndex)));
+            }
+        }
+        Assert.assertTrue(reachedCount > 1);
+        Assert.assertTrue(reachedCount < f.network.getNodes().size());
+    }
+
+    @Test
+    public void testCalculateBackwards() {
+        GridFixture f = new GridFixture(20, 20, 4711);
+        Graph graph = new Graph(f.network);
+        TravelTime tt = new FreeSpeedTravelTime();
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+
+        Node arrivalNode = f.nodes[7][13];
+        lcpTree.calculateBackwards(graph.getNodeIndex(arrivalNode), 8*3600, null, null);
+        for (Node node : f.network.getNodes().values()) {
+            Map<Node, Double> expected = calcReferenceCosts(f.network, node);
+            int nodeIndex = graph.getNodeIndex(node);
+            Assert.assertEquals(expected.get(arrivalNode), lcpTree.getCost(nodeIndex), 1e-6);
+            Assert.assertEquals(8*3600 - expected.get(arrivalNode), lcpTree.getTime(nodeIndex), 1e-6);
+        }
+    }
+
+    @Test
+    public void testCalculate_travelCostSnapshot() {
+        GridFixture f = new GridFixture(20, 20, 4711);
+        Graph graph = new Graph(f.network);
+        // travel times that change every 15 minutes
+        TravelTime tt = (link, time, person, vehicle) -> {
+            int bin = (int) (time / 900);
+            return link.getLength() / link.getFreespeed() * (1.0 + ((bin + link.getId().index()) % 4) * 0.5);
+        };
+        TravelDisutility td = new OnlyTimeDependentTravelDisutility(tt);
+        LeastCostPathTree lcpTree = new LeastCostPathTree(graph, tt, td);
+        TravelCostSnapshot snapshot = TravelCostSnapshot.create(graph, tt, td, 7*3600, 10*3600, 900, null, null);
+        Assert.assertEquals(13, snapshot.getBinCount());
+        LeastCostPathTree snapshotTree = new LeastCostPathTree(snapshot);
+
+        for (Node startNode : new Node[] { f.nodes[0][0], f.nodes[7][13] }) {
+            lcpTree.calculate(graph.getNodeIndex(startNode), 7*3600 + 450, null, null);
+            snapshotTree.calculate(graph.getNodeIndex(startNode), 7*3600 + 450, null, null);
+            for (Node node : f.network.getNodes().values()) {
+                int nodeIndex = graph.getNodeIndex(node);
+                Assert.assertEquals(lcpTree.getCost(nodeIndex), snapshotTree.getCost(nodeIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getTime(nodeIndex), snapshotTree.getTime(nodeIndex), 1e-2);
+                Assert.assertEquals(lcpTree.getDistance(nodeIndex), snapshotTree.getDistance(nodeIndex), 1e-1);
+            }
+        }
+    }
+
+    /**
+     * Very simple Dijkstra implementation without any optimizations, used as reference.
+     */
+    private static Map<Node, Double> calcReferenceCosts(Network network, Node startNode) {
+        Map<Node, Double> costs = new HashMap<>();
+        PriorityQueue<Object[]> pq = new PriorityQueue<>((o1, o2) -> Double.compare((Double) o1[1], (Double) o2[1]));
+        pq.add(new Object[] { startNode, 0.0 });
+        while (!pq.isEmpty()) {
+            Object[] entry = pq.poll();
+            Node node = (Node) entry[0];
+            double cost = (Double) entry[1];
+            if (costs.containsKey(node)) {
+                continue;
+            }
+            costs.put(node, cost);
+            for (Link link : node.getOutLinks().values()) {
+                if (!costs.containsKey(link.getToNode())) {
+                    pq.add(new Object[] { link.getToNode(), cost + link.getLength() / link.getFreespeed() });
+                }
+            }
+        }
+        return costs;
+    }
+
+    static class GridFixture {
+
+        final Network network;
+        final Node[][] nodes;
+
+        /**
+         * Creates a grid network where neighbouring nodes are connected in both directions.
+         * Link lengths and freespeeds are randomized, so there is a good chance that the cost
+         * of a node gets decreased multiple times during routing.
+         */
+        GridFixture(int width, int height, long seed) {
+            Random r = new Random(seed);
+            this.network = NetworkUtils.createNetwork();
+            NetworkFactory nf = this.network.getFactory();
+            this.nodes = new Node[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    Node node = nf.createNode(Id.create("grid_" + x + "_" + y, Node.class), new Coord(x * 1000, y * 1000));
+                    this.network.addNode(node);
+                    this.nodes[x][y] = node;
+                }
+            }
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    if (x > 0) {
+                        createLinks(nf, this.nodes[x - 1][y], this.nodes[x][y], r);
+                    }
+                    if (y > 0) {
+                        createLinks(nf, this.nodes[x][y - 1], this.nodes[x][y], r);
+                    }
+                }
+            }
+        }
+
+        private void createLinks(NetworkFactory nf, Node nodeA, Node nodeB, Random r) {
+            createLink(nf, nodeA, nodeB, 1000 + r.nextInt(500), (30 + r.nextInt(90)) / 3.6);
+            createLink(nf, nodeB, nodeA, 1000 + r.nextInt(500), (30 + r.nextInt(90)) / 3.6);
+        }
+
+        private void createLink(NetworkFactory nf, Node fromNode, Node toNode, double length, double freespeed) {
+            Link link = nf.createLink(Id.create(fromNode.getId() + "-" + toNode.getId(), Link.class), fromNode, toNode);
+            link.setLength(length);
+            link.setFreespeed(freespeed);
+            link.setCapacity(2000);
+            this.network.addLink(link);
+        }
+    }
+}